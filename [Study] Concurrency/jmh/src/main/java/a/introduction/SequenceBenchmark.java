@@ -0,0 +1,68 @@
+package a.introduction;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/*
+ * UnsafeSequence against Sequence: the same increment, without and with the intrinsic lock. All threads share one instance, so with
+ * more than one thread the unsafe variant loses updates (and is only "faster" because of it) while the safe one contends on the lock.
+ * 
+ * The three modes of IdGenerator against them: fetch-and-add, checked compareAndSet, and per-thread leased blocks. Run with
+ * "JmhThreadSweep 64 SequenceBenchmark" for the scaling up to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark
+{
+	private Introduction.UnsafeSequence unsafeSequence;
+	private Introduction.Sequence sequence;
+	private IdGenerator cas;
+	private IdGenerator checked;
+	private IdGenerator leased;
+	
+	@Setup
+	public void setUp()
+	{
+		Introduction outer = new Introduction();
+		unsafeSequence = outer.new UnsafeSequence();
+		sequence = outer.new Sequence();
+		cas = IdGenerator.create(IdGenerator.Mode.CAS);
+		checked = IdGenerator.create(IdGenerator.Mode.CHECKED);
+		leased = IdGenerator.create(IdGenerator.Mode.LEASED);
+	}
+	
+	@Benchmark
+	public int unsafeSequence()
+	{
+		return unsafeSequence.getNext();
+	}
+	
+	@Benchmark
+	public int sequence()
+	{
+		return sequence.getNext();
+	}
+	
+	@Benchmark
+	public long cas()
+	{
+		return cas.next();
+	}
+	
+	@Benchmark
+	public long checked()
+	{
+		return checked.next();
+	}
+	
+	@Benchmark
+	public long leased()
+	{
+		return leased.next();
+	}
+}
@@ -0,0 +1,145 @@
+package b.threadsafety;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import org.openjdk.jmh.annotations.*;
+
+
+/*
+ * service() of every factorizer variant of A_Introduction, B_Atomicity and C_Locking, one shared instance per run, under the same
+ * traffic: the hot number with probability HOT_RATIO, otherwise one of POOL_SIZE others (41-bit semiprimes, as in
+ * CachingModesBenchmark). The variants differ only in how they keep their state -- none, an unsafe or atomic counter, atomic
+ * references, the whole method or two blocks under the monitor, a volatile immutable snapshot, a striped cache -- so the differences
+ * between them are the cost of that choice, and of what it caches.
+ * 
+ * The mock extractFromRequest of each variant is overridden to read the number from a fake request of the calling thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorizerBenchmark
+{
+	private static final double HOT_RATIO = 0.9;
+	private static final int POOL_SIZE = 64;
+	private static final String NUMBER = "number";
+	
+	private static final BigInteger[] POOL = new BigInteger[POOL_SIZE];
+	
+	static
+	{
+		Random random = new Random(11);
+		for (int k = 0; k < POOL_SIZE; k++)
+			POOL[k] = BigInteger.probablePrime(20, random).multiply(BigInteger.probablePrime(21, random));
+	}
+	
+	@Param({"StatelessFactorizer", "UnsafeCountingFactorizer", "CountingFactorizer", "UnsafeCachingFactorizer", "SynchonizedFactorizer",
+			"CachedFactorizer", "VolatileCachedFactorizer", "BoundedCachingFactorizer"})
+	public String variant;
+	
+	private Servlet servlet;
+	
+	@Setup
+	public void setUp()
+	{
+		servlet = create(variant);
+	}
+	
+	@Benchmark
+	public void service(Client client) throws Exception
+	{
+		servlet.service(client.next(), null);
+	}
+	
+	
+	/*
+	 * The requests of one benchmark thread: a fake ServletRequest whose "number" attribute is the number drawn last.
+	 */
+	@State(Scope.Thread)
+	public static class Client
+	{
+		private long state = System.nanoTime() | 1;
+		private BigInteger number;
+		private final ServletRequest request = (ServletRequest) Proxy.newProxyInstance(ServletRequest.class.getClassLoader(),
+			new Class<?>[] {ServletRequest.class}, new InvocationHandler()
+			{
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					return method.getName().equals("getAttribute") && NUMBER.equals(args[0]) ? number : null;
+				}
+			});
+		
+		ServletRequest next()
+		{
+			// xorshift, so that drawing the number neither allocates nor contends
+			state ^= state << 13;
+			state ^= state >>> 7;
+			state ^= state << 17;
+			double u = (state >>> 11) * 0x1.0p-53;
+			number = u < HOT_RATIO ? POOL[0] : POOL[1 + (int) ((state >>> 1) % (POOL_SIZE - 1))];
+			return request;
+		}
+	}
+	
+	private static BigInteger numberOf(ServletRequest request)
+	{
+		return (BigInteger) request.getAttribute(NUMBER);
+	}
+	
+	private static Servlet create(String variant)
+	{
+		A_Introduction a = new A_Introduction();
+		B_Atomicity b = new B_Atomicity();
+		C_Locking c = new C_Locking();
+		
+		if (variant.equals("StatelessFactorizer"))
+			return a.new StatelessFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("UnsafeCountingFactorizer"))
+			return b.new UnsafeCountingFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("CountingFactorizer"))
+			return b.new CountingFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("UnsafeCachingFactorizer"))
+			return c.new UnsafeCachingFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("SynchonizedFactorizer"))
+			return c.new SynchonizedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("CachedFactorizer"))
+			return c.new CachedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("VolatileCachedFactorizer"))
+			return c.new VolatileCachedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		if (variant.equals("BoundedCachingFactorizer"))
+			return c.new BoundedCachingFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return numberOf(request);}
+			};
+		throw new IllegalArgumentException("Unknown variant " + variant);
+	}
+}
@@ -0,0 +1,86 @@
+package b.threadsafety;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import b.threadsafety.lazy.Lazy;
+
+
+/*
+ * getInstance() of LazyInitRace once the instance exists, by all threads on one shared instance: the unsynchronized check-then-act
+ * costs a plain read, which is the price the race buys.
+ * 
+ * Against it, the safe ways once the value exists: a holder class, the doubleChecked and retrying Lazy, and the whole method under
+ * the monitor, as a baseline for what they save. All but the last should cost the same as the race.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyInitBenchmark
+{
+	private B_Atomicity.LazyInitRace lazyInitRace;
+	private Lazy<Object> doubleChecked;
+	private Lazy<Object> retrying;
+	private Object instance;
+	
+	private static final Callable<Object> FACTORY = new Callable<Object>()
+	{
+		public Object call()
+		{
+			return new Object();
+		}
+	};
+	
+	private static final class Holder
+	{
+		static final Object INSTANCE = new Object();
+	}
+	
+	@Setup
+	public void setUp()
+	{
+		lazyInitRace = new B_Atomicity().new LazyInitRace();
+		doubleChecked = Lazy.doubleChecked(FACTORY);
+		retrying = Lazy.retrying(FACTORY);
+		doubleChecked.get();
+		retrying.get();
+	}
+	
+	@Benchmark
+	public Object lazyInitRace()
+	{
+		return lazyInitRace.getInstance();
+	}
+	
+	@Benchmark
+	public Object holder()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	@Benchmark
+	public Object doubleChecked()
+	{
+		return doubleChecked.get();
+	}
+	
+	@Benchmark
+	public Object retrying()
+	{
+		return retrying.get();
+	}
+	
+	@Benchmark
+	public Object synchronizedGet()
+	{
+		synchronized (this)
+		{
+			if (instance == null)
+				instance = new Object();
+			return instance;
+		}
+	}
+}
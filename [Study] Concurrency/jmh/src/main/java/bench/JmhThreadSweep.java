@@ -0,0 +1,50 @@
+package bench;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the JMH benchmarks at 1, 2, 4 ... threads up to the given maximum (and at the maximum itself), with the GC profiler, and writes
+ * the results of each thread count to jmh-results/threads-<n>.json.
+ * 
+ * Every benchmark runs in Throughput and SampleTime mode, so each JSON file holds, per benchmark and parameter: operations per
+ * microsecond, the mean and the percentiles (p0.50 ... p0.9999, max) of the time per operation, and, from the GC profiler,
+ * gc.alloc.rate (MB/s) and gc.alloc.rate.norm (bytes per operation). Comparing the files of two builds shows a regression as a number.
+ * 
+ * Arguments: [max threads, default all cores] [benchmark regex, default all]
+ */
+public class JmhThreadSweep
+{
+	public static void main(String[] args) throws RunnerException
+	{
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		String include = args.length > 1 ? args[1] : ".*";
+		
+		File directory = new File("jmh-results");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalStateException("Cannot create " + directory.getAbsolutePath());
+		
+		for (int threads = 1; ; threads = Math.min(2 * threads, maxThreads))
+		{
+			File result = new File(directory, "threads-" + threads + ".json");
+			Options options = new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(result.getPath())
+				.build();
+			
+			new Runner(options).run();
+			System.out.println("Results for " + threads + " threads in " + result.getPath());
+			
+			if (threads == maxThreads)
+				break;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package callable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Round trip of a two-stage TaskPipeline -- submit a task, chain a continuation, wait for it -- on PLATFORM and on VIRTUAL threads,
+ * with the benchmark threads as the clients. VIRTUAL falls back to PLATFORM on VMs without virtual threads, so compare the two only
+ * on Java 21 or later.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	private static final Callable<Long> TASK = new Callable<Long>() {
+
+		public Long call() {
+			return System.nanoTime();
+		}
+	};
+
+	private static final Continuation<Long, Long> NEXT = new Continuation<Long, Long>() {
+
+		public Long apply(Long previous) {
+			return System.nanoTime() - previous;
+		}
+	};
+
+	@Param({"PLATFORM", "VIRTUAL"})
+	public ExecutionMode mode;
+
+	private TaskPipeline pipeline;
+
+	@Setup
+	public void setUp() {
+		pipeline = new TaskPipeline(mode.orFallback(), Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		pipeline.shutdown();
+		pipeline.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public Long submitThenGet() throws Exception {
+		return pipeline.submit(TASK).then(NEXT).get();
+	}
+}
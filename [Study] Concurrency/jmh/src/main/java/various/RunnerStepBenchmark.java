@@ -0,0 +1,33 @@
+package various;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One step of RunnerThreads.Runner -- the atomic block under the shared LOCK -- without the printing and the sleep, each benchmark
+ * thread being one runner. Whenever the race is over the runner starts a new one, so the lock stays contended.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunnerStepBenchmark {
+
+	private static final AtomicInteger IDS = new AtomicInteger();
+
+	private final int runnerId = IDS.getAndIncrement();
+	private RunnerThreads.Runner runner = new RunnerThreads.Runner(runnerId);
+
+	@Benchmark
+	public boolean lockedStep() {
+		boolean stop = runner.advance(false);
+		if (stop) {
+			RunnerThreads.Runner.restartRace();
+			runner = new RunnerThreads.Runner(runnerId);
+		}
+		return stop;
+	}
+}
@@ -0,0 +1,6 @@
+package $annotations;
+
+public @interface Immutable
+{
+
+}
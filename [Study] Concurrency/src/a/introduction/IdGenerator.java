@@ -0,0 +1,167 @@
+package a.introduction;
+
+import java.util.concurrent.atomic.AtomicLong;
+import $annotations.*;
+
+/*
+ * Unique 64-bit ids for any number of threads, without the monitor of Introduction.Sequence. All modes count up from a first value
+ * held in one AtomicLong; they differ in how often a thread touches it, and in what they promise about order.
+ * 
+ * CAS: AtomicLong.getAndIncrement() -- a compareAndSet loop in Java 7, a single atomic fetch-and-add on x86 since Java 8. Lock-free,
+ * no thread ever waits for another one that was descheduled, but all of them still write the same cache line, so it scales only as
+ * far as that line can move between cores. Ids are LINEARIZABLE: unique, without gaps, and if one next() returns before another one
+ * starts, its id is the smaller. It does not check for overflow: after Long.MAX_VALUE it would wrap to Long.MIN_VALUE, which at a
+ * billion ids per second takes 292 years.
+ * 
+ * CHECKED: the same, as an explicit compareAndSet loop that refuses to go past Long.MAX_VALUE - 1 and throws IllegalStateException
+ * instead, so an id is never handed out twice, whatever the first value. Same ordering as CAS, at the cost of a retry under contention.
+ * 
+ * LEASED: each thread leases a BLOCK of blockSize consecutive ids with one compareAndSet (overflow-checked as in CHECKED), then hands
+ * them out from its own lease with plain field accesses, so the shared counter is written once every blockSize ids instead of every
+ * time. Ids are unique and increasing WITHIN a thread, but not across threads: a thread may return a smaller id after another thread
+ * returned a larger one, and the ids left in the lease of a thread that stops asking are never handed out (gaps of up to blockSize per
+ * thread). Fine for keys and correlation ids, not for anything that reads order or density into them.
+ */
+@ThreadSafe
+public abstract class IdGenerator
+{
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+	
+	public enum Mode
+	{
+		CAS, CHECKED, LEASED
+	}
+	
+	public static IdGenerator create(Mode mode)
+	{
+		return create(mode, 0, DEFAULT_BLOCK_SIZE);
+	}
+	
+	/*
+	 * blockSize is used by LEASED only.
+	 */
+	public static IdGenerator create(Mode mode, long first, int blockSize)
+	{
+		if (blockSize < 1)
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		switch (mode)
+		{
+			case CAS:
+				return new Cas(first);
+			case CHECKED:
+				return new Checked(first);
+			case LEASED:
+				return new Leased(first, blockSize);
+			default:
+				throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+	}
+	
+	final AtomicLong counter; // the next id that has not been handed out, or leased
+	
+	private IdGenerator(long first)
+	{
+		if (first == Long.MAX_VALUE)
+			throw new IllegalArgumentException("No id left after " + first);
+		this.counter = new AtomicLong(first);
+	}
+	
+	
+	public abstract long next();
+	
+	public abstract Mode getMode();
+	
+	
+	private static final class Cas extends IdGenerator
+	{
+		Cas(long first)
+		{
+			super(first);
+		}
+		
+		public long next()
+		{
+			return counter.getAndIncrement();
+		}
+		
+		public Mode getMode()
+		{
+			return Mode.CAS;
+		}
+	}
+	
+	private static final class Checked extends IdGenerator
+	{
+		Checked(long first)
+		{
+			super(first);
+		}
+		
+		public long next()
+		{
+			for (;;)
+			{
+				long current = counter.get();
+				if (current == Long.MAX_VALUE)
+					throw new IllegalStateException("Ids exhausted");
+				if (counter.compareAndSet(current, current + 1))
+					return current;
+			}
+		}
+		
+		public Mode getMode()
+		{
+			return Mode.CHECKED;
+		}
+	}
+	
+	private static final class Leased extends IdGenerator
+	{
+		private final int blockSize;
+		
+		// the lease of each thread, ids from lease[0] (inclusive) to lease[1] (exclusive), touched by that thread only
+		private final ThreadLocal<long[]> leases = new ThreadLocal<long[]>()
+		{
+			protected long[] initialValue()
+			{
+				return new long[2];
+			}
+		};
+		
+		Leased(long first, int blockSize)
+		{
+			super(first);
+			this.blockSize = blockSize;
+		}
+		
+		public long next()
+		{
+			long[] lease = leases.get();
+			if (lease[0] == lease[1])
+				renew(lease);
+			return lease[0]++;
+		}
+		
+		private void renew(long[] lease)
+		{
+			for (;;)
+			{
+				long current = counter.get();
+				if (current == Long.MAX_VALUE)
+					throw new IllegalStateException("Ids exhausted");
+				long limit = current > Long.MAX_VALUE - blockSize ? Long.MAX_VALUE : current + blockSize;
+				if (counter.compareAndSet(current, limit))
+				{
+					lease[0] = current;
+					lease[1] = limit;
+					return;
+				}
+			}
+		}
+		
+		public Mode getMode()
+		{
+			return Mode.LEASED;
+		}
+	}
+}
@@ -85,7 +85,8 @@ public class Introduction
 	}
 	
 	/*
-	 * Synchronised version.
+	 * Synchronised version. Correct, but every caller on every core serializes on the one monitor, and the int wraps after 2^31
+	 * values; IdGenerator has lock-free, leased and overflow-checked 64-bit versions.
 	 */
 	@ThreadSafe
 	class Sequence
@@ -0,0 +1,136 @@
+package a.introduction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Scaling of the sequence generators from 1 to 64 threads: Introduction.UnsafeSequence and Sequence against the three modes of
+ * IdGenerator, one shared generator per run, every thread asking for ids in a loop for a fixed time.
+ * 
+ * Reported per generator and thread count: ids per second, and the GAP between the next value afterwards and the number of ids handed
+ * out. A negative gap is lost updates -- the same value handed out twice (UnsafeSequence); zero is a dense sequence; a positive gap is
+ * ids leased but never handed out (LEASED, at most one block per thread). "order" counts the times a thread got an id no larger than
+ * its previous one, which no generator but UnsafeSequence should ever do. The two Introduction sequences count in an int, so a run of
+ * more than 2^31 ids shows their wrap-around as disorder too.
+ * 
+ * Arguments: [max threads, default 64] [milliseconds per run, default 500] [LEASED block size, default 1024]
+ */
+public class SequenceScalingBenchmark
+{
+	private static final int BATCH = 1024; // ids between two reads of the clock
+	
+	/*
+	 * One generator under test.
+	 */
+	private interface Source
+	{
+		long next();
+	}
+	
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		long runNanos = (args.length > 1 ? Long.parseLong(args[1]) : 500) * 1000000L;
+		int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : IdGenerator.DEFAULT_BLOCK_SIZE;
+		
+		System.out.println(String.format("%-16s %8s %14s %14s %8s", "generator", "threads", "ids/s", "gap", "order"));
+		
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			Introduction outer = new Introduction();
+			final Introduction.UnsafeSequence unsafe = outer.new UnsafeSequence();
+			run("UnsafeSequence", new Source()
+			{
+				public long next()
+				{
+					return unsafe.getNext();
+				}
+			}, threads, runNanos);
+			
+			final Introduction.Sequence sequence = outer.new Sequence();
+			run("Sequence", new Source()
+			{
+				public long next()
+				{
+					return sequence.getNext();
+				}
+			}, threads, runNanos);
+			
+			for (IdGenerator.Mode mode : IdGenerator.Mode.values())
+			{
+				final IdGenerator generator = IdGenerator.create(mode, 0, blockSize);
+				run(mode.toString(), new Source()
+				{
+					public long next()
+					{
+						return generator.next();
+					}
+				}, threads, runNanos);
+			}
+		}
+	}
+	
+	private static void run(String name, final Source source, int threads, final long runNanos) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] ids = new long[threads];
+		final long[] disorders = new long[threads];
+		List<Thread> workers = new ArrayList<Thread>();
+		
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			Thread worker = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					long deadline = System.nanoTime() + runNanos;
+					long previous = Long.MIN_VALUE;
+					long done = 0;
+					long disorder = 0;
+					
+					while (System.nanoTime() < deadline)
+					{
+						for (int k = 0; k < BATCH; k++)
+						{
+							long next = source.next();
+							if (next <= previous)
+								disorder++;
+							previous = next;
+						}
+						done += BATCH;
+					}
+					ids[id] = done;
+					disorders[id] = disorder;
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join(); // join() makes the workers' writes to the arrays visible here
+		
+		long total = 0;
+		long disorder = 0;
+		for (int t = 0; t < threads; t++)
+		{
+			total += ids[t];
+			disorder += disorders[t];
+		}
+		long gap = source.next() - total;
+		
+		System.out.println(String.format("%-16s %8d %14.0f %14d %8d", name, threads, total / (runNanos / 1e9), gap, disorder));
+	}
+}
@@ -1,8 +1,12 @@
 package b.threadsafety;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import $annotations.*;
 import javax.servlet.*;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.metrics.FactorizerMetrics;
+import b.threadsafety.servlet.RequestNumbers;
 
 public class A_Introduction
 {
@@ -72,18 +76,46 @@ public class A_Introduction
 	@ThreadSafe
 	class StatelessFactorizer implements Servlet
 	{
-		public void service(ServletRequest request, ServletResponse response)
+		private final FactorizerMetrics metrics = new FactorizerMetrics(); // thread-safe, and no part of the factoring itself
+		
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			long extracted = System.nanoTime();
 			BigInteger[] factors = factor(i);
+			long factored = System.nanoTime();
 			encodeIntoResponse(response, factors);
+			long end = System.nanoTime();
+			metrics.recordRequest(end - start, factored - extracted, end - factored);
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
 		}
 
 		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
 		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		
+		// shared factorization engine
+		public BigInteger[] factor(BigInteger i){return FactorEngine.factor(i);}
 		
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -0,0 +1,286 @@
+package b.threadsafety;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.servlet.AsyncContext;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.servlet.AsyncFactorizer;
+
+/*
+ * Load test of container-thread occupancy: the blocking BoundedCachingFactorizer against the AsyncFactorizer, under the same traffic.
+ * 
+ * A small simulated container -- CONTAINER_THREADS threads in front of an unbounded queue, as a connector would have -- receives
+ * requests at a fixed rate (open loop: arrivals do not wait for earlier requests to finish). Most requests ask for numbers that are
+ * already cached; the rest ask for fresh semiprimes that take about a millisecond to factor. The request and response are dynamic
+ * proxies that implement just enough of the Servlet API: parameter "n", startAsync() and complete(), setStatus().
+ * 
+ * Reported per servlet: how many container threads were busy on average and at most (sampled), the longest container queue, the
+ * latency from arrival to response of hits and of misses separately, and the number of 503s. With the blocking servlet, misses occupy
+ * the container threads and the cheap hits queue behind them; with the async one the container threads are back after a few
+ * microseconds and the hits are answered at once, while the misses queue in the bounded executor or are turned away.
+ * 
+ * Arguments: [arrivals per second, default 2000] [seconds per run, default 5] [miss ratio, default 0.2]
+ */
+public class AsyncOccupancyBenchmark
+{
+	private static final int CONTAINER_THREADS = 16;
+	private static final int WORKER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private static final int WORKER_QUEUE = 64;
+	private static final int HOT_NUMBERS = 256;
+	private static final long SAMPLE_NANOS = 100000;
+	
+	private static final PrintWriter NULL_WRITER = new PrintWriter(new Writer()
+	{
+		public void write(char[] buffer, int offset, int length){}
+		public void flush(){}
+		public void close(){}
+	});
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long runNanos = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000000000L;
+		double missRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+		
+		C_Locking outer = new C_Locking();
+		C_Locking.BoundedCachingFactorizer blocking = outer.new BoundedCachingFactorizer();
+		AsyncFactorizer async = new AsyncFactorizer(new StripedLruFactorCache(1 << 16), WORKER_THREADS, WORKER_QUEUE, 30000);
+		
+		System.out.println(String.format("%d arrivals/s, %.0f%% misses, %d container threads, %d worker threads, queue %d", rate,
+			missRatio * 100, CONTAINER_THREADS, WORKER_THREADS, WORKER_QUEUE));
+		System.out.println(String.format("%-16s %10s %10s %10s %12s %12s %12s %12s %8s", "servlet", "busy avg", "busy max", "queue max",
+			"hit p50 ms", "hit p99 ms", "miss p50 ms", "miss p99 ms", "503s"));
+		
+		run("blocking", blocking, rate, runNanos, missRatio, 1);
+		run("async", async, rate, runNanos, missRatio, 2);
+		async.destroy();
+	}
+	
+	private static void run(String name, final Servlet servlet, int rate, long runNanos, double missRatio, long seed) throws Exception
+	{
+		Random random = new Random(seed);
+		
+		// warm the cache with the hot numbers
+		BigInteger[] hot = new BigInteger[HOT_NUMBERS];
+		for (int k = 0; k < HOT_NUMBERS; k++)
+		{
+			hot[k] = BigInteger.probablePrime(20, random).multiply(BigInteger.probablePrime(20, random));
+			Request warm = new Request(hot[k], false);
+			warm.serve(servlet);
+			warm.done.await();
+		}
+		
+		final ThreadPoolExecutor container = new ThreadPoolExecutor(CONTAINER_THREADS, CONTAINER_THREADS, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>());
+		final AtomicInteger busy = new AtomicInteger(0);
+		
+		int total = (int) (rate * (runNanos / 1e9));
+		final Request[] requests = new Request[total];
+		for (int k = 0; k < total; k++)
+		{
+			boolean miss = random.nextDouble() < missRatio;
+			BigInteger number = miss ? BigInteger.probablePrime(31, random).multiply(BigInteger.probablePrime(31, random))
+				: hot[random.nextInt(HOT_NUMBERS)];
+			requests[k] = new Request(number, miss);
+		}
+		
+		// sampler of container occupancy
+		final AtomicLong busySum = new AtomicLong(0);
+		final AtomicLong samples = new AtomicLong(0);
+		final AtomicInteger busyMax = new AtomicInteger(0);
+		final AtomicInteger queueMax = new AtomicInteger(0);
+		final CountDownLatch finished = new CountDownLatch(1);
+		Thread sampler = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (finished.getCount() > 0)
+				{
+					int now = busy.get();
+					busySum.addAndGet(now);
+					samples.incrementAndGet();
+					busyMax.set(Math.max(busyMax.get(), now));
+					queueMax.set(Math.max(queueMax.get(), container.getQueue().size()));
+					sleepNanos(SAMPLE_NANOS);
+				}
+			}
+		});
+		sampler.setDaemon(true);
+		sampler.start();
+		
+		// open-loop arrivals
+		long start = System.nanoTime();
+		long interval = 1000000000L / rate;
+		for (int k = 0; k < total; k++)
+		{
+			long due = start + k * interval;
+			while (System.nanoTime() < due)
+				sleepNanos(Math.min(due - System.nanoTime(), 50000));
+			
+			final Request request = requests[k];
+			request.arrival = due; // measured from the scheduled arrival, so a late generator does not hide queueing
+			container.execute(new Runnable()
+			{
+				public void run()
+				{
+					busy.incrementAndGet();
+					try
+					{
+						request.serve(servlet);
+					}
+					finally
+					{
+						busy.decrementAndGet();
+					}
+				}
+			});
+		}
+		
+		for (Request request : requests)
+			request.done.await();
+		finished.countDown();
+		container.shutdown();
+		
+		long[] hits = latencies(requests, false);
+		long[] misses = latencies(requests, true);
+		int rejected = 0;
+		for (Request request : requests)
+		{
+			if (request.status == HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+				rejected++;
+		}
+		
+		System.out.println(String.format("%-16s %10.2f %10d %10d %12.3f %12.3f %12.3f %12.3f %8d", name,
+			(double) busySum.get() / Math.max(1, samples.get()), busyMax.get(), queueMax.get(), percentile(hits, 0.50) / 1e6,
+			percentile(hits, 0.99) / 1e6, percentile(misses, 0.50) / 1e6, percentile(misses, 0.99) / 1e6, rejected));
+	}
+	
+	/*
+	 * Arrival-to-response latencies of the answered (not rejected) hits or misses, sorted.
+	 */
+	private static long[] latencies(Request[] requests, boolean misses)
+	{
+		long[] latencies = new long[requests.length];
+		int count = 0;
+		for (Request request : requests)
+		{
+			if (request.miss == misses && request.status == HttpServletResponse.SC_OK)
+				latencies[count++] = request.completion - request.arrival;
+		}
+		latencies = Arrays.copyOf(latencies, count);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+	
+	private static long percentile(long[] sorted, double p)
+	{
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+	
+	private static void sleepNanos(long nanos)
+	{
+		if (nanos > 0)
+			LockSupport.parkNanos(nanos);
+	}
+	
+	
+	/*
+	 * One simulated request: a proxy ServletRequest with parameter "n" and startAsync(), a proxy HttpServletResponse that records its
+	 * status, and a proxy AsyncContext whose complete() marks the request answered. A blocking servlet's request is answered when
+	 * service() returns without having started async processing.
+	 */
+	private static final class Request implements InvocationHandler
+	{
+		final BigInteger number;
+		final boolean miss;
+		final CountDownLatch done = new CountDownLatch(1);
+		final ServletRequest request;
+		final ServletResponse response;
+		final AsyncContext context;
+		volatile long arrival;
+		volatile long completion;
+		volatile int status = HttpServletResponse.SC_OK;
+		volatile boolean async;
+		
+		Request(BigInteger number, boolean miss)
+		{
+			this.number = number;
+			this.miss = miss;
+			ClassLoader loader = AsyncOccupancyBenchmark.class.getClassLoader();
+			this.request = (ServletRequest) Proxy.newProxyInstance(loader, new Class<?>[] {ServletRequest.class}, this);
+			this.response = (ServletResponse) Proxy.newProxyInstance(loader, new Class<?>[] {HttpServletResponse.class}, this);
+			this.context = (AsyncContext) Proxy.newProxyInstance(loader, new Class<?>[] {AsyncContext.class}, this);
+		}
+		
+		/*
+		 * Calls service() on the calling thread, which plays the container thread.
+		 */
+		void serve(Servlet servlet)
+		{
+			try
+			{
+				servlet.service(request, response);
+				if (!async)
+					complete();
+			}
+			catch (Exception e)
+			{
+				status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+				complete();
+			}
+		}
+		
+		void complete()
+		{
+			completion = System.nanoTime();
+			done.countDown();
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if (name.equals("getParameter"))
+				return number.toString();
+			if (name.equals("startAsync"))
+			{
+				async = true;
+				return context;
+			}
+			if (name.equals("getResponse"))
+				return response;
+			if (name.equals("getWriter"))
+				return NULL_WRITER;
+			if (name.equals("setStatus"))
+				status = (Integer) args[0];
+			if (name.equals("complete"))
+				complete();
+			if (name.equals("isAsyncStarted"))
+				return async;
+			if (method.getReturnType() == boolean.class)
+				return false;
+			if (method.getReturnType() == long.class)
+				return 0L;
+			if (method.getReturnType() == int.class)
+				return 0;
+			return null;
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package b.threadsafety;
 
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.*;
 import $annotations.*;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.metrics.FactorizerMetrics;
+import b.threadsafety.servlet.RequestNumbers;
 
 
 public class B_Atomicity
@@ -56,22 +59,49 @@ public class B_Atomicity
 	class UnsafeCountingFactorizer implements Servlet
 	{
 		private long count = 0; // NEW
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
 		
 		public long getCount() {return count;} // NEW
 		
-		public void service(ServletRequest request, ServletResponse response)
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			long extracted = System.nanoTime();
 			BigInteger[] factors = factor(i);
 			++count; // NEW
+			long factored = System.nanoTime();
 			encodeIntoResponse(response, factors);
+			long end = System.nanoTime();
+			metrics.recordRequest(end - start, factored - extracted, end - factored);
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
 		}
 
 		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
 		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		
+		// shared factorization engine
+		public BigInteger[] factor(BigInteger i){return FactorEngine.factor(i);}
 		
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -92,29 +122,58 @@ public class B_Atomicity
 	/*
 	 * By replacing the long counter with an <AtomicLong>, we ensure that all actions that access the counter state are atomic.
 	 * Then the class becomes THREAD-SAFE, but only because WE HAVE ONE STATE VARIABLE.
+	 * 
+	 * [At high core counts a single AtomicLong is one cache line that every request thread writes to. The count therefore lives in
+	 * FactorizerMetrics, whose striped counters are just as atomic per update but spread the updates over several cells, and 
+	 * getCount() is served from a snapshot of it.]
 	 */
 	@ThreadSafe
 	class CountingFactorizer implements Servlet
 	{
-		private final AtomicLong count = new AtomicLong(0);
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
 		
 		public long getCount()
 		{
-			return count.get(); // NEW
+			return metrics.snapshot().getRequests(); // NEW
 		}
 		
-		public void service(ServletRequest request, ServletResponse response)
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			long extracted = System.nanoTime();
 			BigInteger[] factors = factor(i);
-			count.incrementAndGet(); // NEW
+			long factored = System.nanoTime();
 			encodeIntoResponse(response, factors);
+			long end = System.nanoTime();
+			metrics.recordRequest(end - start, factored - extracted, end - factored); // NEW
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
 		}
 
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
 		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		
+		// shared factorization engine
+		public BigInteger[] factor(BigInteger i){return FactorEngine.factor(i);}
 
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -132,7 +191,8 @@ public class B_Atomicity
 	 * 
 	 * It is NOT THREAD-SAFE because, in the presence of some unlucky timing, the value of instance might be changed while another
 	 * thread is in mid-update, thus resulting in two different objects being created and returned. This happens because, as before,
-	 * the action has to be atomic, because it deals with a shared, mutable state variable.
+	 * the action has to be atomic, because it deals with a shared, mutable state variable. The safe ways to do it (holder class, double
+	 * checked, retrying) are in b.threadsafety.lazy.Lazy.
 	 */
 	@NotThreadSafe
 	class LazyInitRace
@@ -1,9 +1,21 @@
 package b.threadsafety;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.servlet.*;
 import $annotations.*;
+import b.threadsafety.factoring.Deadline;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+import b.threadsafety.metrics.FactorizerMetrics;
+import b.threadsafety.cache.FactorCache;
+import b.threadsafety.cache.SingleFlight;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.servlet.RequestNumbers;
 
 
 public class C_Locking
@@ -26,33 +38,62 @@ public class C_Locking
 	{
 		private final AtomicReference<BigInteger> lastNumber = new AtomicReference<BigInteger>(); // NEW
 		private final AtomicReference<BigInteger[]> lastFactors = new AtomicReference<BigInteger[]>(); // NEW
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
 		
-		public void service(ServletRequest request, ServletResponse response)
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			long extracted = System.nanoTime();
 			
 			// NEW
 			if (i.equals(lastNumber.get()))
 			{
 				encodeIntoResponse(response, lastFactors.get());
+				long end = System.nanoTime();
+				metrics.recordHit(end - start, end - extracted);
 			}
 			
 			else
 			{
 				BigInteger[] factors = factor(i);
+				long factored = System.nanoTime();
 				encodeIntoResponse(response, factors);
+				long end = System.nanoTime();
+				metrics.recordMiss(end - start, factored - extracted, end - factored);
 				
 				// NEW
 				lastNumber.set(i);
 				lastFactors.set(factors);
 			}
 		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
+		}
 
 		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
 		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		
+		// shared factorization engine
+		public BigInteger[] factor(BigInteger i){return FactorEngine.factor(i);}
 
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -109,31 +150,60 @@ public class C_Locking
 	{
 		@GuardedBy("this") private BigInteger lastNumber;
 		@GuardedBy("this") private BigInteger[] lastFactors;
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
 		
-		public synchronized /* NEW */ void service(ServletRequest request, ServletResponse response)
+		public synchronized /* NEW */ void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
+			long start = System.nanoTime(); // already inside the monitor: the time spent waiting for it is not measured
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			long extracted = System.nanoTime();
 			
 			if (i.equals(lastNumber))
 			{
 				encodeIntoResponse(response, lastFactors);
+				long end = System.nanoTime();
+				metrics.recordHit(end - start, end - extracted);
 			}
 			
 			else
 			{
 				BigInteger[] factors = factor(i);
+				long factored = System.nanoTime();
 				encodeIntoResponse(response, factors);
+				long end = System.nanoTime();
+				metrics.recordMiss(end - start, factored - extracted, end - factored);
 				
 				lastNumber = i;
 				lastFactors = factors;
 			}
 		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
+		}
 
 		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
 		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		
+		// shared factorization engine
+		public BigInteger[] factor(BigInteger i){return FactorEngine.factor(i);}
 
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -217,20 +287,45 @@ public class C_Locking
 	 * the hit counter was reintroduced and a cache hit counter was added as well. Both constitue shared mutable state, so we have to
 	 * use synchronization everywhere they are accessed. The code that is outside of the synchronized blocks operates exclusively on
 	 * local variables.
+	 * 
+	 * Factoring outside the lock keeps a huge number from blocking the other clients, but not from keeping a CPU busy for minutes.
+	 * Each factorization therefore gets a BUDGET (a Deadline, 10 seconds unless setFactorBudget() says otherwise); when it runs out,
+	 * the client gets the factors found so far marked as incomplete, the result is not cached, and the metrics count a timeout.
+	 * 
+	 * The cached factors used to be a BigInteger[], cloned on every hit and on every store, since an array handed out could be
+	 * modified by the caller. They are now an immutable Factors with the primes packed in a long[]: the same instance is stored,
+	 * handed out and shared by coalesced requests, so the lock is held for a reference copy only.
 	 */
 	@ThreadSafe
 	class CachedFactorizer implements Servlet
 	{
+		private static final long DEFAULT_FACTOR_BUDGET_NANOS = 10L * 1000 * 1000 * 1000;
+		
 		@GuardedBy("this") private BigInteger lastNumber;
-		@GuardedBy("this") private BigInteger[] lastFactors;
+		@GuardedBy("this") private Factors lastFactors;
 		@GuardedBy("this") private long hits; // NEW
 		@GuardedBy("this") private long cacheHits; // NEW
+		private final SingleFlight<BigInteger, Factorization> inFlight = new SingleFlight<BigInteger, Factorization>();
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
+		private volatile long factorBudgetNanos = DEFAULT_FACTOR_BUDGET_NANOS;
 		
 		
-		public void service(ServletRequest request, ServletResponse response)
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
 		{
-			BigInteger i = extractFromRequest(request);
-			BigInteger[] factors = null;
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			Factors factors = null;
+			Factorization partial = null;
+			long factorTime = 0;
 			
 			synchronized(this) // NEW
 			{
@@ -240,29 +335,398 @@ public class C_Locking
 				if (i.equals(lastNumber))
 				{
 					cacheHits++;
-					factors = lastFactors.clone();
+					factors = lastFactors;
 				}
 			}
 			
-			if (factors == null)
+			boolean hit = factors != null;
+			if (!hit)
 			{
-				factors = factor(i); // not in synchronized block, expensive
-
-				synchronized(this) // NEW
+				long factorStart = System.nanoTime();
+				Factorization result = factorOnce(i); // not in synchronized block, expensive; concurrent misses for i share one computation
+				factorTime = System.nanoTime() - factorStart;
+				factors = result.getPrimeFactors();
+				
+				if (result.isComplete())
 				{
-					lastNumber = i;
-					lastFactors = factors.clone();
+					synchronized(this) // NEW
+					{
+						lastNumber = i;
+						lastFactors = factors;
+					}
 				}
+				else
+				{
+					partial = result; // out of budget: answered, but never cached
+				}
+			}
+
+			long encodeStart = System.nanoTime();
+			if (partial == null)
+				encodeIntoResponse(response, factors);
+			else
+				encodePartialIntoResponse(response, partial);
+			long end = System.nanoTime();
+			long encodeTime = end - encodeStart;
+			
+			// reported outside the monitor: the striped metrics need no lock
+			if (hit)
+				metrics.recordHit(end - start, encodeTime);
+			else
+				metrics.recordMiss(end - start, factorTime, encodeTime);
+			if (partial != null)
+				metrics.recordTimeout();
+		}
+		
+		/*
+		 * Upper bound on the time one factorization may take before the request is answered with the factors found so far.
+		 */
+		public void setFactorBudget(long budget, TimeUnit unit)
+		{
+			factorBudgetNanos = unit.toNanos(budget);
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
+		}
+		
+		public synchronized long getHits()
+		{
+			return hits;
+		}
+		
+		public synchronized double getCacheHitRatio()
+		{
+			return hits == 0 ? 0 : (double) cacheHits / (double) hits;
+		}
+		
+		public long getComputedRequests()
+		{
+			return inFlight.getComputed();
+		}
+		
+		public long getCoalescedRequests()
+		{
+			return inFlight.getCoalesced();
+		}
+		
+		/*
+		 * Without coalescing, a burst of requests for the same new number would all miss the cache and factor it N times over, since
+		 * factoring happens outside the lock on purpose. The shared result is immutable; the callers that join a computation share
+		 * its budget too.
+		 */
+		private Factorization factorOnce(final BigInteger i)
+		{
+			try
+			{
+				return inFlight.run(i, new Callable<Factorization>()
+				{
+					public Factorization call()
+					{
+						return factor(i, Deadline.after(factorBudgetNanos, TimeUnit.NANOSECONDS));
+					}
+				});
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the factors of " + i, e);
 			}
+		}
 
+		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
+		// mock methods
+		public void encodeIntoResponse(ServletResponse response, Factors factors){}
+		public void encodePartialIntoResponse(ServletResponse response, Factorization partial){}
+		
+		// shared factorization engine
+		public Factorization factor(BigInteger i, Deadline deadline){return FactorEngine.factor(i, deadline);}
+
+		// unimplemented methods from Servlet
+		public void destroy(){}
+		public ServletConfig getServletConfig(){return null;}
+		public String getServletInfo(){return null;}
+		public void init(ServletConfig arg0) throws ServletException{}
+	}
+	
+	
+	/*
+	 * EXAMPLE EXTENDED WITH A BOUNDED, MULTI-ENTRY CACHE
+	 * 
+	 * CachedFactorizer remembers only the last number, so as soon as the clients ask for many distinct numbers its hit rate drops to
+	 * almost zero, while every request still takes the monitor twice. Here the cache is a pluggable FactorCache that holds many entries
+	 * and evicts by size (StripedLruFactorCache by default), and it is THREAD-SAFE ON ITS OWN: each stripe is guarded by its own lock,
+	 * so the servlet itself does not synchronize at all.
+	 * 
+	 * The hits/cacheHits accounting is kept. The counters are no longer part of an invariant with the cached entries, so they live in
+	 * the striped counters of FactorizerMetrics. The price is that the hit ratio is computed from separate reads and may be off by the
+	 * requests that are in flight -- good enough for statistics. Plugging in a SingleSlotFactorCache gives the one-slot behaviour of
+	 * CachedFactorizer, so hit ratios and eviction counts of both can be compared under the same traffic.
+	 * 
+	 * Factorizations have the same budget as in CachedFactorizer, and incomplete ones are kept out of the cache the same way.
+	 */
+	@ThreadSafe
+	class BoundedCachingFactorizer implements Servlet
+	{
+		private static final int DEFAULT_CAPACITY = 4096;
+		private static final long DEFAULT_FACTOR_BUDGET_NANOS = 10L * 1000 * 1000 * 1000;
+		
+		private final FactorCache cache;
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
+		private final SingleFlight<BigInteger, Factorization> inFlight = new SingleFlight<BigInteger, Factorization>();
+		private volatile long factorBudgetNanos = DEFAULT_FACTOR_BUDGET_NANOS;
+		
+		public BoundedCachingFactorizer()
+		{
+			this(new StripedLruFactorCache(DEFAULT_CAPACITY));
+		}
+		
+		public BoundedCachingFactorizer(FactorCache cache)
+		{
+			this.cache = cache;
+		}
+		
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+		{
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			Factors factors = cache.get(i);
+			Factorization partial = null;
+			long factorTime = 0;
+			
+			boolean hit = factors != null;
+			if (!hit)
+			{
+				long factorStart = System.nanoTime();
+				Factorization result = factorOnce(i); // no lock held at all, concurrent misses for i share one computation
+				factorTime = System.nanoTime() - factorStart;
+				factors = result.getPrimeFactors();
+				
+				if (result.isComplete())
+					cache.put(i, factors);
+				else
+					partial = result;
+			}
+			
+			long encodeStart = System.nanoTime();
+			if (partial == null)
+				encodeIntoResponse(response, factors);
+			else
+				encodePartialIntoResponse(response, partial);
+			long end = System.nanoTime();
+			long encodeTime = end - encodeStart;
+			
+			if (hit)
+				metrics.recordHit(end - start, encodeTime);
+			else
+				metrics.recordMiss(end - start, factorTime, encodeTime);
+			if (partial != null)
+				metrics.recordTimeout();
+		}
+		
+		public void setFactorBudget(long budget, TimeUnit unit)
+		{
+			factorBudgetNanos = unit.toNanos(budget);
+		}
+		
+		public long getHits()
+		{
+			return metrics.snapshot().getRequests();
+		}
+		
+		public long getCacheHits()
+		{
+			return metrics.snapshot().getCacheHits();
+		}
+		
+		public double getCacheHitRatio()
+		{
+			return metrics.snapshot().getCacheHitRatio();
+		}
+		
+		public long getEvictions()
+		{
+			return cache.getEvictions();
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
+		}
+		
+		public long getComputedRequests()
+		{
+			return inFlight.getComputed();
+		}
+		
+		public long getCoalescedRequests()
+		{
+			return inFlight.getCoalesced();
+		}
+		
+		private Factorization factorOnce(final BigInteger i)
+		{
+			try
+			{
+				return inFlight.run(i, new Callable<Factorization>()
+				{
+					public Factorization call()
+					{
+						return factor(i, Deadline.after(factorBudgetNanos, TimeUnit.NANOSECONDS));
+					}
+				});
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the factors of " + i, e);
+			}
+		}
+
+		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
+		// mock methods
+		public void encodeIntoResponse(ServletResponse response, Factors factors){}
+		public void encodePartialIntoResponse(ServletResponse response, Factorization partial){}
+		
+		// shared factorization engine
+		public Factorization factor(BigInteger i, Deadline deadline){return FactorEngine.factor(i, deadline);}
+
+		// unimplemented methods from Servlet
+		public void destroy(){}
+		public ServletConfig getServletConfig(){return null;}
+		public String getServletInfo(){return null;}
+		public void init(ServletConfig arg0) throws ServletException{}
+	}
+	
+	
+	/**
+	 * IMMUTABLE SNAPSHOTS INSTEAD OF LOCKS
+	 * ------------------------------------
+	 * 
+	 * The invariant of the one-slot cache ties two variables together: the factors must belong to the number. Instead of guarding both
+	 * with a lock, they can be bundled in an IMMUTABLE holder and replaced as a whole. Publishing the holder through a VOLATILE field
+	 * makes every new snapshot, together with the fields set in its constructor, visible to the threads that read it afterwards.
+	 * 
+	 * ******************************************************************************************************************************
+	 * IMMUTABLE OBJECTS ARE ALWAYS THREAD-SAFE. A VOLATILE REFERENCE TO AN IMMUTABLE HOLDER UPDATES RELATED STATE ATOMICALLY, WITHOUT
+	 * LOCKING: A READER SEES EITHER THE OLD SNAPSHOT OR THE NEW ONE, NEVER A MIX OF THE TWO.
+	 * ******************************************************************************************************************************
+	 * 
+	 */
+	
+	
+	/*
+	 * Immutable (number, factors) pair. The factors are an immutable Factors, so the snapshot stores and hands out the very instance it
+	 * was given: no copy when it is created, none on a hit, and nothing a caller could modify.
+	 */
+	@Immutable
+	class OneValueCache
+	{
+		private final BigInteger lastNumber;
+		private final Factors lastFactors;
+		
+		public OneValueCache(BigInteger number, Factors factors)
+		{
+			lastNumber = number;
+			lastFactors = factors;
+		}
+		
+		public Factors getFactors(BigInteger i)
+		{
+			return (lastNumber == null || !lastNumber.equals(i)) ? null : lastFactors;
+		}
+	}
+	
+	
+	/*
+	 * EXAMPLE THREAD-SAFE WITHOUT ANY LOCK
+	 * 
+	 * Third mode next to SynchonizedFactorizer (the whole service() under the monitor) and CachedFactorizer (the monitor taken twice,
+	 * for a reference to an immutable Factors). A request reads the volatile reference once and works on that snapshot, with no lock
+	 * and no copy; a miss factors the number and publishes a fresh snapshot. Two threads that miss at the same time may both publish,
+	 * and the last one wins -- harmless, since either snapshot is consistent.
+	 */
+	@ThreadSafe
+	class VolatileCachedFactorizer implements Servlet
+	{
+		private volatile OneValueCache cache = new OneValueCache(null, null);
+		private final FactorizerMetrics metrics = new FactorizerMetrics();
+		
+		public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+		{
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				RequestNumbers.badRequestInto(response, e);
+				return;
+			}
+			Factors factors = cache.getFactors(i);
+			long factorTime = 0;
+			
+			boolean hit = factors != null;
+			if (!hit)
+			{
+				long factorStart = System.nanoTime();
+				factors = factor(i);
+				factorTime = System.nanoTime() - factorStart;
+				cache = new OneValueCache(i, factors);
+			}
+			
+			long encodeStart = System.nanoTime();
 			encodeIntoResponse(response, factors);
+			long end = System.nanoTime();
+			long encodeTime = end - encodeStart;
+			
+			if (hit)
+				metrics.recordHit(end - start, encodeTime);
+			else
+				metrics.recordMiss(end - start, factorTime, encodeTime);
+		}
+		
+		public FactorizerMetrics getMetrics()
+		{
+			return metrics;
 		}
 
 		
+		// the number, read and checked as by the servlets of b.threadsafety.servlet
+		public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+		{
+			return RequestNumbers.extract(request, "n");
+		}
+		
 		// mock methods
-		public BigInteger extractFromRequest(ServletRequest request){return null;}
-		public void encodeIntoResponse(ServletResponse response, BigInteger[] factors){}
-		public BigInteger[] factor(BigInteger i){return null;}
+		public void encodeIntoResponse(ServletResponse response, Factors factors){}
+		
+		// shared factorization engine
+		public Factors factor(BigInteger i){return FactorEngine.factors(i);}
 
 		// unimplemented methods from Servlet
 		public void destroy(){}
@@ -0,0 +1,160 @@
+package b.threadsafety;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+
+/*
+ * Contention benchmark for the three one-slot caching modes of C_Locking: SynchonizedFactorizer (service() under the monitor),
+ * CachedFactorizer (monitor taken twice, to share immutable Factors) and VolatileCachedFactorizer (immutable snapshot behind a
+ * volatile reference, no lock, no copy).
+ * 
+ * Each thread calls service() in a loop for a fixed time; the number requested is the hot number with probability HOT_RATIO and one
+ * of a small pool of other numbers otherwise. Reports throughput and the 50th/99th latency percentiles of service() per thread count.
+ * 
+ * Arguments: [max threads, default 64] [seconds per run, default 1]
+ */
+public class CachingModesBenchmark
+{
+	private static final double HOT_RATIO = 0.9;
+	private static final int POOL_SIZE = 64;
+	private static final int MAX_SAMPLES_PER_THREAD = 1 << 16;
+	
+	private static final BigInteger[] POOL = new BigInteger[POOL_SIZE];
+	
+	static
+	{
+		Random random = new Random(11);
+		for (int k = 0; k < POOL_SIZE; k++)
+			POOL[k] = BigInteger.probablePrime(20, random).multiply(BigInteger.probablePrime(21, random));
+	}
+	
+	// per-thread xorshift state, so that picking the next number neither allocates nor contends
+	private static final ThreadLocal<long[]> STATE = new ThreadLocal<long[]>()
+	{
+		protected long[] initialValue()
+		{
+			return new long[] {System.nanoTime() | 1};
+		}
+	};
+	
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		long runNanos = (args.length > 1 ? Long.parseLong(args[1]) : 1) * 1000000000L;
+		
+		C_Locking outer = new C_Locking();
+		
+		System.out.println(String.format("%-26s %8s %14s %10s %10s", "mode", "threads", "requests/s", "p50 (us)", "p99 (us)"));
+		
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			run("SynchonizedFactorizer", outer.new SynchonizedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return next();}
+			}, threads, runNanos);
+			
+			run("CachedFactorizer", outer.new CachedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return next();}
+			}, threads, runNanos);
+			
+			run("VolatileCachedFactorizer", outer.new VolatileCachedFactorizer()
+			{
+				public BigInteger extractFromRequest(ServletRequest request){return next();}
+			}, threads, runNanos);
+		}
+	}
+	
+	private static BigInteger next()
+	{
+		long[] state = STATE.get();
+		long x = state[0];
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		state[0] = x;
+		
+		double uniform = (x >>> 11) * 0x1.0p-53;
+		return uniform < HOT_RATIO ? POOL[0] : POOL[1 + (int) ((x >>> 1) % (POOL_SIZE - 1))];
+	}
+	
+	private static void run(String name, final Servlet servlet, int threads, final long runNanos) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[][] samples = new long[threads][MAX_SAMPLES_PER_THREAD];
+		final int[] counts = new int[threads];
+		final long[] requests = new long[threads];
+		List<Thread> workers = new ArrayList<Thread>();
+		
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			Thread worker = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+						long deadline = System.nanoTime() + runNanos;
+						long[] mine = samples[id];
+						long done = 0;
+						
+						for (long now = System.nanoTime(); now < deadline; )
+						{
+							servlet.service(null, null);
+							long end = System.nanoTime();
+							mine[(int) (done % MAX_SAMPLES_PER_THREAD)] = end - now;
+							done++;
+							now = end;
+						}
+						requests[id] = done;
+						counts[id] = (int) Math.min(done, MAX_SAMPLES_PER_THREAD);
+					}
+					catch (Exception e)
+					{
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join(); // join() makes the workers' writes to the arrays visible here
+		
+		long total = 0;
+		int sampleCount = 0;
+		for (int t = 0; t < threads; t++)
+		{
+			total += requests[t];
+			sampleCount += counts[t];
+		}
+		
+		long[] all = new long[sampleCount];
+		int position = 0;
+		for (int t = 0; t < threads; t++)
+		{
+			System.arraycopy(samples[t], 0, all, position, counts[t]);
+			position += counts[t];
+		}
+		Arrays.sort(all);
+		
+		System.out.println(String.format("%-26s %8d %14.0f %10.2f %10.2f", name, threads, total / (runNanos / 1e9),
+			percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3));
+	}
+	
+	private static long percentile(long[] sorted, double p)
+	{
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+}
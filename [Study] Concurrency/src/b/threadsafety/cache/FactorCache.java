@@ -0,0 +1,28 @@
+package b.threadsafety.cache;
+
+import java.math.BigInteger;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * Pluggable cache of factorization results, keyed by the number that was factored.
+ * 
+ * Implementations must be THREAD-SAFE on their own: the caching servlets call them from many request threads without holding any lock
+ * of their own. The values are immutable Factors, so the cache hands out the very instances it was given, and neither it nor its
+ * callers need to copy them.
+ */
+public interface FactorCache
+{
+	/*
+	 * Returns the cached factors of the number, or null on a miss.
+	 */
+	Factors get(BigInteger number);
+	
+	void put(BigInteger number, Factors factors);
+	
+	int size();
+	
+	/*
+	 * Number of entries dropped so far to make room for new ones.
+	 */
+	long getEvictions();
+}
@@ -0,0 +1,115 @@
+package b.threadsafety.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import $annotations.*;
+
+/*
+ * SINGLE-FLIGHT execution: concurrent requests for the same key share one computation.
+ * 
+ * The first caller for a key installs a FutureTask in a ConcurrentHashMap with putIfAbsent() -- an atomic check-then-act, so two
+ * threads can never both become the owner -- and runs it in its own thread. Callers arriving while it runs find the Future and block on
+ * it instead of repeating the work. When the computation ends the entry is removed again: this class only coalesces work IN FLIGHT,
+ * keeping results is the job of the cache in front of it.
+ * 
+ * A failed or cancelled computation is removed as well, so it does not poison the key: the callers that were waiting on it see the
+ * failure (or, if it was cancelled, try again), and the next caller starts a fresh computation.
+ */
+@ThreadSafe
+public class SingleFlight<K, V>
+{
+	private final ConcurrentMap<K, Future<V>> inFlight = new ConcurrentHashMap<K, Future<V>>();
+	private final AtomicLong computed = new AtomicLong(0);
+	private final AtomicLong coalesced = new AtomicLong(0);
+	
+	
+	/*
+	 * Returns the result of the computation for key, running it in the calling thread unless the same key is already being computed,
+	 * in which case the caller waits for that result instead. Exceptions thrown by the computation are rethrown unchecked.
+	 */
+	public V run(K key, Callable<V> computation) throws InterruptedException
+	{
+		while (true)
+		{
+			Future<V> future = inFlight.get(key);
+			boolean owner = false;
+			
+			if (future == null)
+			{
+				FutureTask<V> task = new FutureTask<V>(computation);
+				future = inFlight.putIfAbsent(key, task);
+				
+				if (future == null)
+				{
+					future = task;
+					owner = true;
+					computed.incrementAndGet();
+					task.run();
+				}
+			}
+			
+			if (!owner)
+				coalesced.incrementAndGet();
+			
+			try
+			{
+				return future.get();
+			}
+			catch (CancellationException e)
+			{
+				inFlight.remove(key, future); // retry with a fresh computation
+			}
+			catch (ExecutionException e)
+			{
+				inFlight.remove(key, future);
+				throw launderThrowable(e.getCause());
+			}
+			finally
+			{
+				if (owner)
+					inFlight.remove(key, future);
+			}
+		}
+	}
+	
+	/*
+	 * Cancels the computation in flight for key, if any. Its waiters retry.
+	 */
+	public boolean cancel(K key)
+	{
+		Future<V> future = inFlight.remove(key);
+		return future != null && future.cancel(true);
+	}
+	
+	/*
+	 * Number of computations actually run.
+	 */
+	public long getComputed()
+	{
+		return computed.get();
+	}
+	
+	/*
+	 * Number of calls that joined a computation already in flight instead of running their own.
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+	
+	
+	private static RuntimeException launderThrowable(Throwable t)
+	{
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		return new IllegalStateException("Computation failed", t);
+	}
+}
@@ -0,0 +1,42 @@
+package b.threadsafety.cache;
+
+import java.math.BigInteger;
+import $annotations.*;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * The cache of C_Locking.CachedFactorizer, extracted behind the FactorCache interface: it remembers only the last number and its
+ * factors. Both are guarded by the same intrinsic lock because they take part in the same invariant. Every put() of a different number
+ * counts as an eviction, which is what makes the hit rate collapse once the clients ask for many distinct numbers.
+ */
+@ThreadSafe
+public class SingleSlotFactorCache implements FactorCache
+{
+	@GuardedBy("this") private BigInteger lastNumber;
+	@GuardedBy("this") private Factors lastFactors;
+	@GuardedBy("this") private long evictions;
+	
+	public synchronized Factors get(BigInteger number)
+	{
+		return number.equals(lastNumber) ? lastFactors : null;
+	}
+	
+	public synchronized void put(BigInteger number, Factors factors)
+	{
+		if (lastNumber != null && !lastNumber.equals(number))
+			evictions++;
+		
+		lastNumber = number;
+		lastFactors = factors;
+	}
+	
+	public synchronized int size()
+	{
+		return lastNumber == null ? 0 : 1;
+	}
+	
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+}
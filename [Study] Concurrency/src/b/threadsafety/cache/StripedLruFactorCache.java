@@ -0,0 +1,136 @@
+package b.threadsafety.cache;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import $annotations.*;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * Bounded, multi-entry cache with LRU eviction and LOCK STRIPING.
+ * 
+ * A single access-ordered LinkedHashMap would have to be locked on every get(), since a get() reorders the entries, and all request
+ * threads would serialize on that one lock. Instead, the keys are spread over a power-of-two number of independent segments, each an
+ * access-ordered LinkedHashMap guarded by its own intrinsic lock and holding an equal share of the capacity. Two threads only contend
+ * when their numbers hash to the same segment, and the lock is held just for the map operation, never while factoring.
+ * 
+ * Eviction is LRU per segment, so the entry dropped is the least recently used one of its segment, not necessarily of the whole cache.
+ */
+@ThreadSafe
+public class StripedLruFactorCache implements FactorCache
+{
+	private static final int DEFAULT_SEGMENTS = 16;
+	
+	private final Segment[] segments;
+	private final int mask;
+	
+	public StripedLruFactorCache(int capacity)
+	{
+		this(capacity, DEFAULT_SEGMENTS);
+	}
+	
+	public StripedLruFactorCache(int capacity, int concurrencyLevel)
+	{
+		if (capacity <= 0 || concurrencyLevel <= 0)
+			throw new IllegalArgumentException("capacity and concurrencyLevel must be positive");
+		
+		// a power of two, and no more segments than entries: a segment without capacity would evict everything put into it
+		int count = 1;
+		while (count < concurrencyLevel && count <= capacity / 2)
+			count <<= 1;
+		
+		segments = new Segment[count];
+		mask = count - 1;
+		
+		// spread the capacity so that the segments add up to exactly the requested total
+		for (int s = 0; s < count; s++)
+			segments[s] = new Segment(capacity / count + (s < capacity % count ? 1 : 0));
+	}
+	
+	public Factors get(BigInteger number)
+	{
+		Segment segment = segmentFor(number);
+		
+		synchronized (segment)
+		{
+			return segment.get(number);
+		}
+	}
+	
+	public void put(BigInteger number, Factors factors)
+	{
+		Segment segment = segmentFor(number);
+		
+		synchronized (segment)
+		{
+			segment.put(number, factors);
+		}
+	}
+	
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	public long getEvictions()
+	{
+		long evictions = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+	
+	private Segment segmentFor(BigInteger number)
+	{
+		// BigInteger hash codes of small values are poorly distributed in the low bits, so mix the high bits in
+		int h = number.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return segments[h & mask];
+	}
+	
+	
+	/*
+	 * One stripe of the cache: an access-ordered map that drops its eldest entry once it grows past its share of the capacity. All
+	 * access happens while holding the segment's own intrinsic lock.
+	 */
+	@NotThreadSafe
+	private static final class Segment extends LinkedHashMap<BigInteger, Factors>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		private long evictions;
+		
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BigInteger, Factors> eldest)
+		{
+			if (size() > capacity)
+			{
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package b.threadsafety.factoring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import $annotations.*;
+
+/*
+ * Point in time after which a factorization should give up, checked COOPERATIVELY by the factoring loops.
+ * 
+ * isExpired() costs one System.nanoTime() call (a few tens of nanoseconds), so the rho loops call it once per batch of steps, not per
+ * step: the time by which a factorization overruns its deadline is one batch, well below a millisecond. A bounded deadline also counts
+ * as expired when the calling thread has been interrupted, so cancelling a Future that is factoring with cancel(true) stops the work
+ * at the next check too. NONE never expires and ignores interrupts, which is how the engine behaved before deadlines existed.
+ * 
+ * Inside the package a deadline can also be tied to a stop flag (orWhen), so that racing rho walks give up as soon as one of them has
+ * found a divisor. The flag is shared and mutable, but a Deadline never changes which flag it watches.
+ */
+@Immutable
+public final class Deadline
+{
+	public static final Deadline NONE = new Deadline(0, false, null);
+	
+	private final long expiresAt;
+	private final boolean bounded;
+	private final AtomicBoolean stop;
+	
+	private Deadline(long expiresAt, boolean bounded, AtomicBoolean stop)
+	{
+		this.expiresAt = expiresAt;
+		this.bounded = bounded;
+		this.stop = stop;
+	}
+	
+	public static Deadline after(long duration, TimeUnit unit)
+	{
+		return new Deadline(System.nanoTime() + unit.toNanos(duration), true, null);
+	}
+	
+	public boolean isExpired()
+	{
+		if (stop != null && stop.get())
+			return true;
+		return bounded && (System.nanoTime() - expiresAt >= 0 || Thread.currentThread().isInterrupted());
+	}
+	
+	/*
+	 * This deadline, but also expired as soon as stop is set.
+	 */
+	Deadline orWhen(AtomicBoolean stop)
+	{
+		return new Deadline(expiresAt, bounded, stop);
+	}
+	
+	/*
+	 * Time left, never negative; Long.MAX_VALUE for NONE.
+	 */
+	public long remaining(TimeUnit unit)
+	{
+		if (!bounded)
+			return Long.MAX_VALUE;
+		return unit.convert(Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+}
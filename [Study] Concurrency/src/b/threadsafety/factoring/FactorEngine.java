@@ -0,0 +1,553 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import $annotations.*;
+
+/*
+ * Shared factorization engine behind the factor(BigInteger) method of every factorizer servlet in b.threadsafety.
+ * 
+ * Strategy: a primality test first (see Primality), so that primes return right away; then trial division by the primes below
+ * TRIAL_BOUND, and Pollard's rho in Brent's variant to split what is left, recursing on both parts until every part is proven prime.
+ * Apart from the optional sieve, the engine is STATELESS (only immutable static tables), so it is thread-safe and can be called
+ * concurrently from any number of request threads without synchronization.
+ * 
+ * Optionally, a SmallestPrimeFactorSieve can be installed with useSieve(); inputs below its bound are then factored by table lookups
+ * alone. The sieve is published through a volatile field, so request threads see a fully built table or none at all.
+ * 
+ * Inputs below 2^63 take a PRIMITIVE LONG PATH: trial division, primality tests and rho all work on longs and the factors are collected
+ * in a caller-supplied long[], so factoring allocates nothing. Only wider inputs are handled with BigInteger arithmetic, and as soon as a
+ * cofactor drops below 2^63 it continues on the long path.
+ * 
+ * Wide inputs can take arbitrarily long (a product of two 64-bit primes needs around 2^32 rho steps), so factor(n, deadline) bounds the
+ * work: the rho loops check the Deadline once per batch, and a part that is still composite when it expires is returned unfactored in
+ * an incomplete Factorization. The long path is never interrupted, as below 2^63 rho needs at most a few milliseconds.
+ * 
+ * With a ParallelFactorEngine installed (useParallel), factor(n, deadline) hands inputs of ParallelFactorEngine.MIN_BITS and more to
+ * it, and they are split by several rho walks racing on a ForkJoinPool instead of one walk on the calling thread.
+ */
+@ThreadSafe
+public final class FactorEngine
+{
+	/*
+	 * A value below 2^63 has at most 62 prime factors (counted with multiplicity), so this is enough room for the long path.
+	 */
+	public static final int MAX_LONG_FACTORS = 63;
+	
+	private static final int TRIAL_BOUND = 1 << 12;
+	private static final int[] SMALL_PRIMES = primesBelow(TRIAL_BOUND);
+	private static final long TRIAL_BOUND_SQUARED = (long) TRIAL_BOUND * TRIAL_BOUND;
+	
+	// every product of a group of consecutive small primes fits in a long, so a BigInteger is reduced once per group, not per prime
+	private static final long[] PRIME_GROUP_PRODUCTS;
+	private static final int[] PRIME_GROUP_ENDS;
+	
+	private static final int BRENT_BATCH = 128;
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+	
+	static
+	{
+		List<Long> products = new ArrayList<Long>();
+		List<Integer> ends = new ArrayList<Integer>();
+		long product = 1;
+		
+		for (int k = 0; k < SMALL_PRIMES.length; k++)
+		{
+			if (product > Long.MAX_VALUE / SMALL_PRIMES[k])
+			{
+				products.add(product);
+				ends.add(k);
+				product = 1;
+			}
+			product *= SMALL_PRIMES[k];
+		}
+		products.add(product);
+		ends.add(SMALL_PRIMES.length);
+		
+		PRIME_GROUP_PRODUCTS = new long[products.size()];
+		PRIME_GROUP_ENDS = new int[ends.size()];
+		for (int g = 0; g < PRIME_GROUP_PRODUCTS.length; g++)
+		{
+			PRIME_GROUP_PRODUCTS[g] = products.get(g);
+			PRIME_GROUP_ENDS[g] = ends.get(g);
+		}
+	}
+	
+	private static volatile SmallestPrimeFactorSieve sieve;
+	private static volatile ParallelFactorEngine parallel;
+	
+	private FactorEngine() {}
+	
+	
+	/*
+	 * Installs the sieve used for inputs below its bound, or removes it when null.
+	 */
+	public static void useSieve(SmallestPrimeFactorSieve sieve)
+	{
+		FactorEngine.sieve = sieve;
+	}
+	
+	/*
+	 * Installs the fork/join engine that factor(n, deadline) hands inputs of ParallelFactorEngine.MIN_BITS and more to, or removes it
+	 * when null. Every factorizer goes through this class, so this switches all of them to the parallel mode at once.
+	 */
+	public static void useParallel(ParallelFactorEngine engine)
+	{
+		FactorEngine.parallel = engine;
+	}
+	
+	
+	/*
+	 * Returns the prime factors of n (n >= 1), in ascending order and repeated according to their multiplicity. The factorization of
+	 * 1 is the empty array.
+	 */
+	public static BigInteger[] factor(BigInteger n)
+	{
+		if (n.signum() <= 0)
+			throw new IllegalArgumentException("Can only factor positive numbers: " + n);
+		
+		if (n.bitLength() < 64)
+		{
+			long[] buffer = new long[MAX_LONG_FACTORS];
+			int count = factor(n.longValue(), buffer);
+			
+			BigInteger[] factors = new BigInteger[count];
+			for (int k = 0; k < count; k++)
+				factors[k] = BigInteger.valueOf(buffer[k]);
+			return factors;
+		}
+		
+		return factor(n, Deadline.NONE).getFactors();
+	}
+	
+	/*
+	 * As factor(n), as packed Factors. Below 2^63 the factors go from the long path straight into the packed form, with no BigInteger
+	 * in between.
+	 */
+	public static Factors factors(BigInteger n)
+	{
+		if (n.signum() <= 0)
+			throw new IllegalArgumentException("Can only factor positive numbers: " + n);
+		
+		if (n.bitLength() < 64)
+		{
+			long[] buffer = new long[MAX_LONG_FACTORS];
+			return Factors.ofSorted(buffer, factor(n.longValue(), buffer));
+		}
+		
+		return factor(n, Deadline.NONE).getPrimeFactors();
+	}
+	
+	/*
+	 * As factor(n), but gives up on the parts not yet split when the deadline expires; the result then says it is incomplete and lists
+	 * those parts. With Deadline.NONE the result is always complete.
+	 */
+	public static Factorization factor(BigInteger n, Deadline deadline)
+	{
+		return factor(n, deadline, FactorSink.NONE);
+	}
+	
+	/*
+	 * As factor(n, deadline), and tells sink about every prime factor as soon as it is proven (see FactorSink). The factors of inputs
+	 * below 2^63 are all found within milliseconds, and are passed on together at the end.
+	 */
+	public static Factorization factor(BigInteger n, Deadline deadline, FactorSink sink)
+	{
+		if (n.signum() <= 0)
+			throw new IllegalArgumentException("Can only factor positive numbers: " + n);
+		
+		if (n.bitLength() < 64)
+		{
+			BigInteger[] factors = factor(n); // the long path, a few milliseconds at most
+			for (BigInteger factor : factors)
+				sink.found(factor);
+			return Factorization.complete(factors);
+		}
+		
+		ParallelFactorEngine engine = parallel;
+		if (engine != null && n.bitLength() >= ParallelFactorEngine.MIN_BITS)
+			return engine.factor(n, deadline, sink);
+		
+		List<BigInteger> factors = new ArrayList<BigInteger>();
+		List<BigInteger> unfactored = new ArrayList<BigInteger>();
+		
+		if (Primality.isPrime(n))
+		{
+			found(n, factors, sink);
+		}
+		else
+		{
+			n = trialDivide(n, factors, sink);
+			factorBig(n, factors, unfactored, deadline, sink);
+		}
+		return new Factorization(factors, unfactored);
+	}
+	
+	/*
+	 * Long path: writes the prime factors of n (n >= 1) into out, in ascending order, and returns how many there are. Allocates
+	 * nothing; out needs room for MAX_LONG_FACTORS values.
+	 */
+	public static int factor(long n, long[] out)
+	{
+		if (n <= 0)
+			throw new IllegalArgumentException("Can only factor positive numbers: " + n);
+		
+		SmallestPrimeFactorSieve table = sieve;
+		if (table != null && n < table.getBound())
+			return table.factor(n, out);
+		
+		if (n >= TRIAL_BOUND && Primality.isPrime(n))
+		{
+			out[0] = n;
+			return 1;
+		}
+		
+		int count = 0;
+		
+		int zeros = Long.numberOfTrailingZeros(n);
+		for (int k = 0; k < zeros; k++)
+			out[count++] = 2;
+		n >>= zeros;
+		
+		boolean provenPrime = false;
+		for (int k = 1; k < SMALL_PRIMES.length && !provenPrime; k++)
+		{
+			int p = SMALL_PRIMES[k];
+			if ((long) p * p > n)
+				break;
+			
+			if (n % p != 0)
+				continue;
+			
+			do
+			{
+				out[count++] = p;
+				n /= p;
+			}
+			while (n % p == 0);
+			
+			// stop as soon as the cofactor is proven prime, instead of dividing it by the remaining small primes
+			provenPrime = n >= TRIAL_BOUND_SQUARED && Primality.isPrime(n);
+		}
+		
+		if (provenPrime)
+			out[count++] = n;
+		else if (n > 1)
+			count = factorLarge(n, out, count);
+		
+		Arrays.sort(out, 0, count);
+		return count;
+	}
+	
+	/*
+	 * Convenience form of the long path, for callers that do not keep a buffer around.
+	 */
+	public static long[] factor(long n)
+	{
+		long[] buffer = new long[MAX_LONG_FACTORS];
+		return Arrays.copyOf(buffer, factor(n, buffer));
+	}
+	
+	
+	/*
+	 * n has no prime factor below the last trial prime it was divided by, and is odd.
+	 */
+	private static int factorLarge(long n, long[] out, int count)
+	{
+		if (n < TRIAL_BOUND_SQUARED || Primality.isPrime(n))
+		{
+			out[count++] = n;
+			return count;
+		}
+		
+		long d = rho(n);
+		count = factorLarge(d, out, count);
+		return factorLarge(n / d, out, count);
+	}
+	
+	static void factorBig(BigInteger n, List<BigInteger> factors, List<BigInteger> unfactored, Deadline deadline, FactorSink sink)
+	{
+		if (n.equals(BigInteger.ONE))
+			return;
+		
+		if (n.bitLength() < 64)
+		{
+			long[] buffer = new long[MAX_LONG_FACTORS];
+			int count = factorLarge(n.longValue(), buffer, 0);
+			for (int k = 0; k < count; k++)
+				found(BigInteger.valueOf(buffer[k]), factors, sink);
+			return;
+		}
+		
+		if (Primality.isPrime(n))
+		{
+			found(n, factors, sink);
+			return;
+		}
+		
+		sink.searching();
+		BigInteger d = rho(n, 1, 1, deadline);
+		if (d == null)
+		{
+			unfactored.add(n); // out of time
+			return;
+		}
+		
+		factorBig(d, factors, unfactored, deadline, sink);
+		factorBig(n.divide(d), factors, unfactored, deadline, sink);
+	}
+	
+	static BigInteger trialDivide(BigInteger n, List<BigInteger> factors, FactorSink sink)
+	{
+		int start = 0;
+		for (int g = 0; g < PRIME_GROUP_PRODUCTS.length; g++)
+		{
+			long residue = n.mod(BigInteger.valueOf(PRIME_GROUP_PRODUCTS[g])).longValue();
+			
+			for (int k = start; k < PRIME_GROUP_ENDS[g]; k++)
+			{
+				int p = SMALL_PRIMES[k];
+				if (residue % p != 0)
+					continue;
+				
+				BigInteger prime = BigInteger.valueOf(p);
+				BigInteger[] qr = n.divideAndRemainder(prime);
+				while (qr[1].signum() == 0)
+				{
+					found(prime, factors, sink);
+					n = qr[0];
+					qr = n.divideAndRemainder(prime);
+				}
+			}
+			start = PRIME_GROUP_ENDS[g];
+		}
+		return n;
+	}
+	
+	private static void found(BigInteger prime, List<BigInteger> factors, FactorSink sink)
+	{
+		factors.add(prime);
+		sink.found(prime);
+	}
+	
+	
+	/*
+	 * Pollard's rho, Brent's variant: returns a non-trivial divisor of the odd composite n. The differences |x - y| are multiplied
+	 * together and the gcd is taken once per batch; if a batch overshoots (the gcd becomes n) the batch is replayed one step at a time,
+	 * and if that still only finds n the polynomial constant is changed.
+	 * 
+	 * The sequence is iterated in Montgomery form (see Montgomery64), which only changes which pseudo-random sequence is walked, not
+	 * the gcds found along it.
+	 */
+	private static long rho(long n)
+	{
+		long nInverse = Montgomery64.inverse(n);
+		
+		for (long c = 1; ; c++)
+		{
+			long x = 0;
+			long y = 2;
+			long ys = 2;
+			long q = 1;
+			long g = 1;
+			
+			for (int r = 1; g == 1; r <<= 1)
+			{
+				x = y;
+				for (int i = 0; i < r; i++)
+					y = LongMath.addMod(Montgomery64.multiply(y, y, n, nInverse), c, n);
+				
+				for (int k = 0; k < r && g == 1; k += BRENT_BATCH)
+				{
+					ys = y;
+					int steps = Math.min(BRENT_BATCH, r - k);
+					for (int i = 0; i < steps; i++)
+					{
+						y = LongMath.addMod(Montgomery64.multiply(y, y, n, nInverse), c, n);
+						q = Montgomery64.multiply(q, Math.abs(x - y), n, nInverse);
+					}
+					g = LongMath.gcd(q, n);
+				}
+			}
+			
+			if (g == n)
+			{
+				do
+				{
+					ys = LongMath.addMod(Montgomery64.multiply(ys, ys, n, nInverse), c, n);
+					g = LongMath.gcd(Math.abs(x - ys), n);
+				}
+				while (g == 1);
+			}
+			
+			if (g != n)
+				return g;
+		}
+	}
+	
+	/*
+	 * Rho for odd composites of 64 bits and more: returns a non-trivial divisor of n, or null if the deadline expires first. The
+	 * polynomial constants tried are firstC, firstC + cStep, firstC + 2 * cStep, ..., so walks with the same cStep and different firstC
+	 * never repeat each other's work, which lets several of them race on different threads.
+	 */
+	static BigInteger rho(BigInteger n, long firstC, long cStep, Deadline deadline)
+	{
+		return n.bitLength() <= 128 ? rho128(n, firstC, cStep, deadline) : rhoBig(n, firstC, cStep, deadline);
+	}
+	
+	/*
+	 * The same walk for odd composites of up to 128 bits, on (hi, lo) pairs of longs with Montgomery128 as scratch space: no BigInteger
+	 * is created until a divisor has been found. Returns null if the deadline expires first; it is checked once per BRENT_BATCH steps.
+	 */
+	private static BigInteger rho128(BigInteger n, long firstC, long cStep, Deadline deadline)
+	{
+		Montgomery128 mont = new Montgomery128(n);
+		
+		for (long c = firstC; ; c += cStep)
+		{
+			long xHi = 0, xLo = 0;
+			long yHi = 0, yLo = 2;
+			long ysHi = 0, ysLo = 2;
+			long qHi = 0, qLo = 1;
+			long gHi = 0, gLo = 1;
+			
+			for (int r = 1; gHi == 0 && gLo == 1; r <<= 1)
+			{
+				xHi = yHi;
+				xLo = yLo;
+				for (int i = 0; i < r; i++)
+				{
+					if (i % BRENT_BATCH == 0 && deadline.isExpired())
+						return null;
+					
+					mont.multiply(yHi, yLo, yHi, yLo);
+					mont.add(mont.hi, mont.lo, 0, c);
+					yHi = mont.hi;
+					yLo = mont.lo;
+				}
+				
+				for (int k = 0; k < r && gHi == 0 && gLo == 1; k += BRENT_BATCH)
+				{
+					ysHi = yHi;
+					ysLo = yLo;
+					int steps = Math.min(BRENT_BATCH, r - k);
+					for (int i = 0; i < steps; i++)
+					{
+						mont.multiply(yHi, yLo, yHi, yLo);
+						mont.add(mont.hi, mont.lo, 0, c);
+						yHi = mont.hi;
+						yLo = mont.lo;
+						
+						mont.absDifference(xHi, xLo, yHi, yLo);
+						mont.multiply(qHi, qLo, mont.hi, mont.lo);
+						qHi = mont.hi;
+						qLo = mont.lo;
+					}
+					mont.gcdWithModulus(qHi, qLo);
+					gHi = mont.hi;
+					gLo = mont.lo;
+					
+					if (gHi == 0 && gLo == 1 && deadline.isExpired())
+						return null;
+				}
+			}
+			
+			if (gHi == mont.nHi && gLo == mont.nLo)
+			{
+				do
+				{
+					mont.multiply(ysHi, ysLo, ysHi, ysLo);
+					mont.add(mont.hi, mont.lo, 0, c);
+					ysHi = mont.hi;
+					ysLo = mont.lo;
+					
+					mont.absDifference(xHi, xLo, ysHi, ysLo);
+					mont.gcdWithModulus(mont.hi, mont.lo);
+					gHi = mont.hi;
+					gLo = mont.lo;
+				}
+				while (gHi == 0 && gLo == 1);
+			}
+			
+			if (gHi != mont.nHi || gLo != mont.nLo)
+				return mont.toBigInteger(gHi, gLo);
+		}
+	}
+	
+	/*
+	 * The same walk in BigInteger arithmetic, for composites wider than 128 bits. Returns null if the deadline expires first.
+	 */
+	private static BigInteger rhoBig(BigInteger n, long firstC, long cStep, Deadline deadline)
+	{
+		BigInteger step = BigInteger.valueOf(cStep);
+		for (BigInteger c = BigInteger.valueOf(firstC); ; c = c.add(step))
+		{
+			BigInteger x = BigInteger.ZERO;
+			BigInteger y = TWO;
+			BigInteger ys = TWO;
+			BigInteger q = BigInteger.ONE;
+			BigInteger g = BigInteger.ONE;
+			
+			for (int r = 1; g.equals(BigInteger.ONE); r <<= 1)
+			{
+				x = y;
+				for (int i = 0; i < r; i++)
+				{
+					if (i % BRENT_BATCH == 0 && deadline.isExpired())
+						return null;
+					
+					y = y.multiply(y).add(c).mod(n);
+				}
+				
+				for (int k = 0; k < r && g.equals(BigInteger.ONE); k += BRENT_BATCH)
+				{
+					ys = y;
+					int steps = Math.min(BRENT_BATCH, r - k);
+					for (int i = 0; i < steps; i++)
+					{
+						y = y.multiply(y).add(c).mod(n);
+						q = q.multiply(x.subtract(y).abs()).mod(n);
+					}
+					g = q.gcd(n);
+					
+					if (g.equals(BigInteger.ONE) && deadline.isExpired())
+						return null;
+				}
+			}
+			
+			if (g.equals(n))
+			{
+				do
+				{
+					ys = ys.multiply(ys).add(c).mod(n);
+					g = x.subtract(ys).abs().gcd(n);
+				}
+				while (g.equals(BigInteger.ONE));
+			}
+			
+			if (!g.equals(n))
+				return g;
+		}
+	}
+	
+	
+	private static int[] primesBelow(int bound)
+	{
+		boolean[] composite = new boolean[bound];
+		int[] primes = new int[bound];
+		int count = 0;
+		
+		for (int i = 2; i < bound; i++)
+		{
+			if (composite[i])
+				continue;
+			
+			primes[count++] = i;
+			for (long j = (long) i * i; j < bound; j += i)
+				composite[(int) j] = true;
+		}
+		return Arrays.copyOf(primes, count);
+	}
+}
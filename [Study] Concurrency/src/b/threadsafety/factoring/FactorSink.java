@@ -0,0 +1,29 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+
+/*
+ * Told about the prime factors of a number WHILE it is being factored (FactorEngine.factor(n, deadline, sink)), so that they can be
+ * passed on before the whole factorization is known.
+ * 
+ * found() is called once per prime factor, repeated according to multiplicity, as soon as the factor is proven prime: in the order
+ * they are found, which is not ascending. searching() is called before the engine starts a search that may take long (a rho walk on a
+ * wide part), so a sink that buffers knows when to push out what it has. With a ParallelFactorEngine installed both may be called from
+ * several worker threads at once, so implementations must be thread-safe.
+ */
+public interface FactorSink
+{
+	/*
+	 * Ignores everything; the sink of the factor methods that do not take one.
+	 */
+	FactorSink NONE = new FactorSink()
+	{
+		public void found(BigInteger prime) {}
+		
+		public void searching() {}
+	};
+	
+	void found(BigInteger prime);
+	
+	void searching();
+}
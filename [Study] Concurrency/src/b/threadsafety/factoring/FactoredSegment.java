@@ -0,0 +1,71 @@
+package b.threadsafety.factoring;
+
+import $annotations.*;
+
+/*
+ * The factorizations of a run of consecutive numbers first, first + 1, ..., first + size() - 1, as produced by RangeSieve.
+ * 
+ * Compact primitive layout: all prime factors, number after number, in one long[], and for each number the end of its run in an int[]
+ * (the factors of first + i are factors[ends[i - 1]] to factors[ends[i] - 1]). A number costs 4 bytes plus 8 per prime factor, with
+ * no object per number or per factor -- a BigInteger[] per number costs well over a hundred bytes for the same information.
+ * 
+ * Immutable: the arrays are filled before the segment is handed out and never written again, and they are not exposed.
+ */
+@Immutable
+public final class FactoredSegment
+{
+	private final long first;
+	private final int[] ends;
+	private final long[] factors;
+	
+	FactoredSegment(long first, int[] ends, long[] factors)
+	{
+		this.first = first;
+		this.ends = ends;
+		this.factors = factors;
+	}
+	
+	public long getFirst()
+	{
+		return first;
+	}
+	
+	public int size()
+	{
+		return ends.length;
+	}
+	
+	public long getNumber(int i)
+	{
+		return first + i;
+	}
+	
+	public int factorCount(int i)
+	{
+		return ends[i] - start(i);
+	}
+	
+	/*
+	 * The k-th prime factor of first + i, in ascending order and repeated according to multiplicity.
+	 */
+	public long factor(int i, int k)
+	{
+		return factors[start(i) + k];
+	}
+	
+	/*
+	 * Copies the prime factors of first + i into out, which needs room for FactorEngine.MAX_LONG_FACTORS values, and returns how many
+	 * there are.
+	 */
+	public int factors(int i, long[] out)
+	{
+		int start = start(i);
+		System.arraycopy(factors, start, out, 0, ends[i] - start);
+		return ends[i] - start;
+	}
+	
+	private int start(int i)
+	{
+		return i == 0 ? 0 : ends[i - 1];
+	}
+}
@@ -0,0 +1,85 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import $annotations.*;
+
+/*
+ * Result of a factorization that may have run out of time: the prime factors found, and the composite parts that could not be split
+ * before the deadline. The product of both is always the number that was factored. A COMPLETE factorization has no unfactored parts.
+ * 
+ * Immutable: the factors are kept as packed Factors, which can be shared as they are; the arrays are copied on the way out.
+ */
+@Immutable
+public final class Factorization
+{
+	private static final BigInteger[] NONE = new BigInteger[0];
+	
+	private final Factors factors;
+	private final BigInteger[] unfactored;
+	
+	Factorization(List<BigInteger> factors, List<BigInteger> unfactored)
+	{
+		BigInteger[] sorted = factors.toArray(new BigInteger[factors.size()]);
+		Arrays.sort(sorted);
+		this.factors = Factors.ofSorted(sorted);
+		this.unfactored = unfactored.isEmpty() ? NONE : unfactored.toArray(new BigInteger[unfactored.size()]);
+		Arrays.sort(this.unfactored);
+	}
+	
+	private Factorization(Factors factors)
+	{
+		this.factors = factors;
+		this.unfactored = NONE;
+	}
+	
+	public static Factorization complete(BigInteger[] factors)
+	{
+		return new Factorization(Arrays.asList(factors), Arrays.<BigInteger>asList());
+	}
+	
+	/*
+	 * The complete factorization with the given factors, such as a cached one; shares them, as getPrimeFactors does.
+	 */
+	public static Factorization complete(Factors factors)
+	{
+		return new Factorization(factors);
+	}
+	
+	/*
+	 * The prime factors found, in ascending order and repeated according to their multiplicity.
+	 */
+	public BigInteger[] getFactors()
+	{
+		return factors.toArray();
+	}
+	
+	/*
+	 * The prime factors found, as (prime, exponent) pairs; shared, not copied.
+	 */
+	public Factors getPrimeFactors()
+	{
+		return factors;
+	}
+	
+	/*
+	 * The composite parts left when the deadline expired, in ascending order; empty if the factorization is complete.
+	 */
+	public BigInteger[] getUnfactored()
+	{
+		return unfactored.clone();
+	}
+	
+	public boolean isComplete()
+	{
+		return unfactored.length == 0;
+	}
+	
+	@Override
+	public String toString()
+	{
+		String primes = factors.toString();
+		return isComplete() ? primes : primes + " incomplete, unfactored " + Arrays.toString(unfactored);
+	}
+}
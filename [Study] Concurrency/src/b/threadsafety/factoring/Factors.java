@@ -0,0 +1,210 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import $annotations.*;
+
+/*
+ * The prime factorization of a number as (prime, exponent) pairs, in ascending order of the primes -- the form the caches keep and
+ * the servlets encode.
+ * 
+ * A BigInteger[] with every prime repeated by its multiplicity is mutable, so whoever shares one has to copy it: CachedFactorizer
+ * cloned its array on every hit and on every store. It is also big: a BigInteger and its int[] are some 60 bytes for a single prime,
+ * plus a reference per repetition. Here the primes below 2^63, which is nearly all of them, are PACKED into one long[], prime and
+ * exponent side by side, 16 bytes per distinct prime with no object per factor; only primes of 63 bits and more fall back to a
+ * BigInteger each, kept after the packed ones since they are larger, with their exponents at the end of the long[].
+ * 
+ * Immutable: the arrays are filled in the factory methods and never exposed, so one instance can be handed to any number of threads
+ * -- through the cache, through a SingleFlight -- with no copy and no lock.
+ */
+@Immutable
+public final class Factors
+{
+	private static final long[] NO_LONGS = new long[0];
+	private static final BigInteger[] NO_WIDE = new BigInteger[0];
+	private static final BigInteger LONG_LIMIT = BigInteger.ONE.shiftLeft(63);
+	
+	/*
+	 * The factorization of 1, which has no prime factors.
+	 */
+	public static final Factors NONE = new Factors(NO_LONGS, NO_WIDE);
+	
+	private final long[] packed; // p0, e0, p1, e1, ... for the primes below 2^63, then the exponent of each wide prime
+	private final BigInteger[] wide;
+	private final int longs;
+	
+	private Factors(long[] packed, BigInteger[] wide)
+	{
+		this.packed = packed;
+		this.wide = wide;
+		this.longs = (packed.length - wide.length) / 2;
+	}
+	
+	/*
+	 * The factorization with the given prime factors, in any order and repeated according to their multiplicity.
+	 */
+	public static Factors of(BigInteger... factors)
+	{
+		BigInteger[] sorted = factors.clone();
+		Arrays.sort(sorted);
+		return ofSorted(sorted);
+	}
+	
+	/*
+	 * Same as of(), for factors already in ascending order; the array is only read.
+	 */
+	static Factors ofSorted(BigInteger[] factors)
+	{
+		int longs = 0;
+		int wides = 0;
+		for (int k = 0; k < factors.length; k++)
+		{
+			if (k > 0 && factors[k].equals(factors[k - 1]))
+				continue;
+			if (factors[k].compareTo(LONG_LIMIT) < 0)
+				longs++;
+			else
+				wides++;
+		}
+		if (longs + wides == 0)
+			return NONE;
+		
+		long[] packed = new long[2 * longs + wides];
+		BigInteger[] wide = wides == 0 ? NO_WIDE : new BigInteger[wides];
+		
+		int p = 0;
+		int w = 0;
+		for (int k = 0; k < factors.length; )
+		{
+			int exponent = 1;
+			while (k + exponent < factors.length && factors[k + exponent].equals(factors[k]))
+				exponent++;
+			
+			if (factors[k].compareTo(LONG_LIMIT) < 0)
+			{
+				packed[p++] = factors[k].longValue();
+				packed[p++] = exponent;
+			}
+			else
+			{
+				packed[2 * longs + w] = exponent;
+				wide[w++] = factors[k];
+			}
+			k += exponent;
+		}
+		return new Factors(packed, wide);
+	}
+	
+	/*
+	 * For the long path of FactorEngine: the first count primes of factors, ascending and repeated. Allocates only the packed array.
+	 */
+	static Factors ofSorted(long[] factors, int count)
+	{
+		int distinct = 0;
+		for (int k = 0; k < count; k++)
+			if (k == 0 || factors[k] != factors[k - 1])
+				distinct++;
+		if (distinct == 0)
+			return NONE;
+		
+		long[] packed = new long[2 * distinct];
+		int p = 0;
+		for (int k = 0; k < count; )
+		{
+			int exponent = 1;
+			while (k + exponent < count && factors[k + exponent] == factors[k])
+				exponent++;
+			packed[p++] = factors[k];
+			packed[p++] = exponent;
+			k += exponent;
+		}
+		return new Factors(packed, NO_WIDE);
+	}
+	
+	/*
+	 * Number of distinct primes.
+	 */
+	public int distinct()
+	{
+		return longs + wide.length;
+	}
+	
+	/*
+	 * Number of prime factors counted with multiplicity, i.e. the length of toArray().
+	 */
+	public int count()
+	{
+		int count = 0;
+		for (int k = 0; k < distinct(); k++)
+			count += exponent(k);
+		return count;
+	}
+	
+	/*
+	 * True if the k-th distinct prime is below 2^63, so that longPrime(k) is valid.
+	 */
+	public boolean isLong(int k)
+	{
+		return k < longs;
+	}
+	
+	public long longPrime(int k)
+	{
+		if (!isLong(k))
+			throw new IllegalStateException("Prime " + k + " does not fit in a long: " + prime(k));
+		return packed[2 * k];
+	}
+	
+	/*
+	 * The k-th distinct prime, in ascending order. Allocates for the packed primes; encoders should prefer longPrime().
+	 */
+	public BigInteger prime(int k)
+	{
+		return isLong(k) ? BigInteger.valueOf(packed[2 * k]) : wide[k - longs];
+	}
+	
+	public int exponent(int k)
+	{
+		return (int) (isLong(k) ? packed[2 * k + 1] : packed[longs + k]);
+	}
+	
+	/*
+	 * The prime factors in ascending order, repeated according to their multiplicity, in a new array.
+	 */
+	public BigInteger[] toArray()
+	{
+		BigInteger[] factors = new BigInteger[count()];
+		int i = 0;
+		for (int k = 0; k < distinct(); k++)
+		{
+			BigInteger prime = prime(k);
+			for (int e = exponent(k); e > 0; e--)
+				factors[i++] = prime;
+		}
+		return factors;
+	}
+	
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof Factors))
+			return false;
+		Factors that = (Factors) other;
+		return Arrays.equals(packed, that.packed) && Arrays.equals(wide, that.wide);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return 31 * Arrays.hashCode(packed) + Arrays.hashCode(wide);
+	}
+	
+	/*
+	 * Same form as Arrays.toString(toArray()).
+	 */
+	@Override
+	public String toString()
+	{
+		return Arrays.toString(toArray());
+	}
+}
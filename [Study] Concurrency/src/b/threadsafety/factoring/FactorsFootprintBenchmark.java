@@ -0,0 +1,85 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import bench.Measurements;
+
+/*
+ * Heap kept per cache entry by the factors of a number as a BigInteger[] (FactorEngine.factor) and as packed Factors
+ * (FactorEngine.factors), for three kinds of numbers: random 62-bit numbers, smooth numbers with many repeated small primes, and
+ * numbers with a prime factor of 90 bits, which Factors keeps as a BigInteger. Each kind is measured by keeping ENTRIES results
+ * alive and reading the heap after a collection, so the figures include every object reachable from an entry.
+ * 
+ * It also reports what a cache hit used to allocate for its defensive clone() of the array; sharing Factors allocates nothing.
+ * 
+ * Arguments: [entries per kind, default 200000]
+ */
+public class FactorsFootprintBenchmark
+{
+	private static Object[] kept; // keeps the results of the kind being measured reachable through the collections
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(20);
+		
+		BigInteger[] random62 = new BigInteger[entries];
+		BigInteger[] smooth = new BigInteger[entries];
+		BigInteger[] wide = new BigInteger[entries];
+		BigInteger prime90 = BigInteger.probablePrime(90, random);
+		for (int k = 0; k < entries; k++)
+		{
+			random62[k] = BigInteger.valueOf((random.nextLong() >>> 2) | 2);
+			smooth[k] = BigInteger.valueOf(2).pow(10 + random.nextInt(8)).multiply(BigInteger.valueOf(3).pow(4 + random.nextInt(6)))
+				.multiply(BigInteger.valueOf(7 + 4 * random.nextInt(3)).pow(3));
+			wide[k] = prime90.multiply(BigInteger.valueOf(1 + random.nextInt(1 << 20)));
+		}
+		
+		System.out.println(String.format("%-18s %18s %18s %20s", "numbers", "BigInteger[] B/entry", "Factors B/entry",
+			"clone on hit B/op"));
+		report("random 62-bit", random62);
+		report("smooth", smooth);
+		report("90-bit prime * k", wide);
+	}
+	
+	private static void report(String name, BigInteger[] numbers)
+	{
+		Object[] arrays = new Object[numbers.length];
+		long arrayBytes = retained(arrays, numbers, false);
+		
+		BigInteger[] sample = (BigInteger[]) arrays[0];
+		long allocated = Measurements.allocatedBytes();
+		for (int k = 0; k < numbers.length; k++)
+			arrays[k] = ((BigInteger[]) arrays[k]).clone();
+		long cloneBytes = (Measurements.allocatedBytes() - allocated) / numbers.length;
+		arrays = null;
+		
+		long packedBytes = retained(new Object[numbers.length], numbers, true);
+		
+		System.out.println(String.format("%-18s %18.1f %18.1f %20d   (e.g. %s)", name, (double) arrayBytes / numbers.length,
+			(double) packedBytes / numbers.length, cloneBytes, Arrays.toString(sample)));
+	}
+	
+	/*
+	 * Heap taken by the results for all numbers, kept in results.
+	 */
+	private static long retained(Object[] results, BigInteger[] numbers, boolean packed)
+	{
+		kept = results;
+		long before = usedHeap();
+		for (int k = 0; k < numbers.length; k++)
+			results[k] = packed ? FactorEngine.factors(numbers[k]) : FactorEngine.factor(numbers[k]);
+		long after = usedHeap();
+		kept = null;
+		return after - before;
+	}
+	
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int k = 0; k < 3; k++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
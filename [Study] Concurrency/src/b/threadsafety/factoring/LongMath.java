@@ -0,0 +1,114 @@
+package b.threadsafety.factoring;
+
+/*
+ * Allocation-free modular arithmetic on primitive longs, for moduli below 2^63.
+ * 
+ * Java has no unsigned 128-bit product, so a * b mod m cannot simply be written as (a * b) % m once the operands pass 2^31.5. mulMod()
+ * splits the operands into 32-bit halves and reduces the partial products as unsigned 64-bit values instead.
+ */
+final class LongMath
+{
+	private static final long LOW_32 = 0xFFFFFFFFL;
+	
+	private LongMath() {}
+	
+	
+	static long addMod(long a, long b, long m)
+	{
+		// a, b < m < 2^63, so a + b < 2^64: if it wraps past 2^63 the subtraction below still yields the right value
+		long sum = a + b;
+		return (sum < 0 || sum >= m) ? sum - m : sum;
+	}
+	
+	static long mulMod(long a, long b, long m)
+	{
+		if (((a | b) >>> 31) == 0)
+			return a * b % m; // both below 2^31, the product fits in 62 bits
+		
+		long aHi = a >>> 32;
+		long bHi = b >>> 32;
+		long aLo = a & LOW_32;
+		long bLo = b & LOW_32;
+		
+		long result = times2ToThe32Mod(aHi * bHi, m); // < m
+		result += aHi * bLo; // < 2^64 as an unsigned value
+		if (result < 0)
+			result = remainderUnsigned(result, m);
+		result += aLo * bHi; // < 2^64 as an unsigned value
+		result = times2ToThe32Mod(result, m);
+		return addMod(result, remainderUnsigned(aLo * bLo, m), m);
+	}
+	
+	/*
+	 * High 64 bits of the unsigned 128-bit product a * b (Math.multiplyHigh is signed, and not available before Java 9 anyway).
+	 */
+	static long multiplyHighUnsigned(long a, long b)
+	{
+		long aLo = a & LOW_32;
+		long aHi = a >>> 32;
+		long bLo = b & LOW_32;
+		long bHi = b >>> 32;
+		
+		long t = aHi * bLo + ((aLo * bLo) >>> 32);
+		long middle = aLo * bHi + (t & LOW_32);
+		return aHi * bHi + (t >>> 32) + (middle >>> 32);
+	}
+	
+	static boolean lessThanUnsigned(long a, long b)
+	{
+		return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+	}
+	
+	/*
+	 * Binary (Stein's) gcd of two non-negative values.
+	 */
+	static long gcd(long a, long b)
+	{
+		if (a == 0)
+			return b;
+		if (b == 0)
+			return a;
+		
+		int shift = Long.numberOfTrailingZeros(a | b);
+		a >>= Long.numberOfTrailingZeros(a);
+		
+		while (b != 0)
+		{
+			b >>= Long.numberOfTrailingZeros(b);
+			if (a > b)
+			{
+				long t = a;
+				a = b;
+				b = t;
+			}
+			b -= a;
+		}
+		return a << shift;
+	}
+	
+	/*
+	 * Remainder of the unsigned 64-bit dividend by a positive divisor below 2^63.
+	 */
+	static long remainderUnsigned(long dividend, long divisor)
+	{
+		if (dividend >= 0)
+			return dividend % divisor;
+		
+		long quotient = ((dividend >>> 1) / divisor) << 1;
+		long remainder = dividend - quotient * divisor;
+		return (remainder < 0 || remainder >= divisor) ? remainder - divisor : remainder;
+	}
+	
+	private static long times2ToThe32Mod(long a, long m)
+	{
+		int remainingShift = 32;
+		do
+		{
+			int shift = Math.min(remainingShift, Long.numberOfLeadingZeros(a));
+			a = remainderUnsigned(a << shift, m);
+			remainingShift -= shift;
+		}
+		while (remainingShift > 0);
+		return a;
+	}
+}
@@ -0,0 +1,271 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import $annotations.*;
+
+/*
+ * MONTGOMERY MULTIPLICATION for odd moduli of up to 128 bits, on pairs of primitive longs (hi, lo).
+ * 
+ * Same idea as Montgomery64 with R = 2^128: REDC(T) = (T - m * n) / R with m = T * n^-1 mod R. The low 128 bits of T and m * n are
+ * equal by construction, so only the high halves are subtracted and the result lies in (-n, n) for any n below 2^128.
+ * 
+ * Java cannot return two longs without allocating, so every operation leaves its result in the fields hi and lo. That makes an instance
+ * MUTABLE SCRATCH SPACE: it must stay confined to the thread running the factorization. The constants of the modulus are computed once,
+ * with BigInteger, when the instance is created; after that no operation allocates.
+ */
+@NotThreadSafe
+final class Montgomery128
+{
+	private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+	private static final BigInteger R = BigInteger.ONE.shiftLeft(128);
+	
+	final long nHi;
+	final long nLo;
+	private final long nInverseHi;
+	private final long nInverseLo;
+	private final long rSquaredHi;
+	private final long rSquaredLo;
+	
+	// result of the last operation
+	long hi;
+	long lo;
+	
+	// 256-bit scratch product, w3 being the most significant word
+	private long w0;
+	private long w1;
+	private long w2;
+	private long w3;
+	
+	Montgomery128(BigInteger n)
+	{
+		if (n.bitLength() > 128 || !n.testBit(0))
+			throw new IllegalArgumentException("Modulus must be odd and at most 128 bits wide: " + n);
+		
+		nHi = n.shiftRight(64).longValue();
+		nLo = n.longValue();
+		
+		BigInteger inverse = n.modInverse(R);
+		nInverseHi = inverse.shiftRight(64).longValue();
+		nInverseLo = inverse.longValue();
+		
+		BigInteger rSquared = R.multiply(R).mod(n);
+		rSquaredHi = rSquared.shiftRight(64).longValue();
+		rSquaredLo = rSquared.longValue();
+	}
+	
+	
+	void toMontgomery(long aHi, long aLo)
+	{
+		multiply(aHi, aLo, rSquaredHi, rSquaredLo);
+	}
+	
+	void fromMontgomery(long aHi, long aLo)
+	{
+		multiply(aHi, aLo, 0, 1);
+	}
+	
+	/*
+	 * (hi, lo) = REDC(a * b), for a, b < n.
+	 */
+	void multiply(long aHi, long aLo, long bHi, long bLo)
+	{
+		multiplyFull(aHi, aLo, bHi, bLo);
+		long t0 = w0;
+		long t1 = w1;
+		long t2 = w2;
+		long t3 = w3;
+		
+		// m = (T mod R) * n^-1 mod R, only the low 128 bits of the product are needed
+		long mLo = t0 * nInverseLo;
+		long mHi = LongMath.multiplyHighUnsigned(t0, nInverseLo) + t0 * nInverseHi + t1 * nInverseLo;
+		
+		multiplyFull(mHi, mLo, nHi, nLo);
+		
+		// (T - m * n) / R: subtract the high halves, the low halves cancel exactly
+		long rLo = t2 - w2;
+		long borrow = LongMath.lessThanUnsigned(t2, w2) ? 1 : 0;
+		long rHi = t3 - w3 - borrow;
+		boolean negative = LongMath.lessThanUnsigned(t3, w3) || (t3 == w3 && borrow != 0);
+		
+		if (negative)
+		{
+			long sumLo = rLo + nLo;
+			rHi += nHi + (LongMath.lessThanUnsigned(sumLo, nLo) ? 1 : 0);
+			rLo = sumLo;
+		}
+		hi = rHi;
+		lo = rLo;
+	}
+	
+	/*
+	 * (hi, lo) = base^exponent in Montgomery form, for a base in Montgomery form; one is R mod n, i.e. 1 in Montgomery form.
+	 */
+	void pow(long baseHi, long baseLo, long exponentHi, long exponentLo, long oneHi, long oneLo)
+	{
+		long resultHi = oneHi;
+		long resultLo = oneLo;
+		
+		for (int bit = 127; bit >= 0; bit--)
+		{
+			multiply(resultHi, resultLo, resultHi, resultLo);
+			resultHi = hi;
+			resultLo = lo;
+			
+			long word = bit >= 64 ? exponentHi : exponentLo;
+			if (((word >>> (bit & 63)) & 1) != 0)
+			{
+				multiply(resultHi, resultLo, baseHi, baseLo);
+				resultHi = hi;
+				resultLo = lo;
+			}
+		}
+		hi = resultHi;
+		lo = resultLo;
+	}
+	
+	/*
+	 * (hi, lo) = a + b mod n, for a, b < n.
+	 */
+	void add(long aHi, long aLo, long bHi, long bLo)
+	{
+		long sumLo = aLo + bLo;
+		long carry = LongMath.lessThanUnsigned(sumLo, aLo) ? 1 : 0;
+		long sumHi = aHi + bHi + carry;
+		boolean overflow = LongMath.lessThanUnsigned(sumHi, aHi) || (sumHi == aHi && carry != 0);
+		
+		if (overflow || !lessThan(sumHi, sumLo, nHi, nLo))
+		{
+			long diffLo = sumLo - nLo;
+			sumHi = sumHi - nHi - (LongMath.lessThanUnsigned(sumLo, nLo) ? 1 : 0);
+			sumLo = diffLo;
+		}
+		hi = sumHi;
+		lo = sumLo;
+	}
+	
+	/*
+	 * (hi, lo) = |a - b|.
+	 */
+	void absDifference(long aHi, long aLo, long bHi, long bLo)
+	{
+		if (lessThan(aHi, aLo, bHi, bLo))
+		{
+			long t = aHi;
+			aHi = bHi;
+			bHi = t;
+			t = aLo;
+			aLo = bLo;
+			bLo = t;
+		}
+		hi = aHi - bHi - (LongMath.lessThanUnsigned(aLo, bLo) ? 1 : 0);
+		lo = aLo - bLo;
+	}
+	
+	/*
+	 * (hi, lo) = gcd(a, n), by the binary algorithm on 128-bit values.
+	 */
+	void gcdWithModulus(long aHi, long aLo)
+	{
+		long bHi = nHi;
+		long bLo = nLo;
+		
+		if ((aHi | aLo) == 0)
+		{
+			hi = bHi;
+			lo = bLo;
+			return;
+		}
+		
+		// n is odd, so the gcd is odd too and the common power of two can be dropped right away
+		int zeros = trailingZeros(aHi, aLo);
+		aLo = shiftRightLo(aHi, aLo, zeros);
+		aHi = shiftRightHi(aHi, zeros);
+		
+		while ((bHi | bLo) != 0)
+		{
+			zeros = trailingZeros(bHi, bLo);
+			bLo = shiftRightLo(bHi, bLo, zeros);
+			bHi = shiftRightHi(bHi, zeros);
+			
+			if (lessThan(bHi, bLo, aHi, aLo))
+			{
+				long t = aHi;
+				aHi = bHi;
+				bHi = t;
+				t = aLo;
+				aLo = bLo;
+				bLo = t;
+			}
+			
+			long diffLo = bLo - aLo;
+			bHi = bHi - aHi - (LongMath.lessThanUnsigned(bLo, aLo) ? 1 : 0);
+			bLo = diffLo;
+		}
+		hi = aHi;
+		lo = aLo;
+	}
+	
+	BigInteger toBigInteger(long valueHi, long valueLo)
+	{
+		BigInteger high = BigInteger.valueOf(valueHi >>> 1).shiftLeft(1).add(BigInteger.valueOf(valueHi & 1));
+		BigInteger low = BigInteger.valueOf(valueLo >>> 1).shiftLeft(1).add(BigInteger.valueOf(valueLo & 1));
+		return high.multiply(TWO_TO_THE_64).add(low);
+	}
+	
+	static boolean lessThan(long aHi, long aLo, long bHi, long bLo)
+	{
+		return aHi == bHi ? LongMath.lessThanUnsigned(aLo, bLo) : LongMath.lessThanUnsigned(aHi, bHi);
+	}
+	
+	
+	/*
+	 * (w3, w2, w1, w0) = a * b, schoolbook multiplication of two 128-bit values with explicit carries.
+	 */
+	private void multiplyFull(long aHi, long aLo, long bHi, long bLo)
+	{
+		long p00 = aLo * bLo;
+		long p00h = LongMath.multiplyHighUnsigned(aLo, bLo);
+		long p01 = aLo * bHi;
+		long p01h = LongMath.multiplyHighUnsigned(aLo, bHi);
+		long p10 = aHi * bLo;
+		long p10h = LongMath.multiplyHighUnsigned(aHi, bLo);
+		long p11 = aHi * bHi;
+		long p11h = LongMath.multiplyHighUnsigned(aHi, bHi);
+		
+		long t1 = p00h + p01;
+		long carry = LongMath.lessThanUnsigned(t1, p01) ? 1 : 0;
+		long s1 = t1 + p10;
+		carry += LongMath.lessThanUnsigned(s1, p10) ? 1 : 0;
+		
+		long t2 = p01h + carry;
+		long carry2 = LongMath.lessThanUnsigned(t2, carry) ? 1 : 0;
+		long s2 = t2 + p10h;
+		carry2 += LongMath.lessThanUnsigned(s2, p10h) ? 1 : 0;
+		long u2 = s2 + p11;
+		carry2 += LongMath.lessThanUnsigned(u2, p11) ? 1 : 0;
+		
+		w0 = p00;
+		w1 = s1;
+		w2 = u2;
+		w3 = p11h + carry2;
+	}
+	
+	private static int trailingZeros(long valueHi, long valueLo)
+	{
+		return valueLo != 0 ? Long.numberOfTrailingZeros(valueLo) : 64 + Long.numberOfTrailingZeros(valueHi);
+	}
+	
+	private static long shiftRightLo(long valueHi, long valueLo, int shift)
+	{
+		if (shift == 0)
+			return valueLo;
+		if (shift >= 64)
+			return valueHi >>> (shift - 64);
+		return (valueLo >>> shift) | (valueHi << (64 - shift));
+	}
+	
+	private static long shiftRightHi(long valueHi, int shift)
+	{
+		return shift >= 64 ? 0 : valueHi >>> shift;
+	}
+}
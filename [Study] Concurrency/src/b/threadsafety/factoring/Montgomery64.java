@@ -0,0 +1,89 @@
+package b.threadsafety.factoring;
+
+import $annotations.*;
+
+/*
+ * MONTGOMERY MULTIPLICATION for odd moduli below 2^63.
+ * 
+ * A value a is kept in Montgomery form aR mod n, with R = 2^64. The product of two such values is reduced with REDC, which only needs
+ * multiplications and a conditional addition -- no division -- so a modular multiplication costs three 64x64 products. Everything
+ * is static and works on primitive longs: the modulus and its inverse are passed along by the caller, so there is no object to
+ * allocate, not even one per modulus, and the hot loops produce no garbage at all.
+ * 
+ * The gcd of a Montgomery-form value with n is the same as the gcd of the plain value, since R is a unit mod an odd n. Pollard's rho
+ * therefore never needs to convert back.
+ */
+@ThreadSafe
+final class Montgomery64
+{
+	private Montgomery64() {}
+	
+	
+	/*
+	 * n^-1 mod 2^64, by Newton's iteration: every step doubles the number of correct low bits, starting from the 3 bits that n itself
+	 * gets right (n * n = 1 mod 8 for any odd n).
+	 */
+	static long inverse(long n)
+	{
+		long inverse = n;
+		for (int i = 0; i < 5; i++)
+			inverse *= 2 - n * inverse;
+		return inverse;
+	}
+	
+	/*
+	 * R mod n, which is 1 in Montgomery form.
+	 */
+	static long one(long n)
+	{
+		return LongMath.remainderUnsigned(-n, n);
+	}
+	
+	/*
+	 * R^2 mod n, used to bring values into Montgomery form.
+	 */
+	static long rSquared(long n)
+	{
+		long r = one(n);
+		for (int i = 0; i < 64; i++)
+			r = LongMath.addMod(r, r, n);
+		return r;
+	}
+	
+	static long toMontgomery(long a, long n, long nInverse, long rSquared)
+	{
+		return multiply(a % n, rSquared, n, nInverse);
+	}
+	
+	static long fromMontgomery(long a, long n, long nInverse)
+	{
+		long m = a * nInverse;
+		long t = -LongMath.multiplyHighUnsigned(m, n);
+		return t < 0 ? t + n : t;
+	}
+	
+	/*
+	 * REDC(a * b): with T = a * b and m = T * n^-1 mod R, T - m * n is divisible by R, and (T - m * n) / R lies in (-n, n).
+	 */
+	static long multiply(long a, long b, long n, long nInverse)
+	{
+		long lo = a * b;
+		long hi = LongMath.multiplyHighUnsigned(a, b);
+		long m = lo * nInverse;
+		long t = hi - LongMath.multiplyHighUnsigned(m, n);
+		return t < 0 ? t + n : t;
+	}
+	
+	static long pow(long base, long exponent, long n, long nInverse, long one)
+	{
+		long result = one;
+		while (exponent != 0)
+		{
+			if ((exponent & 1) != 0)
+				result = multiply(result, base, n, nInverse);
+			base = multiply(base, base, n, nInverse);
+			exponent >>>= 1;
+		}
+		return result;
+	}
+}
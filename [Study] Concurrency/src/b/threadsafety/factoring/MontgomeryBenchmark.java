@@ -0,0 +1,149 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.Random;
+import bench.Measurements;
+
+/*
+ * Cost of one step of the Pollard rho inner loop -- y = y^2 + c mod n, q = q * |x - y| mod n -- with BigInteger arithmetic and with the
+ * Montgomery kernels, for a modulus just above 2^63 (where the engine used to fall back to BigInteger) and for a 120-bit one. The
+ * portable LongMath.mulMod and Montgomery64 are compared for a 62-bit modulus as well.
+ * 
+ * Reports ns per iteration, bytes allocated per iteration and the number of collections triggered.
+ */
+public class MontgomeryBenchmark
+{
+	private static final int ITERATIONS = 2000000;
+	private static final int ROUNDS = 5;
+	
+	// keeps the JIT from dropping the loops
+	private static volatile long sink;
+	
+	public static void main(String[] args)
+	{
+		Random random = new Random(42);
+		BigInteger n65 = BigInteger.probablePrime(33, random).multiply(BigInteger.probablePrime(33, random));
+		BigInteger n120 = BigInteger.probablePrime(60, random).multiply(BigInteger.probablePrime(61, random));
+		long n62 = BigInteger.probablePrime(31, random).multiply(BigInteger.probablePrime(31, random)).longValue();
+		
+		System.out.println(String.format("%-32s %12s %12s %8s", "kernel", "ns/iter", "bytes/iter", "GCs"));
+		
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			boolean report = round == ROUNDS - 1; // earlier rounds are warm-up
+			
+			run("BigInteger, " + n65.bitLength() + "-bit", report, new BigIntegerLoop(n65));
+			run("Montgomery128, " + n65.bitLength() + "-bit", report, new Montgomery128Loop(n65));
+			run("BigInteger, " + n120.bitLength() + "-bit", report, new BigIntegerLoop(n120));
+			run("Montgomery128, " + n120.bitLength() + "-bit", report, new Montgomery128Loop(n120));
+			run("LongMath.mulMod, " + (64 - Long.numberOfLeadingZeros(n62)) + "-bit", report, new LongMathLoop(n62));
+			run("Montgomery64, " + (64 - Long.numberOfLeadingZeros(n62)) + "-bit", report, new Montgomery64Loop(n62));
+		}
+	}
+	
+	private static void run(String name, boolean report, Loop loop)
+	{
+		long gcs = Measurements.gcCount();
+		long bytes = Measurements.allocatedBytes();
+		long start = System.nanoTime();
+		
+		sink = loop.run(ITERATIONS);
+		
+		long elapsed = System.nanoTime() - start;
+		bytes = Measurements.allocatedBytes() - bytes;
+		gcs = Measurements.gcCount() - gcs;
+		
+		if (report)
+			System.out.println(String.format("%-32s %12.1f %12.1f %8d", name, (double) elapsed / ITERATIONS, (double) bytes / ITERATIONS, gcs));
+	}
+	
+	
+	private interface Loop
+	{
+		long run(int iterations);
+	}
+	
+	private static final class BigIntegerLoop implements Loop
+	{
+		private final BigInteger n;
+		
+		BigIntegerLoop(BigInteger n) { this.n = n; }
+		
+		public long run(int iterations)
+		{
+			BigInteger c = BigInteger.ONE;
+			BigInteger x = BigInteger.valueOf(2);
+			BigInteger y = x;
+			BigInteger q = BigInteger.ONE;
+			for (int i = 0; i < iterations; i++)
+			{
+				y = y.multiply(y).add(c).mod(n);
+				q = q.multiply(x.subtract(y).abs()).mod(n);
+			}
+			return q.longValue();
+		}
+	}
+	
+	private static final class Montgomery128Loop implements Loop
+	{
+		private final Montgomery128 mont;
+		
+		Montgomery128Loop(BigInteger n) { this.mont = new Montgomery128(n); }
+		
+		public long run(int iterations)
+		{
+			long xHi = 0, xLo = 2;
+			long yHi = 0, yLo = 2;
+			long qHi = 0, qLo = 1;
+			for (int i = 0; i < iterations; i++)
+			{
+				mont.multiply(yHi, yLo, yHi, yLo);
+				mont.add(mont.hi, mont.lo, 0, 1);
+				yHi = mont.hi;
+				yLo = mont.lo;
+				mont.absDifference(xHi, xLo, yHi, yLo);
+				mont.multiply(qHi, qLo, mont.hi, mont.lo);
+				qHi = mont.hi;
+				qLo = mont.lo;
+			}
+			return qLo ^ qHi;
+		}
+	}
+	
+	private static final class LongMathLoop implements Loop
+	{
+		private final long n;
+		
+		LongMathLoop(long n) { this.n = n; }
+		
+		public long run(int iterations)
+		{
+			long x = 2, y = 2, q = 1;
+			for (int i = 0; i < iterations; i++)
+			{
+				y = LongMath.addMod(LongMath.mulMod(y, y, n), 1, n);
+				q = LongMath.mulMod(q, Math.abs(x - y), n);
+			}
+			return q;
+		}
+	}
+	
+	private static final class Montgomery64Loop implements Loop
+	{
+		private final long n;
+		private final long nInverse;
+		
+		Montgomery64Loop(long n) { this.n = n; this.nInverse = Montgomery64.inverse(n); }
+		
+		public long run(int iterations)
+		{
+			long x = 2, y = 2, q = 1;
+			for (int i = 0; i < iterations; i++)
+			{
+				y = LongMath.addMod(Montgomery64.multiply(y, y, n, nInverse), 1, n);
+				q = Montgomery64.multiply(q, Math.abs(x - y), n, nInverse);
+			}
+			return q;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import $annotations.*;
+
+/*
+ * FORK/JOIN FACTORIZATION FOR LARGE COMPOSITES.
+ * 
+ * FactorEngine splits a wide composite with a single rho walk on the request thread, so one 100-bit miss keeps one core busy for up to
+ * seconds while the others may be idle. This engine spreads the work of ONE number over the workers of a ForkJoinPool:
+ * 
+ * - RACING WALKS: a composite part is attacked by one rho walk per worker at the same time, each with its own polynomial constants
+ *   (walk k tries c = k, k + W, k + 2W, ... for W walks), so no two of them repeat each other's work. The number of steps a walk needs
+ *   is random, and the first walk to find a divisor publishes it and SETS A SHARED STOP FLAG; the others see it at their next batch
+ *   check (every 128 steps) and give up. Racing W walks does not divide the expected work by W -- rho has no sequential work to share
+ *   out -- but the time to the first success shrinks roughly like 1/sqrt(W), and the long unlucky walks that make the tail are cut
+ *   short by a luckier one.
+ * - COFACTOR SUBTASKS: once d divides n, d and n/d are forked as two independent tasks, so the parts of a number with several large
+ *   factors are split in parallel, each by its own race.
+ * 
+ * Parts below MIN_BITS are not worth the coordination (a rho walk on them takes milliseconds) and go through FactorEngine sequentially,
+ * on the worker that reached them. The Deadline of the call bounds the whole tree: every walk checks it as well as the stop flag, and a
+ * part whose race ends without a divisor is reported unfactored, exactly as by FactorEngine.
+ * 
+ * The pool is private to the engine and sized for CPU-bound work, one worker per core by default. Concurrent calls share it; each call
+ * blocks its (request) thread in invoke() until its own tree is done.
+ */
+@ThreadSafe
+public final class ParallelFactorEngine
+{
+	/*
+	 * Inputs and parts with fewer bits are factored sequentially.
+	 */
+	public static final int MIN_BITS = 96;
+	
+	private final ForkJoinPool pool;
+	
+	public ParallelFactorEngine()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public ParallelFactorEngine(int parallelism)
+	{
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	public int getParallelism()
+	{
+		return pool.getParallelism();
+	}
+	
+	/*
+	 * Same contract as FactorEngine.factor(n, deadline).
+	 */
+	public Factorization factor(BigInteger n, Deadline deadline)
+	{
+		return factor(n, deadline, FactorSink.NONE);
+	}
+	
+	/*
+	 * Same contract as FactorEngine.factor(n, deadline, sink); the sink is called from the pool's workers.
+	 */
+	public Factorization factor(BigInteger n, Deadline deadline, FactorSink sink)
+	{
+		if (n.signum() <= 0)
+			throw new IllegalArgumentException("Can only factor positive numbers: " + n);
+		
+		if (n.bitLength() < MIN_BITS)
+			return FactorEngine.factor(n, deadline, sink);
+		
+		if (Primality.isPrime(n))
+		{
+			sink.found(n);
+			return Factorization.complete(new BigInteger[] { n });
+		}
+		
+		List<BigInteger> trial = new ArrayList<BigInteger>();
+		n = FactorEngine.trialDivide(n, trial, sink);
+		
+		Queue<BigInteger> factors = new ConcurrentLinkedQueue<BigInteger>(trial);
+		Queue<BigInteger> unfactored = new ConcurrentLinkedQueue<BigInteger>();
+		pool.invoke(new Split(n, deadline, sink, factors, unfactored));
+		
+		return new Factorization(new ArrayList<BigInteger>(factors), new ArrayList<BigInteger>(unfactored));
+	}
+	
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return pool.awaitTermination(timeout, unit);
+	}
+	
+	
+	/*
+	 * Factors one part: sequentially if it is small, otherwise by racing walks, then forks the two parts it was split into.
+	 */
+	private final class Split extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final BigInteger n;
+		private final Deadline deadline;
+		private final FactorSink sink;
+		private final Queue<BigInteger> factors;
+		private final Queue<BigInteger> unfactored;
+		
+		Split(BigInteger n, Deadline deadline, FactorSink sink, Queue<BigInteger> factors, Queue<BigInteger> unfactored)
+		{
+			this.n = n;
+			this.deadline = deadline;
+			this.sink = sink;
+			this.factors = factors;
+			this.unfactored = unfactored;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (n.equals(BigInteger.ONE))
+				return;
+			
+			if (n.bitLength() < MIN_BITS)
+			{
+				List<BigInteger> partFactors = new ArrayList<BigInteger>();
+				List<BigInteger> partUnfactored = new ArrayList<BigInteger>();
+				FactorEngine.factorBig(n, partFactors, partUnfactored, deadline, sink);
+				factors.addAll(partFactors);
+				unfactored.addAll(partUnfactored);
+				return;
+			}
+			
+			if (Primality.isPrime(n))
+			{
+				factors.add(n);
+				sink.found(n);
+				return;
+			}
+			
+			sink.searching();
+			BigInteger d = race();
+			if (d == null)
+			{
+				unfactored.add(n); // out of time
+				return;
+			}
+			
+			invokeAll(new Split(d, deadline, sink, factors, unfactored), new Split(n.divide(d), deadline, sink, factors, unfactored));
+		}
+		
+		/*
+		 * One walk per worker on n; returns the first divisor found, or null if the deadline expired before any walk found one.
+		 */
+		private BigInteger race()
+		{
+			int walks = pool.getParallelism();
+			AtomicBoolean stop = new AtomicBoolean();
+			AtomicReference<BigInteger> winner = new AtomicReference<BigInteger>();
+			Deadline raceDeadline = deadline.orWhen(stop);
+			
+			List<Walk> race = new ArrayList<Walk>(walks);
+			for (int k = 1; k <= walks; k++)
+				race.add(new Walk(n, k, walks, raceDeadline, stop, winner));
+			invokeAll(race);
+			
+			return winner.get();
+		}
+	}
+	
+	/*
+	 * One rho walk of a race. Whichever walk finds a divisor first wins and stops the others.
+	 */
+	private static final class Walk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final BigInteger n;
+		private final long firstC;
+		private final long cStep;
+		private final Deadline deadline;
+		private final AtomicBoolean stop;
+		private final AtomicReference<BigInteger> winner;
+		
+		Walk(BigInteger n, long firstC, long cStep, Deadline deadline, AtomicBoolean stop, AtomicReference<BigInteger> winner)
+		{
+			this.n = n;
+			this.firstC = firstC;
+			this.cStep = cStep;
+			this.deadline = deadline;
+			this.stop = stop;
+			this.winner = winner;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (stop.get())
+				return; // lost before it started, e.g. queued behind the winner on the same worker
+			
+			BigInteger d = FactorEngine.rho(n, firstC, cStep, deadline);
+			if (d != null && winner.compareAndSet(null, d))
+				stop.set(true);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Latency of factoring ~100-bit composites with the sequential FactorEngine and with a ParallelFactorEngine of 1, 2, 4, ... workers, up
+ * to the given maximum. Two kinds of input: p * q with a 40-bit p and a 60-bit q (one race, won by whichever walk finds p first), and
+ * p * q * r with three 34-bit primes (a race, then the cofactor forked and split by a race of its own). Every result is checked.
+ * 
+ * The inputs are factored one after the other, so each run measures the latency of a single request with the whole pool to itself.
+ * The speedup needs as many free cores as workers; with fewer, the racing walks just take turns.
+ * 
+ * Arguments: [maximum workers, default all cores] [inputs of each kind, default 20]
+ */
+public class ParallelScalingBenchmark
+{
+	public static void main(String[] args)
+	{
+		int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		
+		Random random = new Random(15);
+		BigInteger[] inputs = new BigInteger[2 * count];
+		for (int k = 0; k < count; k++)
+		{
+			inputs[k] = BigInteger.probablePrime(40, random).multiply(BigInteger.probablePrime(60, random));
+			inputs[count + k] = BigInteger.probablePrime(34, random).multiply(BigInteger.probablePrime(34, random))
+				.multiply(BigInteger.probablePrime(34, random));
+		}
+		
+		System.out.println(String.format("%-12s %12s %12s %12s %12s", "engine", "p50 (ms)", "p90 (ms)", "max (ms)", "total (s)"));
+		report("sequential", run(null, inputs));
+		
+		for (int workers = 1; workers <= maxWorkers; workers = workers < maxWorkers && workers * 2 > maxWorkers ? maxWorkers : workers * 2)
+		{
+			ParallelFactorEngine engine = new ParallelFactorEngine(workers);
+			report(workers + (workers == 1 ? " worker" : " workers"), run(engine, inputs));
+			engine.shutdown();
+		}
+	}
+	
+	private static long[] run(ParallelFactorEngine engine, BigInteger[] inputs)
+	{
+		long[] latencies = new long[inputs.length];
+		for (int k = 0; k < inputs.length; k++)
+		{
+			long start = System.nanoTime();
+			Factorization result = engine == null ? FactorEngine.factor(inputs[k], Deadline.NONE) : engine.factor(inputs[k], Deadline.NONE);
+			latencies[k] = System.nanoTime() - start;
+			check(inputs[k], result);
+		}
+		return latencies;
+	}
+	
+	private static void check(BigInteger n, Factorization result)
+	{
+		BigInteger product = BigInteger.ONE;
+		for (BigInteger factor : result.getFactors())
+		{
+			if (!factor.isProbablePrime(50))
+				throw new AssertionError(n + ": " + factor + " is not prime");
+			product = product.multiply(factor);
+		}
+		if (!result.isComplete() || !product.equals(n))
+			throw new AssertionError(n + ": wrong factorization " + result);
+	}
+	
+	private static void report(String name, long[] latencies)
+	{
+		long total = 0;
+		for (long latency : latencies)
+			total += latency;
+		Arrays.sort(latencies);
+		
+		System.out.println(String.format("%-12s %12.1f %12.1f %12.1f %12.2f", name, latencies[latencies.length / 2] / 1e6,
+			latencies[(int) Math.ceil(0.9 * latencies.length) - 1] / 1e6, latencies[latencies.length - 1] / 1e6, total / 1e9));
+	}
+}
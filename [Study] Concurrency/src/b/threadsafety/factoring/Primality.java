@@ -0,0 +1,242 @@
+package b.threadsafety.factoring;
+
+import java.math.BigInteger;
+import $annotations.*;
+
+/*
+ * Primality stage of the factorization engine. FactorEngine asks it about the input before doing any factoring work, and about every
+ * cofactor before splitting it further, so that primes cost a primality test instead of a full trial-division and rho budget.
+ * 
+ * 		# below 2^63 :: DETERMINISTIC Miller-Rabin, in Montgomery arithmetic. The seven witnesses below are known to give the correct
+ * 						answer for every 64-bit value (three are enough below 2^32).
+ * 
+ * 		# wider      :: BAILLIE-PSW: a strong probable-prime test to base 2 followed by a strong Lucas probable-prime test with
+ * 						Selfridge's parameters. No composite passing both is known; the test is exact far beyond the 128-bit range
+ * 						where the engine does most of its work. Up to 128 bits, the base-2 test runs on Montgomery128.
+ */
+@ThreadSafe
+public final class Primality
+{
+	private static final long[] WITNESSES_32 = {2, 7, 61};
+	private static final long[] WITNESSES_64 = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+	private static final int[] SMALL_PRIMES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47};
+	
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+	
+	private Primality() {}
+	
+	
+	public static boolean isPrime(long n)
+	{
+		if (n < 2)
+			return false;
+		
+		for (int p : SMALL_PRIMES)
+		{
+			if (n == p)
+				return true;
+			if (n % p == 0)
+				return false;
+		}
+		if (n < 53 * 53)
+			return true;
+		
+		long d = n - 1;
+		int s = Long.numberOfTrailingZeros(d);
+		d >>= s;
+		
+		long nInverse = Montgomery64.inverse(n);
+		long one = Montgomery64.one(n);
+		long minusOne = n - one;
+		long rSquared = Montgomery64.rSquared(n);
+		
+		for (long witness : n < (1L << 32) ? WITNESSES_32 : WITNESSES_64)
+		{
+			long a = witness % n;
+			if (a == 0)
+				continue;
+			
+			long x = Montgomery64.pow(Montgomery64.toMontgomery(a, n, nInverse, rSquared), d, n, nInverse, one);
+			if (x == one || x == minusOne)
+				continue;
+			
+			boolean composite = true;
+			for (int r = 1; r < s && composite; r++)
+			{
+				x = Montgomery64.multiply(x, x, n, nInverse);
+				if (x == minusOne)
+					composite = false;
+			}
+			if (composite)
+				return false;
+		}
+		return true;
+	}
+	
+	public static boolean isPrime(BigInteger n)
+	{
+		if (n.bitLength() < 64)
+			return isPrime(n.longValue());
+		
+		for (int p : SMALL_PRIMES)
+		{
+			if (n.mod(BigInteger.valueOf(p)).signum() == 0)
+				return false;
+		}
+		
+		return isStrongProbablePrimeBase2(n) && isStrongLucasProbablePrime(n);
+	}
+	
+	
+	private static boolean isStrongProbablePrimeBase2(BigInteger n)
+	{
+		BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+		int s = nMinusOne.getLowestSetBit();
+		BigInteger d = nMinusOne.shiftRight(s);
+		
+		if (n.bitLength() <= 128)
+		{
+			Montgomery128 mont = new Montgomery128(n);
+			mont.toMontgomery(0, 1);
+			long oneHi = mont.hi, oneLo = mont.lo;
+			mont.toMontgomery(0, 2);
+			mont.pow(mont.hi, mont.lo, d.shiftRight(64).longValue(), d.longValue(), oneHi, oneLo);
+			
+			// -1 in Montgomery form is n - R mod n
+			long minusOneLo = mont.nLo - oneLo;
+			long minusOneHi = mont.nHi - oneHi - (LongMath.lessThanUnsigned(mont.nLo, oneLo) ? 1 : 0);
+			
+			long xHi = mont.hi, xLo = mont.lo;
+			if ((xHi == oneHi && xLo == oneLo) || (xHi == minusOneHi && xLo == minusOneLo))
+				return true;
+			
+			for (int r = 1; r < s; r++)
+			{
+				mont.multiply(xHi, xLo, xHi, xLo);
+				xHi = mont.hi;
+				xLo = mont.lo;
+				if (xHi == minusOneHi && xLo == minusOneLo)
+					return true;
+			}
+			return false;
+		}
+		
+		BigInteger x = TWO.modPow(d, n);
+		if (x.equals(BigInteger.ONE) || x.equals(nMinusOne))
+			return true;
+		
+		for (int r = 1; r < s; r++)
+		{
+			x = x.multiply(x).mod(n);
+			if (x.equals(nMinusOne))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Strong Lucas test with P = 1 and Q = (1 - D) / 4, D being the first of 5, -7, 9, -11, ... with Jacobi symbol (D / n) = -1. Such
+	 * a D does not exist when n is a perfect square, so that case is ruled out before the search runs for long.
+	 */
+	private static boolean isStrongLucasProbablePrime(BigInteger n)
+	{
+		long d = 5;
+		for (int attempts = 0; ; attempts++)
+		{
+			int jacobi = jacobi(BigInteger.valueOf(d).mod(n), n);
+			if (jacobi == -1)
+				break;
+			if (jacobi == 0 && n.compareTo(BigInteger.valueOf(Math.abs(d))) > 0)
+				return false;
+			if (attempts == 8 && isPerfectSquare(n))
+				return false;
+			
+			d = d > 0 ? -(d + 2) : -(d - 2);
+		}
+		
+		BigInteger bigD = BigInteger.valueOf(d);
+		BigInteger q = BigInteger.valueOf((1 - d) / 4);
+		
+		BigInteger nPlusOne = n.add(BigInteger.ONE);
+		int s = nPlusOne.getLowestSetBit();
+		BigInteger k = nPlusOne.shiftRight(s);
+		
+		// U_1 = 1, V_1 = P = 1, Q^1 = Q; walk the bits of k from the top, doubling and stepping by one
+		BigInteger u = BigInteger.ONE;
+		BigInteger v = BigInteger.ONE;
+		BigInteger qk = q.mod(n);
+		
+		for (int bit = k.bitLength() - 2; bit >= 0; bit--)
+		{
+			u = u.multiply(v).mod(n);
+			v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+			qk = qk.multiply(qk).mod(n);
+			
+			if (k.testBit(bit))
+			{
+				BigInteger nextU = half(u.add(v), n);
+				v = half(bigD.multiply(u).add(v), n);
+				u = nextU;
+				qk = qk.multiply(q).mod(n);
+			}
+		}
+		
+		if (u.signum() == 0 || v.signum() == 0)
+			return true;
+		
+		for (int r = 1; r < s; r++)
+		{
+			v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+			if (v.signum() == 0)
+				return true;
+			qk = qk.multiply(qk).mod(n);
+		}
+		return false;
+	}
+	
+	/*
+	 * x / 2 mod n, for odd n.
+	 */
+	private static BigInteger half(BigInteger x, BigInteger n)
+	{
+		x = x.mod(n);
+		if (x.testBit(0))
+			x = x.add(n);
+		return x.shiftRight(1);
+	}
+	
+	private static int jacobi(BigInteger a, BigInteger n)
+	{
+		int result = 1;
+		while (a.signum() != 0)
+		{
+			int zeros = a.getLowestSetBit();
+			a = a.shiftRight(zeros);
+			int nMod8 = n.intValue() & 7;
+			if ((zeros & 1) != 0 && (nMod8 == 3 || nMod8 == 5))
+				result = -result;
+			
+			// quadratic reciprocity
+			if ((a.intValue() & 3) == 3 && (n.intValue() & 3) == 3)
+				result = -result;
+			
+			BigInteger t = a;
+			a = n.mod(t);
+			n = t;
+		}
+		return n.equals(BigInteger.ONE) ? result : 0;
+	}
+	
+	private static boolean isPerfectSquare(BigInteger n)
+	{
+		// Newton's iteration for floor(sqrt(n)), starting above the root
+		BigInteger x = BigInteger.ONE.shiftLeft((n.bitLength() + 1) / 2);
+		while (true)
+		{
+			BigInteger y = x.add(n.divide(x)).shiftRight(1);
+			if (y.compareTo(x) >= 0)
+				return x.multiply(x).equals(n);
+			x = y;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package b.threadsafety.factoring;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import $annotations.*;
+
+/*
+ * FACTORS EVERY NUMBER OF A RANGE [from, to] with a SEGMENTED SIEVE, instead of factoring the numbers one by one.
+ * 
+ * The range is cut into segments of SEGMENT_SIZE consecutive numbers, sized so that a segment's working arrays stay in the L2 cache.
+ * A segment is sieved by every base prime p <= sqrt(to): the multiples of p in the segment are found by stepping, not by testing, and
+ * p is divided out of each of them as often as it goes. Whatever is left of a number after that is 1 or a prime. The cost is about
+ * log log to divisions per number, where factoring them one by one costs trial divisions and a primality test each.
+ * 
+ * Segments are sieved IN PARALLEL on a ForkJoinPool, but handed to the SegmentSink IN ORDER, one at a time, on the calling thread: a
+ * window of at most WINDOW_PER_WORKER segments per worker is in flight, and the next segment is only submitted once the oldest one has
+ * been taken by the sink. MEMORY IS BOUNDED by the segment size times the window, whatever the length of the range, and a slow sink
+ * (a slow client) holds back the sieving rather than letting results pile up.
+ * 
+ * The base primes depend only on sqrt(to) and are kept for the next call: they are published through a volatile field, together with
+ * their limit and never written after, so concurrent calls either see a complete table or compute their own. Segments share nothing
+ * else.
+ */
+@ThreadSafe
+public final class RangeSieve
+{
+	/*
+	 * Ranges must end below this bound, which keeps the base primes (up to 2^25) to a few MB.
+	 */
+	public static final long MAX_BOUND = 1L << 50;
+	
+	public static final int SEGMENT_SIZE = 1 << 15;
+	
+	private static final int WINDOW_PER_WORKER = 2;
+	
+	private final ForkJoinPool pool;
+	
+	private volatile BasePrimes basePrimes = new BasePrimes(1, new int[0]);
+	
+	public RangeSieve()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public RangeSieve(int parallelism)
+	{
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	
+	/*
+	 * Factors every number from from to to, both included (1 <= from <= to < MAX_BOUND), and passes the results to sink in ascending
+	 * order, in segments of at most SEGMENT_SIZE numbers. The first segment starts at from.
+	 */
+	public void factorRange(long from, long to, SegmentSink sink) throws IOException
+	{
+		if (from < 1 || to < from || to >= MAX_BOUND)
+			throw new IllegalArgumentException("Range must satisfy 1 <= from <= to < 2^50: [" + from + ", " + to + "]");
+		
+		int[] primes = basePrimesUpTo((long) Math.sqrt((double) to) + 1);
+		int window = WINDOW_PER_WORKER * pool.getParallelism();
+		Queue<ForkJoinTask<FactoredSegment>> inFlight = new ArrayDeque<ForkJoinTask<FactoredSegment>>(window);
+		
+		long next = from;
+		try
+		{
+			while (true)
+			{
+				while (inFlight.size() < window && next <= to)
+				{
+					int size = (int) Math.min(SEGMENT_SIZE, to - next + 1);
+					inFlight.add(pool.submit(new Segment(next, size, primes)));
+					next += size;
+				}
+				
+				ForkJoinTask<FactoredSegment> oldest = inFlight.poll();
+				if (oldest == null)
+					return;
+				sink.accept(oldest.join());
+			}
+		}
+		finally
+		{
+			for (ForkJoinTask<FactoredSegment> abandoned : inFlight)
+				abandoned.cancel(false); // the sink failed; those not started yet never will
+		}
+	}
+	
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return pool.awaitTermination(timeout, unit);
+	}
+	
+	
+	/*
+	 * All primes up to limit, from the table kept by an earlier call if it reaches that far.
+	 */
+	private int[] basePrimesUpTo(long limit)
+	{
+		BasePrimes known = basePrimes;
+		if (known.limit >= limit)
+			return known.primes; // may go beyond the limit, the segments stop at the square root of their own end
+		
+		int[] primes = primesUpTo((int) limit);
+		basePrimes = new BasePrimes((int) limit, primes); // a racing call may replace a larger table, which only costs a recomputation
+		return primes;
+	}
+	
+	private static int[] primesUpTo(int limit)
+	{
+		BitSet composite = new BitSet(limit + 1);
+		int[] primes = new int[Math.max(16, (int) (1.26 * limit / Math.log(Math.max(limit, 2))))]; // above pi(limit)
+		int count = 0;
+		
+		if (limit >= 2)
+			primes[count++] = 2;
+		for (int i = 3; i <= limit; i += 2)
+		{
+			if (composite.get(i))
+				continue;
+			
+			primes[count++] = i;
+			for (long j = (long) i * i; j <= limit; j += 2L * i)
+				composite.set((int) j);
+		}
+		return Arrays.copyOf(primes, count);
+	}
+	
+	
+	/*
+	 * The primes up to limit, in one object so that they are published together.
+	 */
+	@Immutable
+	private static final class BasePrimes
+	{
+		final int limit;
+		final int[] primes;
+		
+		BasePrimes(int limit, int[] primes)
+		{
+			this.limit = limit;
+			this.primes = primes;
+		}
+	}
+	
+	/*
+	 * Sieves the numbers [first, first + size).
+	 */
+	private static final class Segment extends RecursiveTask<FactoredSegment>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final long first;
+		private final int size;
+		private final int[] primes;
+		
+		Segment(long first, int size, int[] primes)
+		{
+			this.first = first;
+			this.size = size;
+			this.primes = primes;
+		}
+		
+		@Override
+		protected FactoredSegment compute()
+		{
+			long end = first + size;
+			long[] rest = new long[size];
+			int[] counts = new int[size];
+			for (int i = 0; i < size; i++)
+				rest[i] = first + i;
+			
+			// every (number, prime, exponent) found, in ascending order of prime
+			int[] hitIndex = new int[4 * size];
+			int[] hitPrime = new int[4 * size];
+			byte[] hitExponent = new byte[4 * size];
+			int hits = 0;
+			
+			for (int p : primes)
+			{
+				if ((long) p * p >= end)
+					break;
+				
+				for (long multiple = (first + p - 1) / p * p; multiple < end; multiple += p)
+				{
+					int i = (int) (multiple - first);
+					long quotient = rest[i] / p;
+					int exponent = 1;
+					while (quotient % p == 0)
+					{
+						quotient /= p;
+						exponent++;
+					}
+					rest[i] = quotient;
+					counts[i] += exponent;
+					
+					if (hits == hitIndex.length)
+					{
+						hitIndex = Arrays.copyOf(hitIndex, 2 * hits);
+						hitPrime = Arrays.copyOf(hitPrime, 2 * hits);
+						hitExponent = Arrays.copyOf(hitExponent, 2 * hits);
+					}
+					hitIndex[hits] = i;
+					hitPrime[hits] = p;
+					hitExponent[hits] = (byte) exponent;
+					hits++;
+				}
+			}
+			
+			// what is left has no prime factor up to its square root: it is 1 or the largest prime factor
+			int[] ends = new int[size];
+			int total = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (rest[i] > 1)
+					counts[i]++;
+				total += counts[i];
+				ends[i] = total;
+				counts[i] = total - counts[i]; // from now on the next free slot of number i
+			}
+			
+			long[] factors = new long[total];
+			for (int h = 0; h < hits; h++)
+			{
+				int i = hitIndex[h];
+				for (int e = 0; e < hitExponent[h]; e++)
+					factors[counts[i]++] = hitPrime[h];
+			}
+			for (int i = 0; i < size; i++)
+			{
+				if (rest[i] > 1)
+					factors[counts[i]] = rest[i];
+			}
+			
+			return new FactoredSegment(first, ends, factors);
+		}
+	}
+}
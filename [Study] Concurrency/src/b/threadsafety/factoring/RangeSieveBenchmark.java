@@ -0,0 +1,71 @@
+package b.threadsafety.factoring;
+
+import java.io.IOException;
+
+/*
+ * Factors every number of a range with a RangeSieve and, for comparison, one number at a time with FactorEngine.factor(long, long[]),
+ * and reports the time per number of both. Finally every factor of the range is checked against the engine.
+ * 
+ * Arguments: [first number, default 10^12] [length, default 2^22] [workers, default all cores]
+ */
+public class RangeSieveBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		long from = args.length > 0 ? Long.parseLong(args[0]) : 1000000000000L;
+		long length = args.length > 1 ? Long.parseLong(args[1]) : 1L << 22;
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long to = from + length - 1;
+		
+		RangeSieve sieve = new RangeSieve(workers);
+		final long[] out = new long[FactorEngine.MAX_LONG_FACTORS];
+		
+		for (int round = 0; round < 3; round++)
+		{
+			final long[] seen = new long[2]; // numbers, factors
+			long start = System.nanoTime();
+			sieve.factorRange(from, to, new SegmentSink()
+			{
+				public void accept(FactoredSegment segment)
+				{
+					seen[0] += segment.size();
+					for (int i = 0; i < segment.size(); i++)
+						seen[1] += segment.factorCount(i);
+				}
+			});
+			long sieveNanos = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			long factors = 0;
+			for (long n = from; n <= to; n++)
+				factors += FactorEngine.factor(n, out);
+			long engineNanos = System.nanoTime() - start;
+			
+			if (seen[0] != length || seen[1] != factors)
+				throw new AssertionError("Sieve found " + seen[1] + " factors of " + seen[0] + " numbers, the engine " + factors);
+			
+			System.out.println(String.format("round %d: range of %d from %d, sieve %.1f ns/number (%d workers), one by one %.1f ns/number",
+				round, length, from, (double) sieveNanos / length, workers, (double) engineNanos / length));
+		}
+		
+		// the same range again, checking every factor
+		sieve.factorRange(from, to, new SegmentSink()
+		{
+			public void accept(FactoredSegment segment)
+			{
+				for (int i = 0; i < segment.size(); i++)
+				{
+					int count = FactorEngine.factor(segment.getNumber(i), out);
+					if (count != segment.factorCount(i))
+						throw new AssertionError("Wrong factor count for " + segment.getNumber(i));
+					for (int k = 0; k < count; k++)
+						if (out[k] != segment.factor(i, k))
+							throw new AssertionError("Wrong factors for " + segment.getNumber(i));
+				}
+			}
+		});
+		System.out.println("all factors checked");
+		
+		sieve.shutdown();
+	}
+}
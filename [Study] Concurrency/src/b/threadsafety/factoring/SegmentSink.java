@@ -0,0 +1,12 @@
+package b.threadsafety.factoring;
+
+import java.io.IOException;
+
+/*
+ * Receives the segments of a RangeSieve run, one at a time and in ascending order, on the thread that called factorRange. A sink that
+ * writes to a client may throw IOException, which stops the run.
+ */
+public interface SegmentSink
+{
+	void accept(FactoredSegment segment) throws IOException;
+}
@@ -0,0 +1,69 @@
+package b.threadsafety.factoring;
+
+import java.io.File;
+import java.util.Random;
+
+/*
+ * Builds a SmallestPrimeFactorSieve and reports its build time, its off-heap size (and that the Java heap did not grow with it), then
+ * the latency of a single lookup and of a full factorization through the table, against the engine without the table.
+ * 
+ * Arguments: [bound, default 2^28] [threads, default all cores] [file to map the table onto, default off-heap direct buffers]
+ */
+public class SieveBenchmark
+{
+	private static final int LOOKUPS = 5000000;
+	
+	private static volatile long sink;
+	
+	public static void main(String[] args) throws Exception
+	{
+		long bound = args.length > 0 ? Long.parseLong(args[0]) : 1L << 28;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		
+		long start = System.nanoTime();
+		SmallestPrimeFactorSieve sieve = args.length > 2
+			? SmallestPrimeFactorSieve.build(bound, threads, new File(args[2]))
+			: SmallestPrimeFactorSieve.build(bound, threads);
+		long buildNanos = System.nanoTime() - start;
+		
+		System.gc();
+		long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+		
+		System.out.println(String.format("bound %d, %d threads: built in %.1f ms", bound, threads, buildNanos / 1e6));
+		System.out.println(String.format("resident size %.1f MB off-heap, heap delta %.1f MB",
+			sieve.getResidentBytes() / 1048576.0, (heapAfter - heapBefore) / 1048576.0));
+		
+		long[] inputs = new long[1 << 16];
+		Random random = new Random(7);
+		for (int k = 0; k < inputs.length; k++)
+			inputs[k] = 2 + (long) (random.nextDouble() * (bound - 2));
+		
+		long[] out = new long[FactorEngine.MAX_LONG_FACTORS];
+		for (int round = 0; round < 3; round++)
+		{
+			start = System.nanoTime();
+			long acc = 0;
+			for (int k = 0; k < LOOKUPS; k++)
+				acc += sieve.smallestPrimeFactor(inputs[k & (inputs.length - 1)]);
+			long lookupNanos = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int k = 0; k < LOOKUPS; k++)
+				acc += sieve.factor(inputs[k & (inputs.length - 1)], out);
+			long sieveFactorNanos = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int k = 0; k < LOOKUPS / 100; k++)
+				acc += FactorEngine.factor(inputs[k & (inputs.length - 1)], out);
+			long engineFactorNanos = System.nanoTime() - start;
+			sink = acc;
+			
+			System.out.println(String.format("round %d: lookup %.1f ns, factor via sieve %.1f ns, factor without sieve %.1f ns", round,
+				(double) lookupNanos / LOOKUPS, (double) sieveFactorNanos / LOOKUPS, (double) engineFactorNanos / (LOOKUPS / 100)));
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package b.threadsafety.factoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import $annotations.*;
+
+/*
+ * Precomputed SMALLEST-PRIME-FACTOR table for all numbers below a bound of at most 2^32. Factoring n < bound then takes one lookup per
+ * prime factor, i.e. O(log n) lookups.
+ * 
+ * Encoding: only odd numbers are stored, n at index n / 2, as one unsigned 16-bit value -- the smallest prime factor of a composite n
+ * is at most sqrt(2^32) = 2^16 -- with 0 marking a prime. That is exactly one byte per number in the range. The table lives OFF-HEAP,
+ * in direct buffers or in buffers mapped from a file, in chunks of CHUNK_BYTES since a single buffer cannot exceed 2 GB; a sieve up to
+ * 2^32 takes 4 GB of native memory (or page cache) and nothing on the Java heap.
+ * 
+ * The table is built in parallel: the range is cut into segments small enough to stay in cache and each segment is sieved by one task
+ * with all the base primes. The segments are disjoint, so the tasks write to different bytes and need no locking. Once built, the table
+ * is never written again: the sieve is EFFECTIVELY IMMUTABLE and thread-safe, as long as it is published safely (FactorEngine.useSieve
+ * stores it in a volatile field). Waiting for the build tasks' futures makes their writes visible to the building thread.
+ */
+@ThreadSafe
+public final class SmallestPrimeFactorSieve
+{
+	public static final long MAX_BOUND = 1L << 32;
+	
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+	private static final int SEGMENT_BYTES = 1 << 18;
+	
+	private final long bound;
+	private final ByteBuffer[] chunks;
+	private final long residentBytes;
+	
+	private SmallestPrimeFactorSieve(long bound, ByteBuffer[] chunks, long residentBytes)
+	{
+		this.bound = bound;
+		this.chunks = chunks;
+		this.residentBytes = residentBytes;
+	}
+	
+	
+	/*
+	 * Builds a sieve for all numbers below bound in direct (off-heap) buffers. Direct memory is limited by -XX:MaxDirectMemorySize,
+	 * which defaults to the maximum heap size; large sieves may be easier to build mapped onto a file.
+	 */
+	public static SmallestPrimeFactorSieve build(long bound, int threads) throws InterruptedException
+	{
+		checkBound(bound);
+		long bytes = tableBytes(bound);
+		
+		ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes)];
+		for (int c = 0; c < chunks.length; c++)
+			chunks[c] = ByteBuffer.allocateDirect((int) chunkBytes(bytes, c)).order(ByteOrder.nativeOrder());
+		
+		return sieve(bound, chunks, bytes, threads);
+	}
+	
+	/*
+	 * Builds a sieve for all numbers below bound in buffers mapped from the given file, which is created or overwritten. The table
+	 * then lives in the page cache and can be larger than the direct memory limit.
+	 */
+	public static SmallestPrimeFactorSieve build(long bound, int threads, File file) throws IOException, InterruptedException
+	{
+		checkBound(bound);
+		long bytes = tableBytes(bound);
+		
+		ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes)];
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(bytes);
+			FileChannel channel = raf.getChannel();
+			for (int c = 0; c < chunks.length; c++)
+			{
+				chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, c * CHUNK_BYTES, chunkBytes(bytes, c));
+				chunks[c].order(ByteOrder.nativeOrder());
+			}
+		}
+		finally
+		{
+			raf.close(); // the mappings stay valid after the channel is closed
+		}
+		
+		return sieve(bound, chunks, bytes, threads);
+	}
+	
+	
+	public long getBound()
+	{
+		return bound;
+	}
+	
+	/*
+	 * Off-heap bytes held by the table.
+	 */
+	public long getResidentBytes()
+	{
+		return residentBytes;
+	}
+	
+	/*
+	 * Smallest prime factor of n, for 2 <= n < bound.
+	 */
+	public long smallestPrimeFactor(long n)
+	{
+		if ((n & 1) == 0)
+			return 2;
+		
+		long spf = lookup(n);
+		return spf == 0 ? n : spf;
+	}
+	
+	/*
+	 * Writes the prime factors of n (1 <= n < bound) into out, in ascending order, and returns how many there are. Allocates nothing.
+	 */
+	public int factor(long n, long[] out)
+	{
+		int count = 0;
+		
+		int zeros = Long.numberOfTrailingZeros(n);
+		for (int k = 0; k < zeros; k++)
+			out[count++] = 2;
+		n >>= zeros;
+		
+		while (n > 1)
+		{
+			long p = lookup(n);
+			if (p == 0)
+			{
+				out[count++] = n;
+				break;
+			}
+			out[count++] = p;
+			n /= p;
+		}
+		return count;
+	}
+	
+	
+	private long lookup(long oddN)
+	{
+		long offset = (oddN >>> 1) << 1;
+		return chunks[(int) (offset >>> CHUNK_SHIFT)].getChar((int) (offset & (CHUNK_BYTES - 1)));
+	}
+	
+	private static SmallestPrimeFactorSieve sieve(long bound, final ByteBuffer[] chunks, long bytes, int threads)
+		throws InterruptedException
+	{
+		final int[] basePrimes = oddPrimesUpTo((int) Math.sqrt((double) bound) + 1);
+		final long entries = bytes / 2;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<?>> segments = new ArrayList<Future<?>>();
+			for (long first = 0; first < entries; first += SEGMENT_BYTES / 2)
+			{
+				final long from = first;
+				final long to = Math.min(entries, first + SEGMENT_BYTES / 2);
+				
+				segments.add(executor.submit(new Callable<Void>()
+				{
+					public Void call()
+					{
+						sieveSegment(chunks, basePrimes, from, to);
+						return null;
+					}
+				}));
+			}
+			
+			for (Future<?> segment : segments)
+				segment.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Sieve segment failed", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		return new SmallestPrimeFactorSieve(bound, chunks, bytes);
+	}
+	
+	/*
+	 * Marks the odd numbers with indices [from, to), i.e. the values [2 * from + 1, 2 * to + 1). Primes are taken in ascending order
+	 * and a slot is only written while still empty, so every composite ends up with its smallest prime factor.
+	 */
+	private static void sieveSegment(ByteBuffer[] chunks, int[] basePrimes, long from, long to)
+	{
+		long low = 2 * from + 1;
+		long high = 2 * to + 1;
+		
+		for (int p : basePrimes)
+		{
+			long square = (long) p * p;
+			if (square >= high)
+				break;
+			
+			// first odd multiple of p in the segment, but never p itself
+			long start = Math.max(square, (low + p - 1) / p * p);
+			if ((start & 1) == 0)
+				start += p;
+			
+			for (long multiple = start; multiple < high; multiple += 2L * p)
+			{
+				long offset = (multiple >>> 1) << 1;
+				ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+				int position = (int) (offset & (CHUNK_BYTES - 1));
+				if (chunk.getChar(position) == 0)
+					chunk.putChar(position, (char) p);
+			}
+		}
+	}
+	
+	private static int[] oddPrimesUpTo(int limit)
+	{
+		boolean[] composite = new boolean[limit + 1];
+		int[] primes = new int[limit + 1];
+		int count = 0;
+		
+		for (int i = 3; i <= limit; i += 2)
+		{
+			if (composite[i])
+				continue;
+			
+			primes[count++] = i;
+			for (long j = (long) i * i; j <= limit; j += 2L * i)
+				composite[(int) j] = true;
+		}
+		
+		int[] result = new int[count];
+		System.arraycopy(primes, 0, result, 0, count);
+		return result;
+	}
+	
+	private static void checkBound(long bound)
+	{
+		if (bound < 2 || bound > MAX_BOUND)
+			throw new IllegalArgumentException("Bound must be between 2 and 2^32: " + bound);
+	}
+	
+	private static long tableBytes(long bound)
+	{
+		return ((bound + 1) / 2) * 2; // one 16-bit slot per odd number below bound
+	}
+	
+	private static int chunkCount(long bytes)
+	{
+		return (int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT);
+	}
+	
+	private static long chunkBytes(long bytes, int chunk)
+	{
+		return Math.min(CHUNK_BYTES, bytes - chunk * CHUNK_BYTES);
+	}
+}
@@ -0,0 +1,191 @@
+package b.threadsafety.lazy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import $annotations.*;
+
+/*
+ * A value computed on first use, once, and safely published: the thread-safe replacement for LazyInitRace of B_Atomicity, whose
+ * check-then-act can build the object several times and hand it out without a happens-before edge.
+ * 
+ * Three ways to do it, for three situations:
+ * 
+ * HOLDER CLASS, for a value per class (a singleton): put it in a static field of a nested class that nothing else touches,
+ * 
+ *     private static class Holder { static final ExpensiveObject INSTANCE = new ExpensiveObject(); }
+ *     public static ExpensiveObject getInstance() { return Holder.INSTANCE; }
+ * 
+ * The JVM initializes Holder on the first getInstance(), once, under its class initialization lock, and every later read is a plain
+ * static field read that the JIT may even fold into a constant. It needs nothing from this class -- but it cannot be reused for a value
+ * per object, and a failed initializer leaves the class unusable (NoClassDefFoundError) for good.
+ * 
+ * doubleChecked(factory), for a value per object: a volatile read on the way in, and the factory called under the monitor only while
+ * the value is missing. The value is published with a RELEASE store (lazySet, the Java 7 form of VarHandle.setRelease) and read with
+ * an ACQUIRE load (the volatile read; on x86 and SPARC it compiles to a plain load), which is all the ordering safe publication needs.
+ * If the factory throws, the caller gets the exception and the next thread that holds the monitor tries again -- so under contention
+ * the waiting threads retry one after the other, each of them paying the whole cost of a failing factory.
+ * 
+ * retrying(factory), for a factory that can fail (I/O, a remote service): the same fast path, but the slow one does not hold a
+ * monitor. The first caller runs the factory, every concurrent caller waits for THAT attempt and gets its result, value or failure;
+ * a failed attempt is forgotten, and the next get() starts a new one. So a failing factory is called once per wave of callers, not
+ * once per caller, and a waiting caller can be interrupted.
+ * 
+ * In both objects, once the value is there get() is a field read and a null check, with no lock and no write. The factory must not
+ * return null. Unchecked exceptions and errors of the factory are rethrown as they are, checked ones wrapped in an
+ * IllegalStateException.
+ */
+@ThreadSafe
+public abstract class Lazy<T>
+{
+	public static <T> Lazy<T> doubleChecked(Callable<? extends T> factory)
+	{
+		return new DoubleChecked<T>(factory);
+	}
+	
+	public static <T> Lazy<T> retrying(Callable<? extends T> factory)
+	{
+		return new Retrying<T>(factory);
+	}
+	
+	Lazy() {}
+	
+	
+	public abstract T get();
+	
+	public abstract boolean isInitialized();
+	
+	
+	static <T> T call(Callable<? extends T> factory)
+	{
+		T value;
+		try
+		{
+			value = factory.call();
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Lazy initialization failed", e);
+		}
+		if (value == null)
+			throw new IllegalStateException("Lazy factory returned null: " + factory);
+		return value;
+	}
+	
+	
+	@ThreadSafe
+	private static final class DoubleChecked<T> extends Lazy<T>
+	{
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<DoubleChecked, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(
+			DoubleChecked.class, Object.class, "value");
+		
+		private final Callable<? extends T> factory;
+		private volatile T value;
+		
+		DoubleChecked(Callable<? extends T> factory)
+		{
+			if (factory == null)
+				throw new NullPointerException("factory");
+			this.factory = factory;
+		}
+		
+		public T get()
+		{
+			T result = value;
+			return result != null ? result : initialize();
+		}
+		
+		private synchronized T initialize()
+		{
+			T result = value; // a thread that held the monitor before us may have set it
+			if (result == null)
+			{
+				result = call(factory);
+				VALUE.lazySet(this, result);
+			}
+			return result;
+		}
+		
+		public boolean isInitialized()
+		{
+			return value != null;
+		}
+	}
+	
+	@ThreadSafe
+	private static final class Retrying<T> extends Lazy<T>
+	{
+		private final Callable<? extends T> factory;
+		private final AtomicReference<FutureTask<T>> attempt = new AtomicReference<FutureTask<T>>();
+		private volatile T value;
+		
+		Retrying(Callable<? extends T> factory)
+		{
+			if (factory == null)
+				throw new NullPointerException("factory");
+			this.factory = factory;
+		}
+		
+		public T get()
+		{
+			T result = value;
+			return result != null ? result : initialize();
+		}
+		
+		private T initialize()
+		{
+			for (;;)
+			{
+				FutureTask<T> current = attempt.get();
+				if (current == null)
+				{
+					FutureTask<T> mine = new FutureTask<T>(new Callable<T>()
+					{
+						public T call()
+						{
+							T result = Lazy.call(factory);
+							value = result; // before the task completes, so a waiter that sees the result sees the field set
+							return result;
+						}
+					});
+					if (!attempt.compareAndSet(null, mine))
+						continue;
+					current = mine;
+					current.run();
+				}
+				
+				try
+				{
+					return current.get();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for the lazy value", e);
+				}
+				catch (ExecutionException e)
+				{
+					attempt.compareAndSet(current, null); // forget the failed attempt, the next get() starts another
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new IllegalStateException("Lazy initialization failed", cause);
+				}
+			}
+		}
+		
+		public boolean isInitialized()
+		{
+			return value != null;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package b.threadsafety.lazy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Startup race: THREADS threads wait at a barrier, are released together, and all ask one fresh lazy value for it, whose factory
+ * takes a given time, waiting as one doing I/O would (so the other threads run meanwhile, even on a single core). Repeated for a
+ * number of trials; reported per variant, as percentiles over the trials: the time from the release to the FIRST thread holding its
+ * answer, to the LAST one holding it, how many times the factory ran, and how many threads got a failure instead of the value.
+ * 
+ * Variants: "race", the check-then-act of LazyInitRace (B_Atomicity); "synchronized", the same under the monitor on every call;
+ * "holder", the holder-class idiom, each trial on a fresh copy of the Holder class defined by a throwaway class loader (read through
+ * reflection, since that class is not the one the code was compiled against); and the doubleChecked and retrying Lazy.
+ * 
+ * With a failure count above 0, the factory throws on its first that many calls, and the trials show what a failing factory costs
+ * the callers: the waiting threads of doubleChecked (and synchronized) each try in turn, so the last of them answers only after all
+ * the failed attempts; those of retrying share the failure of the attempt they waited for, and all answer after one attempt. Holder is
+ * left out then: a failed class initializer is never retried.
+ * 
+ * Arguments: [trials, default 200] [factory microseconds, default 1000] [failures, default 0]
+ */
+public class LazyStartupBenchmark
+{
+	private static final int THREADS = 64;
+	private static final String HOLDER = Holder.class.getName();
+	
+	private static volatile long factoryNanos;
+	private static volatile int failures;
+	private static final AtomicInteger calls = new AtomicInteger(0);
+	private static final AtomicInteger failed = new AtomicInteger(0);
+	
+	/*
+	 * One lazy value under test, as the racing threads see it.
+	 */
+	private interface Variant
+	{
+		Object get() throws Exception;
+	}
+	
+	/*
+	 * Loaded afresh for every holder trial; public because its copies live in another class loader, hence another runtime package.
+	 */
+	public static final class Holder
+	{
+		public static final Object INSTANCE = create();
+	}
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		int trials = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		factoryNanos = (args.length > 1 ? Long.parseLong(args[1]) : 1000) * 1000;
+		failures = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		
+		System.out.println(String.format("%d threads, factory %d us, %d failures, %d trials", THREADS, factoryNanos / 1000, failures,
+			trials));
+		System.out.println(String.format("%-14s %12s %12s %12s %12s %10s %10s %10s", "(ms)", "first p50", "first p99", "last p50",
+			"last p99", "calls p50", "calls max", "failed p50"));
+		
+		String[] names = failures > 0 ? new String[] {"race", "synchronized", "doubleChecked", "retrying"}
+			: new String[] {"race", "synchronized", "holder", "doubleChecked", "retrying"};
+		for (String name : names)
+			run(name, trials);
+	}
+	
+	/*
+	 * The factory of every variant: counts its calls, waits for factoryNanos, and fails if it is one of the first calls.
+	 */
+	public static Object create()
+	{
+		int call = calls.incrementAndGet();
+		long due = System.nanoTime() + factoryNanos;
+		for (long left = factoryNanos; left > 0; left = due - System.nanoTime())
+			LockSupport.parkNanos(left); // the work of building the object
+		if (call <= failures)
+			throw new IllegalStateException("Failure " + call);
+		return new Object();
+	}
+	
+	private static Variant variant(String name) throws Exception
+	{
+		final Callable<Object> factory = new Callable<Object>()
+		{
+			public Object call()
+			{
+				return create();
+			}
+		};
+		
+		if (name.equals("race"))
+			return new Variant()
+			{
+				private Object instance;
+				
+				public Object get()
+				{
+					if (instance == null)
+						instance = create();
+					return instance;
+				}
+			};
+		if (name.equals("synchronized"))
+			return new Variant()
+			{
+				private Object instance;
+				
+				public synchronized Object get()
+				{
+					if (instance == null)
+						instance = create();
+					return instance;
+				}
+			};
+		if (name.equals("holder"))
+		{
+			final Field instance = new HolderLoader().loadClass(HOLDER).getField("INSTANCE"); // loaded, not yet initialized
+			return new Variant()
+			{
+				public Object get() throws IllegalAccessException
+				{
+					return instance.get(null);
+				}
+			};
+		}
+		final Lazy<Object> lazy = name.equals("doubleChecked") ? Lazy.doubleChecked(factory) : Lazy.retrying(factory);
+		return new Variant()
+		{
+			public Object get()
+			{
+				return lazy.get();
+			}
+		};
+	}
+	
+	private static void run(String name, int trials) throws Exception
+	{
+		final long[] start = new long[1];
+		final CyclicBarrier setUp = new CyclicBarrier(THREADS + 1);
+		final CyclicBarrier release = new CyclicBarrier(THREADS + 1, new Runnable()
+		{
+			public void run()
+			{
+				start[0] = System.nanoTime(); // by the last thread to arrive, just before all of them go
+			}
+		});
+		final CyclicBarrier finished = new CyclicBarrier(THREADS + 1);
+		final long[] done = new long[THREADS];
+		final Variant[] current = new Variant[1];
+		long[] first = new long[trials];
+		long[] last = new long[trials];
+		long[] factoryCalls = new long[trials];
+		long[] failedCalls = new long[trials];
+		
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++)
+		{
+			final int id = t;
+			threads[t] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						for (;;)
+						{
+							setUp.await();
+							Variant variant = current[0];
+							if (variant == null)
+								return;
+							release.await();
+							try
+							{
+								variant.get();
+							}
+							catch (Exception e)
+							{
+								failed.incrementAndGet();
+							}
+							done[id] = System.nanoTime();
+							finished.await();
+						}
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					catch (BrokenBarrierException e)
+					{
+						return;
+					}
+				}
+			});
+			threads[t].setDaemon(true);
+			threads[t].start();
+		}
+		
+		for (int trial = 0; trial < trials; trial++)
+		{
+			calls.set(0);
+			failed.set(0);
+			current[0] = variant(name);
+			setUp.await(); // the barrier publishes current[0] to the threads
+			release.await();
+			finished.await(); // and the threads' done[] to this one
+			
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for (long time : done)
+			{
+				min = Math.min(min, time);
+				max = Math.max(max, time);
+			}
+			first[trial] = min - start[0];
+			last[trial] = max - start[0];
+			factoryCalls[trial] = calls.get();
+			failedCalls[trial] = failed.get();
+		}
+		current[0] = null;
+		setUp.await();
+		
+		Arrays.sort(first);
+		Arrays.sort(last);
+		Arrays.sort(factoryCalls);
+		Arrays.sort(failedCalls);
+		System.out.println(String.format("%-14s %12.3f %12.3f %12.3f %12.3f %10d %10d %10d", name, percentile(first, 0.50) / 1e6,
+			percentile(first, 0.99) / 1e6, percentile(last, 0.50) / 1e6, percentile(last, 0.99) / 1e6, percentile(factoryCalls, 0.50),
+			factoryCalls[trials - 1], percentile(failedCalls, 0.50)));
+	}
+	
+	private static long percentile(long[] sorted, double p)
+	{
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+	
+	
+	/*
+	 * Defines its own copy of Holder, so each trial has a class that is not yet initialized; everything else comes from the parent.
+	 */
+	private static final class HolderLoader extends ClassLoader
+	{
+		HolderLoader()
+		{
+			super(LazyStartupBenchmark.class.getClassLoader());
+		}
+		
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+		{
+			if (!name.equals(HOLDER))
+				return super.loadClass(name, resolve);
+			
+			synchronized (this)
+			{
+				Class<?> loaded = findLoadedClass(name);
+				if (loaded != null)
+					return loaded;
+				byte[] bytes = read(name.replace('.', '/') + ".class");
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		}
+		
+		private byte[] read(String resource) throws ClassNotFoundException
+		{
+			InputStream in = getParent().getResourceAsStream(resource);
+			if (in == null)
+				throw new ClassNotFoundException(resource);
+			try
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+					out.write(buffer, 0, n);
+				return out.toByteArray();
+			}
+			catch (IOException e)
+			{
+				throw new ClassNotFoundException(resource, e);
+			}
+			finally
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					// nothing left to read
+				}
+			}
+		}
+	}
+}
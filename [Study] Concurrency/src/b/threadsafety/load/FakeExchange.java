@@ -0,0 +1,239 @@
+package b.threadsafety.load;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.Servlet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import $annotations.*;
+
+/*
+ * One request/response pair of the load driver, REUSED from request to request: arm() loads the next number, run() plays the
+ * container thread, and the exchange is answered either when service() returns or, once the servlet has called startAsync(), when
+ * AsyncContext.complete() is called from wherever the servlet finishes. Then the listener is told, exactly once. The exchange is
+ * RELEASED for reuse only when it is both answered and back from service(): an async servlet may answer before service() returns, and
+ * re-arming the exchange in between would let the old service() call see the state of the next request.
+ * 
+ * The request, response and async context are dynamic proxies over this handler, built once, implementing just enough of the Servlet
+ * API for the servlets of b.threadsafety: parameter "n" (getParameter and getParameterValues), startAsync(), getRequest() and
+ * getResponse(), complete(), setStatus(), setContentType(), and a writer and an output stream that count and drop what they are given.
+ * Every other method answers false, 0 or null. A servlet that throws answers 500, as a container would.
+ */
+@ThreadSafe
+final class FakeExchange implements InvocationHandler, Runnable
+{
+	static final String PARAMETER = "n";
+	
+	/*
+	 * Told of every answered exchange, then of its release, each on the thread that did it.
+	 */
+	interface Listener
+	{
+		void answered(FakeExchange exchange);
+		void released(FakeExchange exchange);
+	}
+	
+	private final Listener listener;
+	private final ServletRequest request;
+	private final HttpServletResponse response;
+	private final AsyncContext context;
+	private final AtomicBoolean answered = new AtomicBoolean(true);
+	private final AtomicInteger holds = new AtomicInteger(0); // the answer and service(), each released once
+	private final PrintWriter writer;
+	private final ServletOutputStream stream;
+	
+	// written by arm() before the exchange is handed to the serving thread, read by whoever answers it
+	private volatile Servlet servlet;
+	private volatile String text;
+	private volatile long intended;
+	private volatile long started;
+	private volatile long completed;
+	private volatile int status;
+	private volatile boolean async;
+	private volatile String contentType;
+	private volatile long bytes;
+	
+	FakeExchange(Listener listener)
+	{
+		this.listener = listener;
+		ClassLoader loader = FakeExchange.class.getClassLoader();
+		this.request = (ServletRequest) Proxy.newProxyInstance(loader, new Class<?>[] {ServletRequest.class}, this);
+		this.response = (HttpServletResponse) Proxy.newProxyInstance(loader, new Class<?>[] {HttpServletResponse.class}, this);
+		this.context = (AsyncContext) Proxy.newProxyInstance(loader, new Class<?>[] {AsyncContext.class}, this);
+		this.writer = new PrintWriter(new Writer()
+		{
+			public void write(char[] buffer, int offset, int length){bytes += length;}
+			public void flush(){}
+			public void close(){}
+		});
+		this.stream = new ServletOutputStream()
+		{
+			public void write(int b){bytes++;}
+			public void write(byte[] buffer, int offset, int length){bytes += length;}
+		};
+	}
+	
+	
+	/*
+	 * Prepares the next request: the number in decimal, and when it was meant to be sent (System.nanoTime()), which is what the
+	 * corrected latency is measured from. The previous request must have been released.
+	 */
+	void arm(Servlet servlet, String text, long intended)
+	{
+		if (holds.get() != 0)
+			throw new IllegalStateException("Exchange still in flight");
+		this.servlet = servlet;
+		this.text = text;
+		this.intended = intended;
+		this.status = HttpServletResponse.SC_OK;
+		this.async = false;
+		this.contentType = null;
+		this.bytes = 0;
+		holds.set(2);
+		answered.set(false);
+	}
+	
+	/*
+	 * Calls service() on the calling thread, as a container thread would, and answers the exchange if the servlet did not go async.
+	 */
+	public void run()
+	{
+		started = System.nanoTime();
+		try
+		{
+			servlet.service(request, response);
+			if (!async)
+				complete();
+		}
+		catch (Exception e)
+		{
+			status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+			complete();
+		}
+		release();
+	}
+	
+	/*
+	 * Idempotent: an async servlet may both time out and finish the job, only the first complete() counts.
+	 */
+	private void complete()
+	{
+		if (answered.compareAndSet(false, true))
+		{
+			completed = System.nanoTime();
+			writer.flush();
+			listener.answered(this);
+			release();
+		}
+	}
+	
+	private void release()
+	{
+		if (holds.decrementAndGet() == 0)
+			listener.released(this);
+	}
+	
+	boolean isReleased()
+	{
+		return holds.get() == 0;
+	}
+	
+	long getIntended()
+	{
+		return intended;
+	}
+	
+	/*
+	 * Time from the intended send to the answer: what the client saw, including any time spent waiting to be served.
+	 */
+	long getLatency()
+	{
+		return completed - intended;
+	}
+	
+	/*
+	 * Time from the start of service() to the answer: what a timer inside the server would report.
+	 */
+	long getServiceTime()
+	{
+		return completed - started;
+	}
+	
+	int getStatus()
+	{
+		return status;
+	}
+	
+	long getBytes()
+	{
+		return bytes;
+	}
+	
+	
+	public Object invoke(Object proxy, Method method, Object[] args)
+	{
+		String name = method.getName();
+		if (name.equals("getParameter"))
+			return PARAMETER.equals(args[0]) ? text : null;
+		if (name.equals("getParameterValues"))
+			return PARAMETER.equals(args[0]) ? new String[] {text} : null;
+		if (name.equals("startAsync"))
+		{
+			async = true;
+			return context;
+		}
+		if (name.equals("isAsyncStarted"))
+			return async;
+		if (name.equals("getAsyncContext"))
+			return async ? context : null;
+		if (name.equals("getRequest"))
+			return request;
+		if (name.equals("getResponse"))
+			return response;
+		if (name.equals("complete"))
+		{
+			complete();
+			return null;
+		}
+		if (name.equals("getWriter"))
+			return writer;
+		if (name.equals("getOutputStream"))
+			return stream;
+		if (name.equals("setStatus") || name.equals("sendError"))
+		{
+			status = (Integer) args[0];
+			return null;
+		}
+		if (name.equals("getStatus"))
+			return status;
+		if (name.equals("setContentType"))
+		{
+			contentType = (String) args[0];
+			return null;
+		}
+		if (name.equals("getContentType"))
+			return contentType;
+		if (name.equals("toString"))
+			return "FakeExchange[" + text + "]";
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("equals"))
+			return proxy == args[0];
+		
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class)
+			return false;
+		if (type == long.class)
+			return 0L;
+		if (type == int.class)
+			return 0;
+		return null;
+	}
+}
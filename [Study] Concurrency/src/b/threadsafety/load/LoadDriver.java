@@ -0,0 +1,326 @@
+package b.threadsafety.load;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import b.threadsafety.metrics.LatencyHistogram;
+import b.threadsafety.metrics.LatencyRecorder;
+import b.threadsafety.metrics.StripedCounter;
+
+/*
+ * In-process load generator for any servlet of b.threadsafety: no container, no sockets, just FakeExchanges handed to service() and
+ * the time until they are answered, over a Workload of numbers with a chosen repeat rate (Zipf exponent), bit-length mix and share of
+ * primes and semiprimes. Two ways to send the requests:
+ * 
+ * CLOSED loop: "clients" threads each send a request, wait for the answer, optionally think, and send the next. The load adapts to the
+ * servlet -- a slow answer delays the next request -- so this measures the throughput at a given concurrency, but its latencies are
+ * those of the requests that got to be sent: while a client waits for a slow answer, the requests it would have sent meanwhile are
+ * never measured (COORDINATED OMISSION), and the percentiles look better than what users would see.
+ * 
+ * OPEN loop: requests arrive at a fixed "rate" whatever happens to the earlier ones, on a schedule fixed in advance (start + k / rate),
+ * and are served by "clients" container threads in front of an unbounded queue. Latency is measured from the INTENDED send time, so
+ * time spent in the queue, and time the generator itself fell behind its schedule, is counted -- the coordinated-omission correction.
+ * The service time, from the start of service() to the answer, is reported alongside: the gap between the two is the queueing that a
+ * timer inside the server does not see.
+ * 
+ * Requests whose (intended) send falls in the warmup are not measured. Reported: answered requests per second, errors (5xx other than
+ * 503), rejections (503), requests still unanswered at the end, and the percentiles of the latency and of the service time.
+ * 
+ * The servlet is named by class: a top-level servlet is built with its no-argument constructor, one of the inner servlets of
+ * A_Introduction, B_Atomicity or C_Locking through a new instance of its outer class (their extractFromRequest reads "n").
+ * 
+ * Arguments, as name=value, all optional:
+ *   servlet=b.threadsafety.servlet.AsyncFactorizer  mode=closed|open  clients=16  rate=2000 (open)  think=0 (closed, microseconds)
+ *   warmup=2 seconds=5 (seconds)  distinct=10000  zipf=1.0  bits=40:0.7,64:0.3 (length:weight,...)  primes=0.1  semiprimes=0.2  seed=1
+ * for example: servlet=b.threadsafety.C_Locking$CachedFactorizer mode=open rate=5000 zipf=0.8 bits=32:1,62:1
+ */
+public class LoadDriver
+{
+	private static final long DRAIN_NANOS = 10000000000L;
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args)
+		{
+			int equals = arg.indexOf('=');
+			if (equals < 1)
+				throw new IllegalArgumentException("Expected name=value, got " + arg);
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		
+		String servletName = option(options, "servlet", "b.threadsafety.servlet.AsyncFactorizer");
+		boolean open = option(options, "mode", "closed").equals("open");
+		int clients = Integer.parseInt(option(options, "clients", "16"));
+		double rate = Double.parseDouble(option(options, "rate", "2000"));
+		long thinkNanos = Long.parseLong(option(options, "think", "0")) * 1000;
+		long warmupNanos = (long) (Double.parseDouble(option(options, "warmup", "2")) * 1e9);
+		long measureNanos = (long) (Double.parseDouble(option(options, "seconds", "5")) * 1e9);
+		
+		String[] mix = option(options, "bits", "40:0.7,64:0.3").split(",");
+		int[] bitLengths = new int[mix.length];
+		double[] bitWeights = new double[mix.length];
+		for (int k = 0; k < mix.length; k++)
+		{
+			String[] pair = mix[k].split(":");
+			bitLengths[k] = Integer.parseInt(pair[0].trim());
+			bitWeights[k] = pair.length > 1 ? Double.parseDouble(pair[1].trim()) : 1;
+		}
+		Workload workload = new Workload(Integer.parseInt(option(options, "distinct", "10000")),
+			Double.parseDouble(option(options, "zipf", "1.0")), bitLengths, bitWeights, Double.parseDouble(option(options, "primes", "0.1")),
+			Double.parseDouble(option(options, "semiprimes", "0.2")), Long.parseLong(option(options, "seed", "1")));
+		if (!options.isEmpty())
+			throw new IllegalArgumentException("Unknown options " + options.keySet());
+		
+		Servlet servlet = create(servletName);
+		servlet.init(null);
+		
+		System.out.println(servletName);
+		System.out.println(open ? String.format("open loop, %.0f requests/s, %d container threads", rate, clients)
+			: String.format("closed loop, %d clients, think %d us", clients, thinkNanos / 1000));
+		System.out.println(workload + String.format(" (the 1000 hottest take %.1f%% of the requests)", 100 * workload.topShare(1000)));
+		System.out.println(String.format("warmup %.1f s, measured %.1f s", warmupNanos / 1e9, measureNanos / 1e9));
+		
+		Run run = new Run(System.nanoTime() + 10000000L, warmupNanos, measureNanos);
+		if (open)
+			runOpen(run, servlet, workload, rate, clients);
+		else
+			runClosed(run, servlet, workload, clients, thinkNanos);
+		
+		run.report();
+		servlet.destroy();
+	}
+	
+	private static String option(Map<String, String> options, String name, String otherwise)
+	{
+		String value = options.remove(name);
+		return value != null ? value : otherwise;
+	}
+	
+	
+	private static void runClosed(final Run run, final Servlet servlet, final Workload workload, int clients, final long thinkNanos)
+		throws InterruptedException
+	{
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int c = 0; c < clients; c++)
+		{
+			final long seed = c;
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					final Thread self = Thread.currentThread();
+					FakeExchange exchange = new FakeExchange(new FakeExchange.Listener()
+					{
+						public void answered(FakeExchange exchange)
+						{
+							run.answered(exchange);
+						}
+						
+						public void released(FakeExchange exchange)
+						{
+							LockSupport.unpark(self);
+						}
+					});
+					Random random = new Random(seed);
+					
+					while (System.nanoTime() < run.end)
+					{
+						exchange.arm(servlet, workload.getText(workload.nextIndex(random.nextDouble())), System.nanoTime());
+						exchange.run();
+						while (!exchange.isReleased())
+							LockSupport.park(this);
+						if (thinkNanos > 0)
+							sleepUntil(System.nanoTime() + thinkNanos);
+					}
+				}
+			}, "client-" + c);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		
+		long deadline = run.end + DRAIN_NANOS;
+		for (Thread thread : threads)
+		{
+			thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			if (thread.isAlive())
+				run.unfinished++;
+		}
+	}
+	
+	private static void runOpen(final Run run, Servlet servlet, Workload workload, double rate, int containerThreads)
+	{
+		final ConcurrentLinkedQueue<FakeExchange> pool = new ConcurrentLinkedQueue<FakeExchange>();
+		FakeExchange.Listener listener = new FakeExchange.Listener()
+		{
+			public void answered(FakeExchange exchange)
+			{
+				run.answered(exchange);
+			}
+			
+			public void released(FakeExchange exchange)
+			{
+				pool.offer(exchange);
+			}
+		};
+		
+		final AtomicInteger sequence = new AtomicInteger(0);
+		ThreadPoolExecutor container = new ThreadPoolExecutor(containerThreads, containerThreads, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "container-" + sequence.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		container.prestartAllCoreThreads();
+		
+		Random random = new Random(0);
+		int created = 0;
+		for (long k = 0; ; k++)
+		{
+			long intended = run.start + (long) (k * 1e9 / rate);
+			if (intended >= run.end)
+				break;
+			sleepUntil(intended);
+			run.lag = Math.max(run.lag, System.nanoTime() - intended);
+			
+			FakeExchange exchange = pool.poll();
+			if (exchange == null)
+			{
+				exchange = new FakeExchange(listener);
+				created++;
+			}
+			exchange.arm(servlet, workload.getText(workload.nextIndex(random.nextDouble())), intended);
+			container.execute(exchange);
+		}
+		
+		long deadline = run.end + DRAIN_NANOS;
+		while (pool.size() < created && System.nanoTime() < deadline)
+			sleepUntil(System.nanoTime() + 1000000);
+		run.unfinished = created - pool.size();
+		run.exchanges = created;
+		container.shutdownNow();
+	}
+	
+	private static void sleepUntil(long due)
+	{
+		for (long left = due - System.nanoTime(); left > 0; left = due - System.nanoTime())
+			LockSupport.parkNanos(Math.min(left, 50000));
+	}
+	
+	
+	/*
+	 * The servlet of the given class, through an instance of its outer class if it is an inner class.
+	 */
+	private static Servlet create(String name) throws Exception
+	{
+		Class<?> type = Class.forName(name);
+		if (!Servlet.class.isAssignableFrom(type))
+			throw new IllegalArgumentException(name + " is not a Servlet");
+		
+		Class<?> outer = type.getEnclosingClass();
+		if (outer == null || Modifier.isStatic(type.getModifiers()))
+		{
+			Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return (Servlet) constructor.newInstance();
+		}
+		
+		Constructor<?> outerConstructor = outer.getDeclaredConstructor();
+		outerConstructor.setAccessible(true);
+		Constructor<?> constructor = type.getDeclaredConstructor(outer);
+		constructor.setAccessible(true);
+		return (Servlet) constructor.newInstance(outerConstructor.newInstance());
+	}
+	
+	
+	/*
+	 * What one run measured. Answers are recorded by the threads that complete them, into striped recorders and counters,
+	 * so that measuring does not serialize the servlet's own threads; the rest is written by the driving thread only.
+	 */
+	private static final class Run
+	{
+		final long start;
+		final long measureStart;
+		final long end;
+		final LatencyRecorder latency = new LatencyRecorder();
+		final LatencyRecorder service = new LatencyRecorder();
+		final StripedCounter errors = new StripedCounter();
+		final StripedCounter rejected = new StripedCounter();
+		long lag;
+		long unfinished;
+		long exchanges = -1;
+		
+		Run(long start, long warmupNanos, long measureNanos)
+		{
+			this.start = start;
+			this.measureStart = start + warmupNanos;
+			this.end = measureStart + measureNanos;
+		}
+		
+		void answered(FakeExchange exchange)
+		{
+			long intended = exchange.getIntended();
+			if (intended < measureStart || intended >= end)
+				return;
+			
+			int status = exchange.getStatus();
+			if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+				rejected.increment();
+			else if (status >= 500)
+				errors.increment();
+			else
+			{
+				latency.record(exchange.getLatency());
+				service.record(exchange.getServiceTime());
+			}
+		}
+		
+		void report()
+		{
+			LatencyHistogram latencies = latency.getHistogram();
+			double seconds = (end - measureStart) / 1e9;
+			System.out.println(String.format("answered %d (%.1f/s), %d errors, %d rejected (503), %d unfinished", latencies.getTotalCount(),
+				latencies.getTotalCount() / seconds, errors.get(), rejected.get(), unfinished));
+			if (exchanges >= 0)
+				System.out.println(String.format("generator fell behind its schedule by up to %.3f ms, %d exchanges in flight at most",
+					lag / 1e6, exchanges));
+			
+			StringBuilder header = new StringBuilder(String.format("%-10s %10s", "(us)", "mean"));
+			for (double p : PERCENTILES)
+				header.append(String.format(" %10s", "p" + (p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p))));
+			header.append(String.format(" %10s", "max"));
+			System.out.println(header);
+			print("latency", latencies);
+			print("service", service.getHistogram());
+		}
+		
+		private static void print(String name, LatencyHistogram histogram)
+		{
+			StringBuilder line = new StringBuilder(String.format("%-10s %10.1f", name, histogram.getMean() / 1e3));
+			for (double p : PERCENTILES)
+				line.append(String.format(" %10.1f", histogram.getValueAtPercentile(p) / 1e3));
+			line.append(String.format(" %10.1f", histogram.getMaxValue() / 1e3));
+			System.out.println(line);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package b.threadsafety.load;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import $annotations.*;
+
+/*
+ * The numbers a load run asks for: a fixed POOL of distinct numbers, drawn with ZIPFIAN popularity.
+ * 
+ * Each number of the pool gets a bit length from the bit-length mix (lengths with relative weights) and a kind: PRIME with probability
+ * primeRatio, SEMIPRIME (two primes of half the length each, the hard case for the factoring engine) with probability semiprimeRatio,
+ * and otherwise a random number of that length, which is mostly smooth and cheap. Then the number of rank k (1 to distinct) is drawn
+ * with probability proportional to 1 / k^s: s = 0 is uniform, and the larger s, the more often the same few numbers repeat -- which
+ * is what decides the hit rate of the caching servlets.
+ * 
+ * Everything is computed up front, including the decimal form of every number, so that drawing a number costs a uniform random value
+ * and a binary search over the cumulative weights, and allocates nothing. Immutable; each thread brings its own random state.
+ */
+@Immutable
+public final class Workload
+{
+	private final BigInteger[] numbers;
+	private final String[] texts;
+	private final double[] cumulative;
+	private final String description;
+	
+	/*
+	 * bitLengths and bitWeights are parallel arrays: the mix of bit lengths (each at least 4) and their relative weights.
+	 */
+	public Workload(int distinct, double zipfExponent, int[] bitLengths, double[] bitWeights, double primeRatio, double semiprimeRatio,
+			long seed)
+	{
+		if (distinct < 1 || zipfExponent < 0 || bitLengths.length == 0 || bitLengths.length != bitWeights.length
+				|| primeRatio < 0 || semiprimeRatio < 0 || primeRatio + semiprimeRatio > 1)
+			throw new IllegalArgumentException("Bad workload: " + distinct + " numbers, s = " + zipfExponent + ", bits "
+				+ Arrays.toString(bitLengths) + " weighted " + Arrays.toString(bitWeights) + ", primes " + primeRatio + ", semiprimes "
+				+ semiprimeRatio);
+		for (int bits : bitLengths)
+			if (bits < 4)
+				throw new IllegalArgumentException("Bit lengths must be at least 4: " + bits);
+		
+		Random random = new Random(seed);
+		double[] bitCumulative = cumulative(bitWeights);
+		
+		numbers = new BigInteger[distinct];
+		texts = new String[distinct];
+		for (int k = 0; k < distinct; k++)
+		{
+			int bits = bitLengths[search(bitCumulative, random.nextDouble())];
+			double kind = random.nextDouble();
+			BigInteger number;
+			if (kind < primeRatio)
+				number = BigInteger.probablePrime(bits, random);
+			else if (kind < primeRatio + semiprimeRatio)
+				number = BigInteger.probablePrime(bits / 2, random).multiply(BigInteger.probablePrime(bits - bits / 2, random));
+			else
+				number = new BigInteger(bits - 1, random).setBit(bits - 1);
+			
+			numbers[k] = number;
+			texts[k] = number.toString();
+		}
+		
+		double[] weights = new double[distinct];
+		for (int k = 0; k < distinct; k++)
+			weights[k] = 1 / Math.pow(k + 1, zipfExponent);
+		cumulative = cumulative(weights);
+		
+		description = String.format("%d numbers, zipf s=%.2f, bits %s weighted %s, %.0f%% primes, %.0f%% semiprimes", distinct,
+			zipfExponent, Arrays.toString(bitLengths), Arrays.toString(bitWeights), 100 * primeRatio, 100 * semiprimeRatio);
+	}
+	
+	/*
+	 * Rank of the next number, for a uniform value u in [0, 1).
+	 */
+	public int nextIndex(double u)
+	{
+		return search(cumulative, u);
+	}
+	
+	public BigInteger getNumber(int index)
+	{
+		return numbers[index];
+	}
+	
+	/*
+	 * The decimal form of the number, as a request parameter carries it.
+	 */
+	public String getText(int index)
+	{
+		return texts[index];
+	}
+	
+	public int size()
+	{
+		return numbers.length;
+	}
+	
+	/*
+	 * Share of the draws that fall on the hottest numbers: the best hit rate a cache of that many entries can reach.
+	 */
+	public double topShare(int entries)
+	{
+		return entries <= 0 ? 0 : cumulative[Math.min(entries, cumulative.length) - 1];
+	}
+	
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+	
+	
+	/*
+	 * Normalized running sums, the last one exactly 1.
+	 */
+	private static double[] cumulative(double[] weights)
+	{
+		double total = 0;
+		for (double weight : weights)
+		{
+			if (weight < 0)
+				throw new IllegalArgumentException("Negative weight: " + Arrays.toString(weights));
+			total += weight;
+		}
+		if (total <= 0)
+			throw new IllegalArgumentException("No positive weight: " + Arrays.toString(weights));
+		
+		double[] sums = new double[weights.length];
+		double sum = 0;
+		for (int k = 0; k < weights.length; k++)
+		{
+			sum += weights[k];
+			sums[k] = sum / total;
+		}
+		sums[sums.length - 1] = 1;
+		return sums;
+	}
+	
+	/*
+	 * First index whose running sum exceeds u.
+	 */
+	private static int search(double[] sums, double u)
+	{
+		int low = 0;
+		int high = sums.length - 1;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sums[middle] > u)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+}
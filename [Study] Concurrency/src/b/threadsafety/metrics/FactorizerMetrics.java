@@ -0,0 +1,148 @@
+package b.threadsafety.metrics;
+
+import $annotations.*;
+
+/*
+ * Metrics every factorizer servlet in b.threadsafety reports into: requests, cache hits and misses, the time spent factoring and
+ * encoding, and the factorizations cut short by their deadline. Each figure is a StripedCounter, so recording a request never blocks
+ * and does not make all request threads fight over one cache line the way a single AtomicLong, or counters incremented under a shared
+ * monitor, would.
+ * 
+ * Next to these lifetime totals, a WindowedRecorder keeps the current picture: requests per second over the last 1, 10 or 60 seconds,
+ * and histograms of the whole service() latency, split by cache hit and miss.
+ * 
+ * snapshot() reads the counters without blocking the writers. The counters are not read at one instant, but writers count the request
+ * first and the hit or miss afterwards, while snapshot() reads hits and misses first and requests last, so a snapshot never shows
+ * more hits plus misses than requests.
+ */
+@ThreadSafe
+public class FactorizerMetrics
+{
+	private final StripedCounter requests = new StripedCounter();
+	private final StripedCounter cacheHits = new StripedCounter();
+	private final StripedCounter cacheMisses = new StripedCounter();
+	private final StripedCounter factorNanos = new StripedCounter();
+	private final StripedCounter encodeNanos = new StripedCounter();
+	private final StripedCounter timeouts = new StripedCounter();
+	private final WindowedRecorder windowed = new WindowedRecorder();
+	
+	
+	/*
+	 * A request served without any cache: the number was factored and the result encoded.
+	 */
+	public void recordRequest(long serviceTime, long factorTime, long encodeTime)
+	{
+		requests.increment();
+		factorNanos.add(factorTime);
+		encodeNanos.add(encodeTime);
+		windowed.recordMiss(serviceTime);
+	}
+	
+	/*
+	 * A request answered from the cache.
+	 */
+	public void recordHit(long serviceTime, long encodeTime)
+	{
+		requests.increment();
+		cacheHits.increment();
+		encodeNanos.add(encodeTime);
+		windowed.recordHit(serviceTime);
+	}
+	
+	/*
+	 * A request that missed the cache and had to be factored.
+	 */
+	public void recordMiss(long serviceTime, long factorTime, long encodeTime)
+	{
+		requests.increment();
+		cacheMisses.increment();
+		factorNanos.add(factorTime);
+		encodeNanos.add(encodeTime);
+		windowed.recordMiss(serviceTime);
+	}
+	
+	/*
+	 * A request whose factorization ran out of its budget, or of the request's timeout, and was answered incomplete or refused;
+	 * recorded in addition to its miss.
+	 */
+	public void recordTimeout()
+	{
+		timeouts.increment();
+	}
+	
+	public Snapshot snapshot()
+	{
+		long timedOut = timeouts.get();
+		long hits = cacheHits.get();
+		long misses = cacheMisses.get();
+		long factoring = factorNanos.get();
+		long encoding = encodeNanos.get();
+		return new Snapshot(requests.get(), hits, misses, timedOut, factoring, encoding);
+	}
+	
+	/*
+	 * Requests per second over the last windowSeconds complete seconds, e.g. 1, 10 or 60.
+	 */
+	public double getRequestRate(int windowSeconds)
+	{
+		return windowed.getRequestRate(windowSeconds);
+	}
+	
+	/*
+	 * Latency of service() for requests answered from the cache.
+	 */
+	public LatencyHistogram getHitLatency()
+	{
+		return windowed.getHitLatency();
+	}
+	
+	/*
+	 * Latency of service() for requests that had to be factored.
+	 */
+	public LatencyHistogram getMissLatency()
+	{
+		return windowed.getMissLatency();
+	}
+	
+	
+	@Immutable
+	public static final class Snapshot
+	{
+		private final long requests;
+		private final long cacheHits;
+		private final long cacheMisses;
+		private final long timeouts;
+		private final long factorNanos;
+		private final long encodeNanos;
+		
+		Snapshot(long requests, long cacheHits, long cacheMisses, long timeouts, long factorNanos, long encodeNanos)
+		{
+			this.requests = requests;
+			this.cacheHits = cacheHits;
+			this.cacheMisses = cacheMisses;
+			this.timeouts = timeouts;
+			this.factorNanos = factorNanos;
+			this.encodeNanos = encodeNanos;
+		}
+		
+		public long getRequests() { return requests; }
+		public long getCacheHits() { return cacheHits; }
+		public long getCacheMisses() { return cacheMisses; }
+		public long getTimeouts() { return timeouts; }
+		public long getFactorNanos() { return factorNanos; }
+		public long getEncodeNanos() { return encodeNanos; }
+		
+		public double getCacheHitRatio()
+		{
+			long lookups = cacheHits + cacheMisses;
+			return lookups == 0 ? 0 : (double) cacheHits / (double) lookups;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format("requests=%d hits=%d misses=%d timeouts=%d factor=%.3fms encode=%.3fms", requests, cacheHits,
+				cacheMisses, timeouts, factorNanos / 1e6, encodeNanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package b.threadsafety.metrics;
+
+import $annotations.*;
+
+/*
+ * Immutable snapshot of a latency distribution in nanoseconds, bucketed the way HdrHistogram does it: LOG-LINEAR buckets with 64
+ * sub-buckets per power of two, so every recorded value is known to within 1/64 (about 1.6%) whatever its magnitude, from nanoseconds
+ * up to MAX_VALUE (about 18 minutes); larger values are clamped into the last bucket.
+ * 
+ * The bucket layout is shared with WindowedRecorder and LatencyRecorder, which count into striped arrays of BUCKETS slots and
+ * merge them into a LatencyHistogram on read.
+ */
+@Immutable
+public final class LatencyHistogram
+{
+	static final int SUB_BUCKET_BITS = 6;
+	static final long MAX_VALUE = (1L << 40) - 1;
+	static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+	
+	private final long[] counts;
+	private final long totalCount;
+	
+	LatencyHistogram(long[] counts)
+	{
+		this.counts = counts;
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		this.totalCount = total;
+	}
+	
+	
+	/*
+	 * Bucket of a value: values below 2^(SUB_BUCKET_BITS + 1) have a bucket each; above, each power of two [2^k, 2^(k+1)) is split in
+	 * 2^SUB_BUCKET_BITS equal buckets, laid out right after the buckets of the previous power of two.
+	 */
+	static int bucketIndex(long value)
+	{
+		value = Math.max(0, Math.min(value, MAX_VALUE));
+		int exponent = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (exponent << SUB_BUCKET_BITS) + (int) (value >>> exponent);
+	}
+	
+	/*
+	 * Highest value that falls into the bucket.
+	 */
+	static long bucketHighestValue(int index)
+	{
+		int exponent = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+		long subBucket = index - ((long) exponent << SUB_BUCKET_BITS);
+		return ((subBucket + 1) << exponent) - 1;
+	}
+	
+	
+	public long getTotalCount()
+	{
+		return totalCount;
+	}
+	
+	/*
+	 * Value at the given percentile (0 to 100): no more than that share of the recorded values lie above it, up to the bucket precision.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		if (totalCount == 0)
+			return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+		long seen = 0;
+		for (int index = 0; index < counts.length; index++)
+		{
+			seen += counts[index];
+			if (seen >= rank)
+				return bucketHighestValue(index);
+		}
+		return MAX_VALUE;
+	}
+	
+	public long getMaxValue()
+	{
+		for (int index = counts.length - 1; index >= 0; index--)
+		{
+			if (counts[index] != 0)
+				return bucketHighestValue(index);
+		}
+		return 0;
+	}
+	
+	public double getMean()
+	{
+		if (totalCount == 0)
+			return 0;
+		
+		double sum = 0;
+		for (int index = 0; index < counts.length; index++)
+		{
+			if (counts[index] != 0)
+				sum += (double) counts[index] * bucketHighestValue(index);
+		}
+		return sum / totalCount;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("count=%d p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", totalCount,
+			getValueAtPercentile(50) / 1e3, getValueAtPercentile(90) / 1e3, getValueAtPercentile(99) / 1e3,
+			getValueAtPercentile(99.9) / 1e3, getMaxValue() / 1e3);
+	}
+}
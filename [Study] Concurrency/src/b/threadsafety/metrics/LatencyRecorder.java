@@ -0,0 +1,41 @@
+package b.threadsafety.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import $annotations.*;
+
+/*
+ * A single latency distribution, recorded from any number of threads and read as a LatencyHistogram.
+ * 
+ * Same scheme as WindowedRecorder, without the time window: a fixed set of bucket arrays, one per core, allocated up front; a thread
+ * counts into the array its id hashes to, with an atomic add, and getHistogram() merges them all. Recording allocates nothing and
+ * rarely contends, which matters for a load generator whose completion threads would otherwise serialize on the recorder they report
+ * to, and the memory does not grow with the number of threads that ever recorded.
+ */
+@ThreadSafe
+public class LatencyRecorder
+{
+	private final AtomicLongArray[] recorders = new AtomicLongArray[StripedCounter.stripeCount(1)];
+	
+	public LatencyRecorder()
+	{
+		for (int stripe = 0; stripe < recorders.length; stripe++)
+			recorders[stripe] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+	}
+	
+	
+	public void record(long nanos)
+	{
+		recorders[StripedCounter.threadStripe(recorders.length)].getAndIncrement(LatencyHistogram.bucketIndex(nanos));
+	}
+	
+	public LatencyHistogram getHistogram()
+	{
+		long[] merged = new long[LatencyHistogram.BUCKETS];
+		for (AtomicLongArray counts : recorders)
+		{
+			for (int index = 0; index < merged.length; index++)
+				merged[index] += counts.get(index);
+		}
+		return new LatencyHistogram(merged);
+	}
+}
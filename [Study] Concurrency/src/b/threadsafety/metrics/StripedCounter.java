@@ -0,0 +1,87 @@
+package b.threadsafety.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import $annotations.*;
+
+/*
+ * Counter that spreads its updates over several cells, in the spirit of Java 8's LongAdder.
+ * 
+ * With a single AtomicLong, every increment from every core is a CAS on the same cache line, and at high core counts the line bounces
+ * between the cores and the CASes keep failing. Here each thread adds into "its" cell, chosen by a per-thread probe; a thread whose
+ * CAS fails moves to another cell for its next updates, so threads that keep colliding drift apart. The cells are spaced a cache line
+ * apart to avoid false sharing.
+ * 
+ * add() never blocks and get() never blocks writers: it sums the cells one by one, so while updates are going on it returns a value that
+ * some moment between the start and the end of the call could have seen -- consistent enough for statistics.
+ */
+@ThreadSafe
+public class StripedCounter
+{
+	private static final int PADDING = 8; // longs per 64-byte cache line
+	private static final int CELLS = stripeCount(2);
+	
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>()
+	{
+		protected int[] initialValue()
+		{
+			int seed = (int) Thread.currentThread().getId() * 0x9E3779B9;
+			return new int[] {seed == 0 ? 1 : seed};
+		}
+	};
+	
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+	
+	
+	public void increment()
+	{
+		add(1);
+	}
+	
+	public void add(long x)
+	{
+		int[] probe = PROBE.get();
+		int index = (probe[0] & (CELLS - 1)) * PADDING;
+		
+		long value = cells.get(index);
+		if (!cells.compareAndSet(index, value, value + x))
+		{
+			// contended: settle this update with an unconditional add and move the thread to another cell
+			cells.getAndAdd(index, x);
+			int h = probe[0];
+			h ^= h << 13;
+			h ^= h >>> 17;
+			h ^= h << 5;
+			probe[0] = h;
+		}
+	}
+	
+	public long get()
+	{
+		long sum = 0;
+		for (int cell = 0; cell < CELLS; cell++)
+			sum += cells.get(cell * PADDING);
+		return sum;
+	}
+	
+	
+	/*
+	 * Power of two at least perCore times the number of cores: the stripe count of this class and of the recorders of the package.
+	 */
+	static int stripeCount(int perCore)
+	{
+		int stripes = 1;
+		while (stripes < perCore * Runtime.getRuntime().availableProcessors())
+			stripes <<= 1;
+		return stripes;
+	}
+	
+	/*
+	 * Stripe of the calling thread among a power of two of them, from a hash of its id: no state per thread at all, so threads that
+	 * come and go (one per request, say) leave nothing behind.
+	 */
+	static int threadStripe(int stripes)
+	{
+		int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (stripes - 1);
+	}
+}
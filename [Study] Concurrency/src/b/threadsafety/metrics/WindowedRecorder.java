@@ -0,0 +1,135 @@
+package b.threadsafety.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import $annotations.*;
+
+/*
+ * Sliding-window request rates and service() latency histograms, split by cache hit and miss.
+ * 
+ * Recording goes to a FIXED SET OF STRIPES, one per core (rounded up to a power of two), allocated up front; a thread records into the
+ * stripe its id hashes to. So threads on different cores rarely write the same arrays, recording allocates nothing and takes no lock
+ * (an increment is an atomic add on a slot, a CAS only where a slot turns to a new second), and the memory is bounded by the number of
+ * cores, not by the number of threads that ever recorded -- which matters when every request runs on a fresh (virtual) thread.
+ * Readers walk the stripes and merge them; they never block the writers and see each slot either before or after an update.
+ * 
+ * Rates are counted per second of a 64-second ring; each slot packs the second it belongs to with its count, so a slot left over from
+ * an earlier lap of the ring is recognized by its stamp and ignored. getRequestRate(w) averages the last w complete seconds.
+ */
+@ThreadSafe
+public class WindowedRecorder
+{
+	public static final int MAX_WINDOW_SECONDS = 60;
+	
+	private static final int RING = 64;
+	private static final long ORIGIN = System.nanoTime();
+	
+	private final Recorder[] recorders = new Recorder[StripedCounter.stripeCount(1)];
+	
+	public WindowedRecorder()
+	{
+		for (int stripe = 0; stripe < recorders.length; stripe++)
+			recorders[stripe] = new Recorder();
+	}
+	
+	
+	/*
+	 * A request answered from the cache, which took serviceNanos in service().
+	 */
+	public void recordHit(long serviceNanos)
+	{
+		Recorder recorder = recorders[StripedCounter.threadStripe(recorders.length)];
+		recorder.countRequest(currentSecond());
+		recorder.hits.getAndIncrement(LatencyHistogram.bucketIndex(serviceNanos));
+	}
+	
+	/*
+	 * A request that had to be factored (a cache miss, or any request of a servlet without a cache).
+	 */
+	public void recordMiss(long serviceNanos)
+	{
+		Recorder recorder = recorders[StripedCounter.threadStripe(recorders.length)];
+		recorder.countRequest(currentSecond());
+		recorder.misses.getAndIncrement(LatencyHistogram.bucketIndex(serviceNanos));
+	}
+	
+	/*
+	 * Requests per second over the last windowSeconds complete seconds (1 to MAX_WINDOW_SECONDS).
+	 */
+	public double getRequestRate(int windowSeconds)
+	{
+		if (windowSeconds < 1 || windowSeconds > MAX_WINDOW_SECONDS)
+			throw new IllegalArgumentException("Window must be between 1 and " + MAX_WINDOW_SECONDS + " seconds: " + windowSeconds);
+		
+		long now = currentSecond();
+		long total = 0;
+		for (Recorder recorder : recorders)
+		{
+			for (long second = now - windowSeconds; second < now; second++)
+			{
+				if (second < 0)
+					continue;
+				
+				long slot = recorder.seconds.get((int) (second & (RING - 1)));
+				if ((slot >>> 32) == second)
+					total += slot & 0xFFFFFFFFL;
+			}
+		}
+		return (double) total / windowSeconds;
+	}
+	
+	public LatencyHistogram getHitLatency()
+	{
+		long[] merged = new long[LatencyHistogram.BUCKETS];
+		for (Recorder recorder : recorders)
+			addInto(merged, recorder.hits);
+		return new LatencyHistogram(merged);
+	}
+	
+	public LatencyHistogram getMissLatency()
+	{
+		long[] merged = new long[LatencyHistogram.BUCKETS];
+		for (Recorder recorder : recorders)
+			addInto(merged, recorder.misses);
+		return new LatencyHistogram(merged);
+	}
+	
+	
+	private static long currentSecond()
+	{
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - ORIGIN);
+	}
+	
+	private static void addInto(long[] merged, AtomicLongArray counts)
+	{
+		for (int index = 0; index < merged.length; index++)
+			merged[index] += counts.get(index);
+	}
+	
+	
+	/*
+	 * The arrays of one stripe, written by the threads that hash to it.
+	 */
+	private static final class Recorder
+	{
+		final AtomicLongArray seconds = new AtomicLongArray(RING);
+		final AtomicLongArray hits = new AtomicLongArray(LatencyHistogram.BUCKETS);
+		final AtomicLongArray misses = new AtomicLongArray(LatencyHistogram.BUCKETS);
+		
+		void countRequest(long second)
+		{
+			int index = (int) (second & (RING - 1));
+			for (;;)
+			{
+				long slot = seconds.get(index);
+				if ((slot >>> 32) == second)
+				{
+					seconds.getAndIncrement(index); // the stamp cannot change under us before the ring comes round again
+					return;
+				}
+				if (seconds.compareAndSet(index, slot, (second << 32) | 1))
+					return;
+			}
+		}
+	}
+}
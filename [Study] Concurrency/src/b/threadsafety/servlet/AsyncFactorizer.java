@@ -0,0 +1,383 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import $annotations.*;
+import b.threadsafety.cache.FactorCache;
+import b.threadsafety.cache.SingleFlight;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.factoring.Deadline;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+import b.threadsafety.metrics.FactorizerMetrics;
+import b.threadsafety.metrics.StripedCounter;
+
+/*
+ * ASYNCHRONOUS FACTORIZATION: the container thread only dispatches.
+ * 
+ * The factorizers of b.threadsafety factor on the container's request thread, so every slow factorization holds one of the container's
+ * threads for its whole duration, and under load the container runs out of them -- even cheap requests (cache hits) then wait in the
+ * container's queue behind the expensive ones. Here service() answers cache hits directly, but for a miss it calls startAsync() and
+ * hands the number to a DEDICATED, BOUNDED EXECUTOR; service() then returns and the container thread is free for the next request. The
+ * worker writes the response and calls complete().
+ * 
+ * BACKPRESSURE: the executor has a fixed number of threads and a bounded queue, and when both are full the executor rejects the task
+ * instead of queueing it (AbortPolicy). The request then FAILS FAST with 503 Service Unavailable and a Retry-After header estimated from
+ * the backlog, rather than piling up work that would only finish after the client gave up. A request still waiting when the async
+ * timeout fires is answered the same way. Whoever gets to the request first -- the worker or the timeout -- answers it; the other one
+ * backs off, so a request is never completed twice.
+ * 
+ * The factorization runs under a DEADLINE that expires with the async timeout, and the timeout also interrupts the worker, which
+ * expires the deadline at once. So the work of a timed-out request stops at the engine's next check instead of occupying a worker
+ * for nobody; the incomplete result is not cached.
+ * 
+ * The cache and the coalescing of concurrent misses are the same as in BoundedCachingFactorizer; the requests that join a computation
+ * share its deadline too.
+ */
+@ThreadSafe
+public class AsyncFactorizer implements Servlet
+{
+	public static final String PARAMETER = "n";
+	
+	private static final int DEFAULT_CACHE_CAPACITY = 4096;
+	private static final int DEFAULT_QUEUE_CAPACITY = 256;
+	private static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+	
+	private final FactorCache cache;
+	private final ThreadPoolExecutor pool;
+	private final long timeoutMillis;
+	private final SingleFlight<BigInteger, Factorization> inFlight = new SingleFlight<BigInteger, Factorization>();
+	private final FactorizerMetrics metrics = new FactorizerMetrics();
+	private final StripedCounter rejected = new StripedCounter();
+	private final AtomicInteger inService = new AtomicInteger(0);
+	private final AtomicInteger peakInService = new AtomicInteger(0);
+	
+	public AsyncFactorizer()
+	{
+		this(new StripedLruFactorCache(DEFAULT_CACHE_CAPACITY), Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY,
+				DEFAULT_TIMEOUT_MILLIS);
+	}
+	
+	public AsyncFactorizer(FactorCache cache, int threads, int queueCapacity, long timeoutMillis)
+	{
+		if (threads < 1 || queueCapacity < 1)
+			throw new IllegalArgumentException("Need at least one thread and one queue slot: " + threads + ", " + queueCapacity);
+		
+		this.cache = cache;
+		this.timeoutMillis = timeoutMillis;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory("async-factorizer-"),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+	
+	public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		enterService();
+		try
+		{
+			long start = System.nanoTime();
+			BigInteger i;
+			try
+			{
+				i = extractFromRequest(request);
+			}
+			catch (ServletException e)
+			{
+				TextFormat.badRequestInto(response, e);
+				return;
+			}
+			Factors factors = cache.get(i);
+			
+			if (factors != null)
+			{
+				long encodeStart = System.nanoTime();
+				encodeIntoResponse(response, i, factors);
+				long end = System.nanoTime();
+				metrics.recordHit(end - start, end - encodeStart);
+				return;
+			}
+			
+			AsyncContext context = request.startAsync();
+			context.setTimeout(timeoutMillis);
+			Job job = new Job(context, i, start, Deadline.after(timeoutMillis, TimeUnit.MILLISECONDS));
+			context.addListener(job);
+			
+			try
+			{
+				pool.execute(job);
+			}
+			catch (RejectedExecutionException e)
+			{
+				rejected.increment();
+				if (job.claim())
+					rejectInto(context);
+			}
+		}
+		finally
+		{
+			inService.decrementAndGet();
+		}
+	}
+	
+	/*
+	 * Container threads currently inside service(). With the blocking factorizers this is the number of requests being factored.
+	 */
+	public int getContainerThreadsInService()
+	{
+		return inService.get();
+	}
+	
+	public int getPeakContainerThreadsInService()
+	{
+		return peakInService.get();
+	}
+	
+	/*
+	 * Requests answered with 503 because the executor was saturated.
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+	
+	/*
+	 * Requests answered with 503 because they were still queued or running when the async timeout fired; the timeouts of getMetrics().
+	 */
+	public long getTimedOut()
+	{
+		return metrics.snapshot().getTimeouts();
+	}
+	
+	public int getQueued()
+	{
+		return pool.getQueue().size();
+	}
+	
+	public FactorizerMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	public long getComputedRequests()
+	{
+		return inFlight.getComputed();
+	}
+	
+	public long getCoalescedRequests()
+	{
+		return inFlight.getCoalesced();
+	}
+	
+	
+	private void enterService()
+	{
+		int current = inService.incrementAndGet();
+		for (int peak = peakInService.get(); current > peak; peak = peakInService.get())
+		{
+			if (peakInService.compareAndSet(peak, current))
+				break;
+		}
+	}
+	
+	/*
+	 * One miss in flight. Both the worker (run) and the container (onTimeout, onError) may try to answer it; claim() lets only the first.
+	 */
+	private final class Job implements Runnable, AsyncListener
+	{
+		private final AsyncContext context;
+		private final BigInteger number;
+		private final long start;
+		private final Deadline deadline;
+		private final AtomicBoolean answered = new AtomicBoolean(false);
+		@GuardedBy("this") private Thread worker;
+		
+		Job(AsyncContext context, BigInteger number, long start, Deadline deadline)
+		{
+			this.context = context;
+			this.number = number;
+			this.start = start;
+			this.deadline = deadline;
+		}
+		
+		boolean claim()
+		{
+			return answered.compareAndSet(false, true);
+		}
+		
+		public void run()
+		{
+			if (answered.get())
+				return; // timed out while queued
+			
+			synchronized(this)
+			{
+				worker = Thread.currentThread();
+			}
+			
+			try
+			{
+				long factorStart = System.nanoTime();
+				Factorization result = factorOnce(number, deadline);
+				long factorTime = System.nanoTime() - factorStart;
+				
+				if (!result.isComplete())
+				{
+					// out of time: either onTimeout() has answered already, or it is about to and this answers first
+					if (claim())
+					{
+						recordTimedOut(factorTime);
+						rejectInto(context);
+					}
+					return;
+				}
+				
+				Factors factors = result.getPrimeFactors();
+				cache.put(number, factors);
+				if (!claim())
+					return;
+				
+				long encodeStart = System.nanoTime();
+				encodeIntoResponse(context.getResponse(), number, factors);
+				context.complete();
+				long end = System.nanoTime();
+				metrics.recordMiss(end - start, factorTime, end - encodeStart);
+			}
+			catch (InterruptedException e)
+			{
+				// interrupted by onTimeout(), or by destroy(); whoever claimed the request answers it
+				if (claim())
+					rejectInto(context);
+			}
+			catch (IOException e)
+			{
+				context.complete(); // the client went away
+			}
+			catch (RuntimeException e)
+			{
+				if (claim())
+					failInto(context);
+			}
+			finally
+			{
+				synchronized(this) // onTimeout() interrupts under the same lock, so no interrupt can arrive after this
+				{
+					worker = null;
+					Thread.interrupted();
+				}
+			}
+		}
+		
+		public void onTimeout(AsyncEvent event)
+		{
+			if (claim())
+			{
+				recordTimedOut(0); // the worker, if any, is still factoring
+				synchronized(this)
+				{
+					if (worker != null)
+						worker.interrupt();
+				}
+				rejectInto(context);
+			}
+		}
+		
+		/*
+		 * A miss that timed out is still a miss, answered with the 503 of a timeout; by whoever claimed it, so it is recorded once.
+		 */
+		private void recordTimedOut(long factorTime)
+		{
+			metrics.recordMiss(System.nanoTime() - start, factorTime, 0);
+			metrics.recordTimeout();
+		}
+		
+		public void onError(AsyncEvent event)
+		{
+			if (claim())
+				context.complete();
+		}
+		
+		public void onComplete(AsyncEvent event){}
+		public void onStartAsync(AsyncEvent event){}
+	}
+	
+	private Factorization factorOnce(final BigInteger i, final Deadline deadline) throws InterruptedException
+	{
+		return inFlight.run(i, new Callable<Factorization>()
+		{
+			public Factorization call()
+			{
+				return factor(i, deadline);
+			}
+		});
+	}
+	
+	/*
+	 * 503 with a Retry-After of the time the current backlog should take to drain, at least one second.
+	 */
+	private void rejectInto(AsyncContext context)
+	{
+		ServletResponse response = context.getResponse();
+		if (response instanceof HttpServletResponse)
+		{
+			HttpServletResponse http = (HttpServletResponse) response;
+			http.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			http.setHeader("Retry-After", String.valueOf(estimateRetryAfterSeconds()));
+		}
+		context.complete();
+	}
+	
+	private static void failInto(AsyncContext context)
+	{
+		ServletResponse response = context.getResponse();
+		if (response instanceof HttpServletResponse)
+			((HttpServletResponse) response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		context.complete();
+	}
+	
+	private long estimateRetryAfterSeconds()
+	{
+		FactorizerMetrics.Snapshot snapshot = metrics.snapshot();
+		long misses = Math.max(1, snapshot.getCacheMisses());
+		long backlogNanos = (pool.getQueue().size() + pool.getActiveCount()) * (snapshot.getFactorNanos() / misses);
+		return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(backlogNanos / pool.getMaximumPoolSize()) + 1);
+	}
+	
+	
+	public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+	{
+		return TextFormat.extract(request, PARAMETER);
+	}
+	
+	public void encodeIntoResponse(ServletResponse response, BigInteger number, Factors factors) throws IOException
+	{
+		WireFormat.of(response).write(response, number, factors);
+	}
+	
+	// shared factorization engine, giving up when the deadline expires
+	public Factorization factor(BigInteger i, Deadline deadline){return FactorEngine.factor(i, deadline);}
+	
+	public void destroy()
+	{
+		for (Runnable queued : pool.shutdownNow())
+		{
+			Job job = (Job) queued;
+			if (job.claim())
+				rejectInto(job.context);
+		}
+	}
+	
+	// unimplemented methods from Servlet
+	public ServletConfig getServletConfig(){return null;}
+	public String getServletInfo(){return null;}
+	public void init(ServletConfig arg0) throws ServletException{}
+}
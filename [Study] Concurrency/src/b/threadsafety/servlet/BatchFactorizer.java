@@ -0,0 +1,308 @@
+package b.threadsafety.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.*;
+import $annotations.*;
+import b.threadsafety.cache.FactorCache;
+import b.threadsafety.cache.SingleFlight;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.factoring.Deadline;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+import b.threadsafety.metrics.FactorizerMetrics;
+import b.threadsafety.metrics.StripedCounter;
+
+/*
+ * BATCH FACTORIZATION: many numbers per request.
+ * 
+ * The factorizers of b.threadsafety answer one number per service() call, so a bulk job pays one round trip per number. This servlet
+ * takes a whole list -- repeated "n" parameters, or, when there are none, a request body of numbers separated by whitespace or commas --
+ * and answers one line per number, IN INPUT ORDER: "n: p1 p2 ...".
+ * 
+ * Inside a batch each DISTINCT number is handled once: the batch is first folded into a LinkedHashMap, the FactorCache is consulted
+ * once per key, and only the misses are factored, in parallel, on a BOUNDED POOL shared by all requests. The pool has a fixed number
+ * of threads and a bounded queue; when the queue is full, CallerRunsPolicy makes the request thread factor the number itself, which
+ * slows down exactly the client that is flooding the pool instead of queueing without limit. Misses go through the same SingleFlight
+ * as the single-number servlets do, so two batches (or a batch and a plain request) that ask for the same number at once share the
+ * computation, and the results go into the cache, which may be the very instance a BoundedCachingFactorizer uses.
+ * 
+ * A batch gets one BUDGET (a Deadline, 10 seconds unless setFactorBudget() says otherwise) for all its misses. A number whose
+ * factorization runs out of it is answered with the factors found so far, " ?" and the parts left unfactored (BINARY, having no form
+ * for that, answers the whole batch with 406), is not cached, and counts as a timeout in addition to its miss. Since the batches that
+ * share a computation have deadlines of their own, a batch that gets an incomplete result from another one's computation factors the
+ * number again under its own deadline rather than answering with what the other batch could afford.
+ * 
+ * The metrics count NUMBERS, not HTTP requests: every distinct number of a batch is a hit or a miss, and its service time is the time
+ * until its factors were ready; encoding the response is not attributed to any of them. Batches and the duplicates folded away are
+ * counted separately.
+ */
+@ThreadSafe
+public class BatchFactorizer implements Servlet
+{
+	public static final String PARAMETER = "n";
+	public static final int MAX_BATCH_SIZE = 100000;
+	
+	private static final int DEFAULT_CACHE_CAPACITY = 4096;
+	private static final int QUEUE_PER_THREAD = 64;
+	private static final long DEFAULT_FACTOR_BUDGET_NANOS = 10L * 1000 * 1000 * 1000;
+	
+	private final FactorCache cache;
+	private final ThreadPoolExecutor pool;
+	private final SingleFlight<BigInteger, Factorization> inFlight = new SingleFlight<BigInteger, Factorization>();
+	private final FactorizerMetrics metrics = new FactorizerMetrics();
+	private final StripedCounter batches = new StripedCounter();
+	private final StripedCounter duplicates = new StripedCounter();
+	private volatile long factorBudgetNanos = DEFAULT_FACTOR_BUDGET_NANOS;
+	
+	public BatchFactorizer()
+	{
+		this(new StripedLruFactorCache(DEFAULT_CACHE_CAPACITY), Runtime.getRuntime().availableProcessors());
+	}
+	
+	public BatchFactorizer(FactorCache cache, int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread: " + threads);
+		
+		this.cache = cache;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new DaemonThreadFactory("batch-factorizer-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+	
+	public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		List<BigInteger> numbers;
+		try
+		{
+			numbers = extractBatchFromRequest(request);
+		}
+		catch (ServletException e)
+		{
+			TextFormat.badRequestInto(response, e);
+			return;
+		}
+		Factorization[] results = factorAll(numbers);
+		
+		encodeIntoResponse(response, numbers, results);
+		batches.increment();
+	}
+	
+	/*
+	 * Factors every number of the batch within the budget, returning the results in input order; those that ran out of it are
+	 * incomplete. Equal numbers share one (immutable) Factorization.
+	 */
+	public Factorization[] factorAll(List<BigInteger> numbers) throws ServletException
+	{
+		long start = System.nanoTime();
+		Deadline deadline = Deadline.after(factorBudgetNanos, TimeUnit.NANOSECONDS);
+		
+		// fold the batch: one entry per distinct number, first occurrence first; null until known
+		Map<BigInteger, Factorization> distinct = new LinkedHashMap<BigInteger, Factorization>();
+		for (BigInteger number : numbers)
+			distinct.put(number, null);
+		duplicates.add(numbers.size() - distinct.size());
+		
+		Map<BigInteger, Future<Factorization>> misses = new LinkedHashMap<BigInteger, Future<Factorization>>();
+		for (Map.Entry<BigInteger, Factorization> entry : distinct.entrySet())
+		{
+			Factors cached = cache.get(entry.getKey());
+			if (cached != null)
+			{
+				entry.setValue(Factorization.complete(cached));
+				long end = System.nanoTime();
+				metrics.recordHit(end - start, 0);
+			}
+			else
+			{
+				misses.put(entry.getKey(), pool.submit(new Miss(entry.getKey(), start, deadline)));
+			}
+		}
+		
+		try
+		{
+			for (Map.Entry<BigInteger, Future<Factorization>> miss : misses.entrySet())
+				distinct.put(miss.getKey(), miss.getValue().get());
+		}
+		catch (InterruptedException e)
+		{
+			cancelAll(misses);
+			Thread.currentThread().interrupt();
+			throw new ServletException("Interrupted while factoring a batch of " + numbers.size(), e);
+		}
+		catch (ExecutionException e)
+		{
+			cancelAll(misses);
+			throw new ServletException("Factoring failed", e.getCause());
+		}
+		
+		Factorization[] results = new Factorization[numbers.size()];
+		for (int index = 0; index < results.length; index++)
+			results[index] = distinct.get(numbers.get(index));
+		return results;
+	}
+	
+	/*
+	 * Upper bound on the time the misses of one batch may take before it is answered with the factors found so far.
+	 */
+	public void setFactorBudget(long budget, TimeUnit unit)
+	{
+		factorBudgetNanos = unit.toNanos(budget);
+	}
+	
+	public long getBatches()
+	{
+		return batches.get();
+	}
+	
+	/*
+	 * Numbers that repeated an earlier number of the same batch and were not looked up again.
+	 */
+	public long getDuplicates()
+	{
+		return duplicates.get();
+	}
+	
+	public FactorizerMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	public long getComputedRequests()
+	{
+		return inFlight.getComputed();
+	}
+	
+	public long getCoalescedRequests()
+	{
+		return inFlight.getCoalesced();
+	}
+	
+	
+	/*
+	 * A number that was not in the cache: factored on the pool, once even if several batches want it at the same time, unless the
+	 * shared result is incomplete and this batch still has time to do better.
+	 */
+	private final class Miss implements Callable<Factorization>
+	{
+		private final BigInteger number;
+		private final long batchStart;
+		private final Deadline deadline;
+		
+		Miss(BigInteger number, long batchStart, Deadline deadline)
+		{
+			this.number = number;
+			this.batchStart = batchStart;
+			this.deadline = deadline;
+		}
+		
+		public Factorization call() throws InterruptedException
+		{
+			long factorStart = System.nanoTime();
+			Factorization result;
+			do
+			{
+				result = inFlight.run(number, new Callable<Factorization>()
+				{
+					public Factorization call()
+					{
+						return factor(number, deadline);
+					}
+				});
+			}
+			while (!result.isComplete() && !deadline.isExpired());
+			long end = System.nanoTime();
+			
+			if (result.isComplete())
+				cache.put(number, result.getPrimeFactors());
+			metrics.recordMiss(end - batchStart, end - factorStart, 0);
+			if (!result.isComplete())
+				metrics.recordTimeout();
+			return result;
+		}
+	}
+	
+	private static void cancelAll(Map<BigInteger, Future<Factorization>> misses)
+	{
+		for (Future<Factorization> future : misses.values())
+			future.cancel(true);
+	}
+	
+	
+	/*
+	 * The numbers of the batch, in order: the "n" parameters if there are any, the request body otherwise.
+	 */
+	public List<BigInteger> extractBatchFromRequest(ServletRequest request) throws ServletException, IOException
+	{
+		List<BigInteger> numbers = new ArrayList<BigInteger>();
+		
+		String[] values = request.getParameterValues(PARAMETER);
+		if (values != null)
+		{
+			for (String value : values)
+				add(numbers, value);
+			return numbers;
+		}
+		
+		BufferedReader reader = request.getReader();
+		StringBuilder token = new StringBuilder();
+		for (int c = reader.read(); ; c = reader.read())
+		{
+			if (c == -1 || c == ',' || Character.isWhitespace(c))
+			{
+				if (token.length() > 0)
+				{
+					add(numbers, token.toString());
+					token.setLength(0);
+				}
+				if (c == -1)
+					return numbers;
+			}
+			else
+			{
+				if (token.length() == NumberParser.MAX_DIGITS)
+					throw new ServletException("Number too long, at most " + NumberParser.MAX_DIGITS + " digits are accepted");
+				token.append((char) c);
+			}
+		}
+	}
+	
+	private static void add(List<BigInteger> numbers, String value) throws ServletException
+	{
+		if (numbers.size() == MAX_BATCH_SIZE)
+			throw new ServletException("Batch too large, at most " + MAX_BATCH_SIZE + " numbers are accepted");
+		
+		numbers.add(TextFormat.parse(value));
+	}
+	
+	public void encodeIntoResponse(ServletResponse response, List<BigInteger> numbers, Factorization[] results) throws IOException
+	{
+		WireFormat.of(response).write(response, numbers, results);
+	}
+	
+	// shared factorization engine, giving up when the deadline expires
+	public Factorization factor(BigInteger i, Deadline deadline){return FactorEngine.factor(i, deadline);}
+	
+	public void destroy()
+	{
+		pool.shutdownNow();
+	}
+	
+	// unimplemented methods from Servlet
+	public ServletConfig getServletConfig(){return null;}
+	public String getServletInfo(){return null;}
+	public void init(ServletConfig arg0) throws ServletException{}
+}
@@ -0,0 +1,216 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import javax.servlet.ServletResponse;
+import b.threadsafety.factoring.FactoredSegment;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * The binary format of the servlets of this package, one record per number:
+ * 
+ *   value(n)  varint(k)  value(p1) varint(e1) ... value(pk) varint(ek)
+ * 
+ * with the k distinct primes in ascending order and their exponents. A varint is an unsigned LEB128 integer: 7 bits per byte, low
+ * bits first, the high bit set on every byte but the last. A value is a varint header h: if its low bit is 0 the value is h >>> 1,
+ * which covers everything below 2^63; otherwise h >>> 1 raw big-endian magnitude bytes follow. A 64-bit prime takes 9 or 10 bytes,
+ * a small one a single byte, where the text format needs one character per digit. The (prime, exponent) pairs are those of Factors,
+ * and its packed primes are written straight from their longs.
+ * 
+ * Records are encoded into a ByteBuffer KEPT PER THREAD and reused for every response of that thread, then written to the stream in
+ * one call. The buffer is a heap buffer on purpose: ServletOutputStream only takes byte[], so the array behind the buffer goes to the
+ * container as it is, while a direct buffer would have to be copied into a byte[] first. A buffer that had to grow beyond
+ * MAX_KEPT_CAPACITY for an unusually large answer is not kept.
+ */
+final class BinaryFormat
+{
+	static final String CONTENT_TYPE = "application/x-factors";
+	
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final int MAX_KEPT_CAPACITY = 1 << 16;
+	private static final BigInteger LONG_LIMIT = BigInteger.ONE.shiftLeft(63);
+	
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>()
+	{
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocate(INITIAL_CAPACITY);
+		}
+	};
+	
+	private BinaryFormat() {}
+	
+	
+	static void write(ServletResponse response, BigInteger number, Factors factors) throws IOException
+	{
+		response.setContentType(CONTENT_TYPE);
+		OutputStream out = response.getOutputStream();
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		
+		buffer = append(buffer, out, number, factors);
+		drain(buffer, out);
+		out.flush();
+	}
+	
+	static void write(ServletResponse response, List<BigInteger> numbers, Factors[] factors) throws IOException
+	{
+		response.setContentType(CONTENT_TYPE);
+		OutputStream out = response.getOutputStream();
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		
+		for (int index = 0; index < factors.length; index++)
+			buffer = append(buffer, out, numbers.get(index), factors[index]);
+		drain(buffer, out);
+		out.flush();
+	}
+	
+	/*
+	 * The records of every number of a segment, for an answer streamed segment by segment; the caller flushes out.
+	 */
+	static void write(OutputStream out, FactoredSegment segment) throws IOException
+	{
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		
+		for (int i = 0; i < segment.size(); i++)
+			buffer = append(buffer, out, segment, i);
+		drain(buffer, out);
+	}
+	
+	/*
+	 * Appends one record, first draining the buffer to out if the record does not fit behind what is there, and growing it if the
+	 * record does not fit at all. Returns the buffer to go on with.
+	 */
+	private static ByteBuffer append(ByteBuffer buffer, OutputStream out, BigInteger number, Factors factors) throws IOException
+	{
+		while (true)
+		{
+			int mark = buffer.position();
+			try
+			{
+				encode(buffer, number, factors);
+				return buffer;
+			}
+			catch (BufferOverflowException e)
+			{
+				buffer = makeRoom(buffer, out, mark);
+			}
+		}
+	}
+	
+	private static ByteBuffer append(ByteBuffer buffer, OutputStream out, FactoredSegment segment, int i) throws IOException
+	{
+		while (true)
+		{
+			int mark = buffer.position();
+			try
+			{
+				encode(buffer, segment, i);
+				return buffer;
+			}
+			catch (BufferOverflowException e)
+			{
+				buffer = makeRoom(buffer, out, mark);
+			}
+		}
+	}
+	
+	/*
+	 * After a record overflowed the buffer from mark on: drops what it wrote, and drains the buffer, or grows it if it was empty.
+	 */
+	private static ByteBuffer makeRoom(ByteBuffer buffer, OutputStream out, int mark) throws IOException
+	{
+		buffer.position(mark);
+		if (mark > 0)
+		{
+			drain(buffer, out);
+			return buffer;
+		}
+		
+		ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+		if (larger.capacity() <= MAX_KEPT_CAPACITY)
+			BUFFER.set(larger);
+		return larger;
+	}
+	
+	private static void drain(ByteBuffer buffer, OutputStream out) throws IOException
+	{
+		out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+		buffer.clear();
+	}
+	
+	/*
+	 * One record; throws BufferOverflowException if it does not fit, leaving the buffer's position anywhere after where it started.
+	 */
+	static void encode(ByteBuffer buffer, BigInteger number, Factors factors)
+	{
+		putValue(buffer, number);
+		putVarint(buffer, factors.distinct());
+		for (int k = 0; k < factors.distinct(); k++)
+		{
+			if (factors.isLong(k))
+				putVarint(buffer, factors.longPrime(k) << 1); // the short form of putValue, without a BigInteger
+			else
+				putValue(buffer, factors.prime(k));
+			putVarint(buffer, factors.exponent(k));
+		}
+	}
+	
+	/*
+	 * The record of the i-th number of a segment, whose factors are longs, ascending and repeated: runs of one prime become its
+	 * exponent.
+	 */
+	static void encode(ByteBuffer buffer, FactoredSegment segment, int i)
+	{
+		int count = segment.factorCount(i);
+		int distinct = 0;
+		for (int k = 0; k < count; k++)
+		{
+			if (k == 0 || segment.factor(i, k) != segment.factor(i, k - 1))
+				distinct++;
+		}
+		
+		putVarint(buffer, segment.getNumber(i) << 1);
+		putVarint(buffer, distinct);
+		for (int k = 0; k < count; )
+		{
+			long prime = segment.factor(i, k);
+			int exponent = 0;
+			for (; k < count && segment.factor(i, k) == prime; k++)
+				exponent++;
+			putVarint(buffer, prime << 1);
+			putVarint(buffer, exponent);
+		}
+	}
+	
+	private static void putValue(ByteBuffer buffer, BigInteger value)
+	{
+		if (value.compareTo(LONG_LIMIT) < 0)
+		{
+			putVarint(buffer, value.longValue() << 1);
+			return;
+		}
+		
+		byte[] magnitude = value.toByteArray(); // positive, so only a leading zero byte for the sign may have to go
+		int skip = magnitude[0] == 0 ? 1 : 0;
+		putVarint(buffer, ((long) (magnitude.length - skip) << 1) | 1);
+		buffer.put(magnitude, skip, magnitude.length - skip);
+	}
+	
+	private static void putVarint(ByteBuffer buffer, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+}
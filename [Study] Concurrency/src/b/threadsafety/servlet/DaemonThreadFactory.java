@@ -0,0 +1,28 @@
+package b.threadsafety.servlet;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import $annotations.*;
+
+/*
+ * Named daemon threads for the worker pools of the servlets, so an undeployed servlet whose destroy() was never called does not keep
+ * the JVM alive.
+ */
+@ThreadSafe
+class DaemonThreadFactory implements ThreadFactory
+{
+	private final String prefix;
+	private final AtomicInteger sequence = new AtomicInteger(0);
+	
+	DaemonThreadFactory(String prefix)
+	{
+		this.prefix = prefix;
+	}
+	
+	public Thread newThread(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable, prefix + sequence.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
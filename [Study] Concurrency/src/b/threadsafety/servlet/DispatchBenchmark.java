@@ -0,0 +1,190 @@
+package b.threadsafety.servlet;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import b.threadsafety.cache.StripedLruFactorCache;
+import callable.ExecutionMode;
+
+/*
+ * DispatchingFactorizer on a pool of platform threads against virtual threads, with slow clients.
+ * 
+ * All requests arrive at once. Reading a request (getParameter) and flushing the answer each block for IO_MILLIS, the way a slow
+ * client on a real connection would; most numbers are cached, the rest are fresh semiprimes for the factor pool. Reports the time until
+ * every request was answered, requests/s, the 50th/99th percentile latency and the peak number of live JVM threads.
+ * 
+ * With a pool of REQUEST_THREADS platform threads at most that many requests are in progress, so the I/O waits queue up: N requests
+ * take about N / REQUEST_THREADS * 2 * IO_MILLIS. With virtual threads all of them wait at the same time. VIRTUAL is skipped on VMs
+ * older than Java 21.
+ * 
+ * Arguments: [concurrent requests, default 10000] [I/O millis per phase, default 20] [miss ratio, default 0.05]
+ */
+public class DispatchBenchmark
+{
+	private static final int REQUEST_THREADS = 200;
+	private static final int HOT_NUMBERS = 256;
+	
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	
+	public static void main(String[] args) throws Exception
+	{
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long ioMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		double missRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		int cores = Runtime.getRuntime().availableProcessors();
+		
+		System.out.println(String.format("%d concurrent requests, %d ms read + %d ms write, %.0f%% misses, %d factor threads", requests,
+			ioMillis, ioMillis, missRatio * 100, cores));
+		System.out.println(String.format("%-22s %10s %12s %10s %10s %12s", "mode", "total s", "requests/s", "p50 ms", "p99 ms",
+			"peak threads"));
+		
+		for (ExecutionMode mode : ExecutionMode.values())
+		{
+			if (!mode.isSupported())
+			{
+				System.out.println(String.format("%-22s skipped: not supported on Java %s", mode, System.getProperty("java.version")));
+				continue;
+			}
+			
+			DispatchingFactorizer servlet = new DispatchingFactorizer(mode, new StripedLruFactorCache(1 << 16), REQUEST_THREADS, cores);
+			run(mode == ExecutionMode.PLATFORM ? "PLATFORM (" + REQUEST_THREADS + " threads)" : mode.name(), servlet, requests, ioMillis,
+				missRatio);
+			servlet.destroy();
+		}
+	}
+	
+	private static void run(String name, DispatchingFactorizer servlet, int count, long ioMillis, double missRatio) throws Exception
+	{
+		Random random = new Random(5);
+		BigInteger[] hot = new BigInteger[HOT_NUMBERS];
+		for (int k = 0; k < HOT_NUMBERS; k++)
+		{
+			hot[k] = BigInteger.probablePrime(20, random).multiply(BigInteger.probablePrime(20, random));
+			FakeRequest warm = new FakeRequest(hot[k], 0);
+			servlet.service(warm.request, warm.response);
+			warm.done.await();
+		}
+		
+		FakeRequest[] requests = new FakeRequest[count];
+		for (int k = 0; k < count; k++)
+		{
+			BigInteger number = random.nextDouble() < missRatio
+				? BigInteger.probablePrime(24, random).multiply(BigInteger.probablePrime(24, random)) : hot[random.nextInt(HOT_NUMBERS)];
+			requests[k] = new FakeRequest(number, ioMillis);
+		}
+		
+		System.gc();
+		THREADS.resetPeakThreadCount();
+		long start = System.nanoTime();
+		for (FakeRequest request : requests)
+		{
+			request.arrival = System.nanoTime();
+			servlet.service(request.request, request.response);
+		}
+		for (FakeRequest request : requests)
+			request.done.await();
+		long elapsed = System.nanoTime() - start;
+		
+		long[] latencies = new long[count];
+		for (int k = 0; k < count; k++)
+			latencies[k] = requests[k].completion - requests[k].arrival;
+		Arrays.sort(latencies);
+		
+		System.out.println(String.format("%-22s %10.2f %12.0f %10.1f %10.1f %12d", name, elapsed / 1e9, count / (elapsed / 1e9),
+			percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, THREADS.getPeakThreadCount()));
+	}
+	
+	private static long percentile(long[] sorted, double p)
+	{
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+	
+	private static void sleep(long millis)
+	{
+		try
+		{
+			TimeUnit.MILLISECONDS.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	/*
+	 * Proxy request, response and async context of one simulated slow client: getParameter() and the flush of the writer block.
+	 */
+	private static final class FakeRequest implements InvocationHandler
+	{
+		final BigInteger number;
+		final long ioMillis;
+		final CountDownLatch done = new CountDownLatch(1);
+		final ServletRequest request;
+		final ServletResponse response;
+		final AsyncContext context;
+		final PrintWriter writer;
+		volatile long arrival;
+		volatile long completion;
+		
+		FakeRequest(BigInteger number, final long ioMillis)
+		{
+			this.number = number;
+			this.ioMillis = ioMillis;
+			ClassLoader loader = DispatchBenchmark.class.getClassLoader();
+			this.request = (ServletRequest) Proxy.newProxyInstance(loader, new Class<?>[] {ServletRequest.class}, this);
+			this.response = (ServletResponse) Proxy.newProxyInstance(loader, new Class<?>[] {HttpServletResponse.class}, this);
+			this.context = (AsyncContext) Proxy.newProxyInstance(loader, new Class<?>[] {AsyncContext.class}, this);
+			this.writer = new PrintWriter(new Writer()
+			{
+				public void write(char[] buffer, int offset, int length){}
+				public void flush(){sleep(ioMillis);}
+				public void close(){}
+			});
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if (name.equals("getParameter"))
+			{
+				sleep(ioMillis);
+				return number.toString();
+			}
+			if (name.equals("startAsync"))
+				return context;
+			if (name.equals("getRequest"))
+				return request;
+			if (name.equals("getResponse"))
+				return response;
+			if (name.equals("getWriter"))
+				return writer;
+			if (name.equals("complete"))
+			{
+				completion = System.nanoTime();
+				done.countDown();
+			}
+			if (method.getReturnType() == boolean.class)
+				return false;
+			if (method.getReturnType() == long.class)
+				return 0L;
+			if (method.getReturnType() == int.class)
+				return 0;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import $annotations.*;
+import b.threadsafety.cache.FactorCache;
+import b.threadsafety.cache.SingleFlight;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.factoring.Deadline;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+import b.threadsafety.metrics.FactorizerMetrics;
+import callable.ExecutionMode;
+
+/*
+ * THREAD-PER-REQUEST DISPATCH, ON PLATFORM OR VIRTUAL THREADS.
+ * 
+ * service() only starts async processing and hands the whole request to a REQUEST EXECUTOR, whose kind is an ExecutionMode: a fixed
+ * pool of platform threads, or a virtual thread per request. The handler is written in plain blocking style -- read the number, look it
+ * up, wait for the factors, write the answer -- so on a platform pool every request that waits for the client (extractFromRequest,
+ * encodeIntoResponse) or for its factors holds one of the pool's threads, and the pool size caps the requests in progress. On virtual
+ * threads a waiting request costs a few hundred bytes of heap instead of a thread, and tens of thousands of slow clients can be in
+ * progress at once.
+ * 
+ * The CPU-BOUND STAGE does not move to virtual threads: factor() runs on a separate fixed pool of platform threads, one per core, and
+ * the request thread just waits for it. More threads than cores would not factor any faster, and this way a burst of misses cannot
+ * occupy every carrier thread and stall the requests that only need I/O. Concurrent misses for one number are coalesced before they
+ * reach that pool, so a waiting duplicate holds a (cheap) request thread, never a factoring thread.
+ * 
+ * The request executor is unbounded in the virtual mode; the limit is the container's own connection limit. Nothing else grows with the
+ * number of request threads: the metrics record into a fixed set of stripes, whatever thread a request ran on.
+ * 
+ * TIMEOUTS work as in AsyncFactorizer: the handler and the container's onTimeout() race to claim the request, and only the winner
+ * answers it, so it is never completed twice. The factorization runs under a Deadline, which expires with the factor BUDGET (10 seconds
+ * unless setFactorBudget() says otherwise) or with the async timeout, whichever comes first, and onTimeout() interrupts the request
+ * thread, so neither the request thread nor the factor pool keeps working for an expired request. A factorization that runs out of its
+ * budget is answered with the factors found so far, " ?" and the parts left unfactored (406 in BINARY, as StreamingFactorizer does);
+ * a request that onTimeout() claims is answered with 503. Either way it is recorded as a miss and a timeout, and the incomplete result
+ * is never cached. Nor is it shared: a request that joins a computation and gets an incomplete result while its own deadline has not
+ * expired factors the number again.
+ */
+@ThreadSafe
+public class DispatchingFactorizer implements Servlet
+{
+	public static final String PARAMETER = "n";
+	
+	private static final int DEFAULT_CACHE_CAPACITY = 4096;
+	private static final int DEFAULT_REQUEST_THREADS = 200;
+	private static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+	private static final long DEFAULT_FACTOR_BUDGET_NANOS = 10L * 1000 * 1000 * 1000;
+	
+	private final ExecutionMode mode;
+	private final FactorCache cache;
+	private final ExecutorService requestExecutor;
+	private final ExecutorService factorPool;
+	private final SingleFlight<BigInteger, Factorization> inFlight = new SingleFlight<BigInteger, Factorization>();
+	private final FactorizerMetrics metrics = new FactorizerMetrics();
+	private volatile long factorBudgetNanos = DEFAULT_FACTOR_BUDGET_NANOS;
+	
+	/*
+	 * Takes its mode from the "executionMode" system property, falling back to PLATFORM where virtual threads are not available.
+	 */
+	public DispatchingFactorizer()
+	{
+		this(ExecutionMode.fromSystemProperty().orFallback(), new StripedLruFactorCache(DEFAULT_CACHE_CAPACITY), DEFAULT_REQUEST_THREADS,
+				Runtime.getRuntime().availableProcessors());
+	}
+	
+	/*
+	 * requestThreads is the size of the request pool in PLATFORM mode and ignored in VIRTUAL mode.
+	 */
+	public DispatchingFactorizer(ExecutionMode mode, FactorCache cache, int requestThreads, int factorThreads)
+	{
+		this.mode = mode;
+		this.cache = cache;
+		this.requestExecutor = mode.newExecutor(requestThreads, new DaemonThreadFactory("request-"));
+		this.factorPool = ExecutionMode.PLATFORM.newExecutor(factorThreads, new DaemonThreadFactory("factor-"));
+	}
+	
+	public void service(ServletRequest request, ServletResponse response) throws ServletException
+	{
+		long start = System.nanoTime();
+		AsyncContext context = request.startAsync();
+		context.setTimeout(DEFAULT_TIMEOUT_MILLIS);
+		long budget = Math.min(factorBudgetNanos, TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS));
+		Handler handler = new Handler(context, start, Deadline.after(budget, TimeUnit.NANOSECONDS));
+		context.addListener(handler);
+		
+		try
+		{
+			requestExecutor.execute(handler);
+		}
+		catch (RejectedExecutionException e)
+		{
+			if (handler.claim())
+				statusInto(context, HttpServletResponse.SC_SERVICE_UNAVAILABLE); // only after destroy()
+		}
+	}
+	
+	/*
+	 * Upper bound on the time one factorization may take before the request is answered with the factors found so far; the async
+	 * timeout bounds it too.
+	 */
+	public void setFactorBudget(long budget, TimeUnit unit)
+	{
+		factorBudgetNanos = unit.toNanos(budget);
+	}
+	
+	public ExecutionMode getMode()
+	{
+		return mode;
+	}
+	
+	public FactorizerMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	public long getComputedRequests()
+	{
+		return inFlight.getComputed();
+	}
+	
+	public long getCoalescedRequests()
+	{
+		return inFlight.getCoalesced();
+	}
+	
+	
+	/*
+	 * The whole request, in blocking style, on a thread of the request executor. Both the handler (run) and the container (onTimeout,
+	 * onError) may try to answer it; claim() lets only the first.
+	 */
+	private final class Handler implements Runnable, AsyncListener
+	{
+		private final AsyncContext context;
+		private final long start;
+		private final Deadline deadline;
+		private final AtomicBoolean answered = new AtomicBoolean(false);
+		@GuardedBy("this") private Thread worker;
+		
+		Handler(AsyncContext context, long start, Deadline deadline)
+		{
+			this.context = context;
+			this.start = start;
+			this.deadline = deadline;
+		}
+		
+		boolean claim()
+		{
+			return answered.compareAndSet(false, true);
+		}
+		
+		public void run()
+		{
+			if (answered.get())
+				return; // timed out while queued
+			
+			synchronized(this)
+			{
+				worker = Thread.currentThread();
+			}
+			
+			boolean claimed = false;
+			try
+			{
+				BigInteger i = extractFromRequest(context.getRequest());
+				Factors factors = cache.get(i);
+				Factorization partial = null;
+				long factorTime = 0;
+				
+				boolean hit = factors != null;
+				if (!hit)
+				{
+					long factorStart = System.nanoTime();
+					Factorization result = factorOnce(i, deadline);
+					factorTime = System.nanoTime() - factorStart;
+					
+					if (result.isComplete())
+					{
+						factors = result.getPrimeFactors();
+						cache.put(i, factors);
+					}
+					else
+						partial = result; // out of budget, or onTimeout() has answered already
+				}
+				
+				if (!claim())
+					return;
+				claimed = true;
+				
+				long encodeStart = System.nanoTime();
+				if (partial == null)
+					encodeIntoResponse(context.getResponse(), i, factors);
+				else
+					encodePartialIntoResponse(context.getResponse(), i, partial);
+				context.complete();
+				long end = System.nanoTime();
+				
+				if (hit)
+					metrics.recordHit(end - start, end - encodeStart);
+				else
+					metrics.recordMiss(end - start, factorTime, end - encodeStart);
+				if (partial != null)
+					metrics.recordTimeout();
+			}
+			catch (ServletException e)
+			{
+				if (claim())
+					statusInto(context, HttpServletResponse.SC_BAD_REQUEST); // as TextFormat.badRequestInto, on the async context
+			}
+			catch (IOException e)
+			{
+				if (claimed || claim())
+					context.complete(); // the client went away
+			}
+			catch (InterruptedException e)
+			{
+				// interrupted by onTimeout(), or by destroy(); whoever claimed the request answers it
+				if (claim())
+					statusInto(context, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+			catch (RuntimeException e)
+			{
+				if (claimed || claim())
+					statusInto(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+			finally
+			{
+				synchronized(this) // onTimeout() interrupts under the same lock, so no interrupt can arrive after this
+				{
+					worker = null;
+					Thread.interrupted();
+				}
+			}
+		}
+		
+		public void onTimeout(AsyncEvent event)
+		{
+			if (claim())
+			{
+				recordTimedOut(0); // the handler, if any, is still waiting for the factors
+				synchronized(this)
+				{
+					if (worker != null)
+						worker.interrupt();
+				}
+				statusInto(context, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		}
+		
+		/*
+		 * As in AsyncFactorizer: a timed-out request counts as a miss and a timeout, recorded by whoever claimed it.
+		 */
+		private void recordTimedOut(long factorTime)
+		{
+			metrics.recordMiss(System.nanoTime() - start, factorTime, 0);
+			metrics.recordTimeout();
+		}
+		
+		public void onError(AsyncEvent event)
+		{
+			if (claim())
+				context.complete();
+		}
+		
+		public void onComplete(AsyncEvent event){}
+		public void onStartAsync(AsyncEvent event){}
+	}
+	
+	/*
+	 * Factors i on the factor pool, once for all the requests that want it at the same time; the request thread only waits. The
+	 * computation runs under the deadline of the request that started it; a request that joins it and gets an incomplete result
+	 * starts another one under its own deadline, if that has not expired.
+	 */
+	private Factorization factorOnce(BigInteger i, Deadline deadline) throws InterruptedException
+	{
+		Factorization result;
+		do
+			result = factorShared(i, deadline);
+		while (!result.isComplete() && !deadline.isExpired());
+		return result;
+	}
+	
+	private Factorization factorShared(final BigInteger i, final Deadline deadline) throws InterruptedException
+	{
+		return inFlight.run(i, new Callable<Factorization>()
+		{
+			public Factorization call() throws InterruptedException
+			{
+				Future<Factorization> factoring = factorPool.submit(new Callable<Factorization>()
+				{
+					public Factorization call()
+					{
+						return factor(i, deadline);
+					}
+				});
+				try
+				{
+					return factoring.get();
+				}
+				catch (InterruptedException e)
+				{
+					factoring.cancel(true); // the interrupt expires the deadline on the factor thread too
+					throw e;
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					throw new IllegalStateException("Factoring " + i + " failed", cause);
+				}
+			}
+		});
+	}
+	
+	private static void statusInto(AsyncContext context, int status)
+	{
+		ServletResponse response = context.getResponse();
+		if (response instanceof HttpServletResponse)
+			((HttpServletResponse) response).setStatus(status);
+		context.complete();
+	}
+	
+	
+	public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+	{
+		return TextFormat.extract(request, PARAMETER);
+	}
+	
+	public void encodeIntoResponse(ServletResponse response, BigInteger number, Factors factors) throws IOException
+	{
+		WireFormat.of(response).write(response, number, factors);
+	}
+	
+	public void encodePartialIntoResponse(ServletResponse response, BigInteger number, Factorization partial) throws IOException
+	{
+		WireFormat.of(response).write(response, Collections.singletonList(number), new Factorization[] {partial});
+	}
+	
+	// shared factorization engine, giving up when the deadline expires
+	public Factorization factor(BigInteger i, Deadline deadline){return FactorEngine.factor(i, deadline);}
+	
+	public void destroy()
+	{
+		requestExecutor.shutdownNow();
+		factorPool.shutdownNow();
+	}
+	
+	// unimplemented methods from Servlet
+	public ServletConfig getServletConfig(){return null;}
+	public String getServletInfo(){return null;}
+	public void init(ServletConfig arg0) throws ServletException{}
+}
@@ -0,0 +1,201 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import javax.servlet.ServletException;
+import $annotations.*;
+
+/*
+ * Parses the decimal number of a request, from a parameter or STRAIGHT FROM THE BYTES OF THE REQUEST BODY, without allocating.
+ * 
+ * The usual way -- getParameter() for a String, trim() it, new BigInteger(String) -- allocates a String, often a second one, and a
+ * BigInteger with its int[] for every request, even though most numbers fit in a long. This parser keeps a running long while it
+ * reads the digits and only falls back to a BigInteger when the value overflows it; until then the result is a primitive (longValue),
+ * and bigIntegerValue() only has to wrap it with BigInteger.valueOf.
+ * 
+ * Input is rejected AS EARLY AS POSSIBLE: at the first character that is not a digit (apart from whitespace around the number), as
+ * soon as there are more than MAX_DIGITS digits or MAX_LENGTH characters in all, whitespace included, without reading the rest of a
+ * body that may be arbitrarily long -- and, once read, if the number is not positive (0, 000), since there is nothing to factor.
+ * 
+ * A parser has mutable state and buffers, so it is confined to a thread: get() returns the calling thread's own instance, reused for
+ * every request of that thread. A result is valid until the next parse on the same thread.
+ */
+@NotThreadSafe
+final class NumberParser
+{
+	/*
+	 * Longest number accepted, in decimal digits (about 850 bits).
+	 */
+	static final int MAX_DIGITS = 256;
+	
+	/*
+	 * Longest input accepted, in characters: the digits and the whitespace around them.
+	 */
+	static final int MAX_LENGTH = 4 * MAX_DIGITS;
+	
+	private static final int READ_CHUNK = 512;
+	private static final long LONG_LIMIT_TENTH = Long.MAX_VALUE / 10;
+	private static final int LONG_LIMIT_LAST_DIGIT = (int) (Long.MAX_VALUE % 10);
+	private static final int CHUNK_DIGITS = 18;
+	private static final BigInteger CHUNK_SCALE = BigInteger.TEN.pow(CHUNK_DIGITS);
+	
+	private static final int BEFORE = 0;
+	private static final int DIGITS = 1;
+	private static final int AFTER = 2;
+	
+	private static final ThreadLocal<NumberParser> PER_THREAD = new ThreadLocal<NumberParser>()
+	{
+		@Override
+		protected NumberParser initialValue()
+		{
+			return new NumberParser();
+		}
+	};
+	
+	private final byte[] input = new byte[READ_CHUNK];
+	private final char[] digits = new char[MAX_DIGITS];
+	private int count;
+	private int state;
+	private long value;
+	private boolean overflow;
+	
+	private NumberParser() {}
+	
+	static NumberParser get()
+	{
+		return PER_THREAD.get();
+	}
+	
+	
+	/*
+	 * Reads the number from the stream, to its end.
+	 */
+	NumberParser parse(InputStream in) throws IOException, ServletException
+	{
+		reset();
+		int length = 0;
+		for (int read = in.read(input, 0, READ_CHUNK); read != -1; read = in.read(input, 0, READ_CHUNK))
+		{
+			length += read;
+			if (length > MAX_LENGTH)
+				throw rejectLength();
+			for (int k = 0; k < read; k++)
+				accept(input[k] & 0xFF);
+		}
+		return finish();
+	}
+	
+	NumberParser parse(CharSequence text) throws ServletException
+	{
+		reset();
+		if (text.length() > MAX_LENGTH)
+			throw rejectLength();
+		for (int k = 0; k < text.length(); k++)
+			accept(text.charAt(k));
+		return finish();
+	}
+	
+	/*
+	 * True if the number fits in a long, which makes longValue() valid.
+	 */
+	boolean fitsLong()
+	{
+		return !overflow;
+	}
+	
+	long longValue()
+	{
+		if (overflow)
+			throw new IllegalStateException("Does not fit in a long: " + new String(digits, 0, count));
+		return value;
+	}
+	
+	BigInteger bigIntegerValue()
+	{
+		if (!overflow)
+			return BigInteger.valueOf(value);
+		
+		// 18 digits at a time: each chunk fits a long, and no String is needed
+		int first = count % CHUNK_DIGITS == 0 ? CHUNK_DIGITS : count % CHUNK_DIGITS;
+		BigInteger result = BigInteger.valueOf(chunk(0, first));
+		for (int start = first; start < count; start += CHUNK_DIGITS)
+			result = result.multiply(CHUNK_SCALE).add(BigInteger.valueOf(chunk(start, start + CHUNK_DIGITS)));
+		return result;
+	}
+	
+	private long chunk(int from, int to)
+	{
+		long chunk = 0;
+		for (int k = from; k < to; k++)
+			chunk = 10 * chunk + (digits[k] - '0');
+		return chunk;
+	}
+	
+	
+	private void reset()
+	{
+		count = 0;
+		state = BEFORE;
+		value = 0;
+		overflow = false;
+	}
+	
+	private void accept(int c) throws ServletException
+	{
+		if (c >= '0' && c <= '9')
+		{
+			if (state == AFTER || count == MAX_DIGITS)
+				throw rejectDigit();
+			
+			state = DIGITS;
+			digits[count++] = (char) c;
+			
+			int digit = c - '0';
+			if (!overflow)
+			{
+				if (value > LONG_LIMIT_TENTH || (value == LONG_LIMIT_TENTH && digit > LONG_LIMIT_LAST_DIGIT))
+					overflow = true; // from now on only the digits are kept
+				else
+					value = 10 * value + digit;
+			}
+		}
+		else if (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+		{
+			if (state == DIGITS)
+				state = AFTER;
+		}
+		else
+		{
+			throw rejectCharacter(c);
+		}
+	}
+	
+	// the rejections are built out of line, to keep accept() small enough to be inlined into the parse loops
+	private ServletException rejectDigit()
+	{
+		if (state == AFTER)
+			return new ServletException("Not a number: more than one number given");
+		return new ServletException("Number too long, at most " + MAX_DIGITS + " digits are accepted");
+	}
+	
+	private static ServletException rejectCharacter(int c)
+	{
+		String shown = c >= 32 && c < 127 ? "'" + (char) c + "'" : "0x" + Integer.toHexString(c);
+		return new ServletException("Not a number: unexpected character " + shown);
+	}
+	
+	private static ServletException rejectLength()
+	{
+		return new ServletException("Input too long, at most " + MAX_LENGTH + " characters are accepted");
+	}
+	
+	private NumberParser finish() throws ServletException
+	{
+		if (count == 0)
+			throw new ServletException("Not a number: no digits");
+		if (!overflow && value == 0)
+			throw new ServletException("Not a positive number: " + new String(digits, 0, count));
+		return this;
+	}
+}
@@ -0,0 +1,120 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import javax.servlet.ServletException;
+import bench.Measurements;
+
+/*
+ * Bytes allocated and time per parsed number: the way extractFromRequest used to work against NumberParser.
+ * 
+ * - parameter + new BigInteger: the container decodes the parameter into a String (simulated with new String(bytes)), the servlet
+ *   trims it and calls new BigInteger(String);
+ * - parser, body bytes: NumberParser reading the raw body, keeping the result as a long (or a BigInteger once it overflows);
+ * - parser, body bytes -> BigInteger: the same, plus the BigInteger.valueOf that the caches keyed by BigInteger still need.
+ * 
+ * Allocation is measured with the per-thread counter of the HotSpot ThreadMXBean (see bench.Measurements).
+ * 
+ * Arguments: [numbers per round, default 1000000]
+ */
+public class ParsingBenchmark
+{
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private static volatile long sink;
+	
+	public static void main(String[] args) throws IOException, ServletException
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String[] inputs = {"1234567", "9223372036854775807", "1234567890123456789012345678901234567890"};
+		
+		System.out.println(String.format("%-44s %10s %16s", "way of parsing", "ns/op", "alloc bytes/op"));
+		for (int round = 0; round < 3; round++)
+		{
+			for (String input : inputs)
+			{
+				byte[] body = input.getBytes(ASCII);
+				String digits = input.length() + " digits";
+				
+				long allocated = Measurements.allocatedBytes();
+				long start = System.nanoTime();
+				long acc = 0;
+				for (int k = 0; k < count; k++)
+				{
+					String parameter = new String(body, ASCII);
+					acc += new BigInteger(parameter.trim()).bitLength();
+				}
+				report(digits + ", parameter + new BigInteger", start, allocated, count);
+				
+				BodyStream stream = new BodyStream(body);
+				NumberParser parser = NumberParser.get();
+				allocated = Measurements.allocatedBytes();
+				start = System.nanoTime();
+				for (int k = 0; k < count; k++)
+				{
+					stream.rewind();
+					parser.parse(stream);
+					acc += parser.fitsLong() ? parser.longValue() : parser.bigIntegerValue().bitLength();
+				}
+				report(digits + ", parser, body bytes", start, allocated, count);
+				
+				allocated = Measurements.allocatedBytes();
+				start = System.nanoTime();
+				for (int k = 0; k < count; k++)
+				{
+					stream.rewind();
+					acc += parser.parse(stream).bigIntegerValue().bitLength();
+				}
+				report(digits + ", parser, body bytes -> BigInteger", start, allocated, count);
+				sink = acc;
+			}
+			System.out.println();
+		}
+	}
+	
+	private static void report(String name, long start, long allocatedBefore, int count)
+	{
+		long nanos = System.nanoTime() - start;
+		long allocated = Measurements.allocatedBytes() - allocatedBefore;
+		System.out.println(String.format("%-44s %10.1f %16.1f", name, (double) nanos / count, (double) allocated / count));
+	}
+	
+	
+	/*
+	 * The body of a request, readable again and again without allocating.
+	 */
+	private static final class BodyStream extends InputStream
+	{
+		private final byte[] body;
+		private int position;
+		
+		BodyStream(byte[] body)
+		{
+			this.body = body;
+		}
+		
+		void rewind()
+		{
+			position = 0;
+		}
+		
+		@Override
+		public int read()
+		{
+			return position < body.length ? body[position++] & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+		{
+			if (position == body.length)
+				return -1;
+			int read = Math.min(length, body.length - position);
+			System.arraycopy(body, position, buffer, offset, read);
+			position += read;
+			return read;
+		}
+	}
+}
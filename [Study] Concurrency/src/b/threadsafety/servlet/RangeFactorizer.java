@@ -0,0 +1,150 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import javax.servlet.*;
+import $annotations.*;
+import b.threadsafety.factoring.FactoredSegment;
+import b.threadsafety.factoring.RangeSieve;
+import b.threadsafety.factoring.SegmentSink;
+import b.threadsafety.metrics.StripedCounter;
+
+/*
+ * RANGE FACTORIZATION: the factors of every number from "from" to "to", both included, in one request.
+ * 
+ * Asking for a range one number per service() call pays for a request, a parse, a cache lookup and a full factorization per number.
+ * Here the numbers are consecutive, so they are factored together by a RangeSieve: a segmented sieve that works through the range in
+ * cache-sized segments, several at a time on a fork/join pool. The answer is STREAMED segment by segment, in ascending order, and the
+ * response is flushed after every segment, so the client gets the first numbers long before the last ones are sieved and neither side
+ * ever holds more than a few segments. Nothing goes through the FactorCache: a range would only evict the single numbers it is there
+ * for.
+ * 
+ * The answer is in the WireFormat that WireFormatFilter negotiated, as for every servlet of this package: the usual "n: p1 p2 ..."
+ * lines by default, or the records of BinaryFormat, one per number.
+ */
+@ThreadSafe
+public class RangeFactorizer implements Servlet
+{
+	public static final String FROM = "from";
+	public static final String TO = "to";
+	
+	/*
+	 * Most numbers one request may ask for.
+	 */
+	public static final long MAX_RANGE_LENGTH = 1L << 24;
+	
+	private final RangeSieve sieve;
+	private final StripedCounter ranges = new StripedCounter();
+	private final StripedCounter numbers = new StripedCounter();
+	
+	public RangeFactorizer()
+	{
+		this(new RangeSieve());
+	}
+	
+	public RangeFactorizer(RangeSieve sieve)
+	{
+		this.sieve = sieve;
+	}
+	
+	public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		long from;
+		long to;
+		try
+		{
+			from = extractFromRequest(request, FROM);
+			to = extractFromRequest(request, TO);
+			checkRange(from, to);
+		}
+		catch (ServletException e)
+		{
+			TextFormat.badRequestInto(response, e);
+			return;
+		}
+		
+		SegmentSink sink = WireFormat.of(response) == WireFormat.BINARY ? binaryInto(response) : textInto(response);
+		sieve.factorRange(from, to, sink);
+		
+		ranges.increment();
+		numbers.add(to - from + 1);
+	}
+	
+	public long getRanges()
+	{
+		return ranges.get();
+	}
+	
+	public long getNumbers()
+	{
+		return numbers.get();
+	}
+	
+	
+	private static void checkRange(long from, long to) throws ServletException
+	{
+		if (from < 1 || to < from || to >= RangeSieve.MAX_BOUND)
+			throw new ServletException("Range must satisfy 1 <= " + FROM + " <= " + TO + " < 2^50");
+		if (to - from >= MAX_RANGE_LENGTH)
+			throw new ServletException("Range too long, at most " + MAX_RANGE_LENGTH + " numbers are accepted");
+	}
+	
+	private static SegmentSink binaryInto(final ServletResponse response) throws IOException
+	{
+		response.setContentType(BinaryFormat.CONTENT_TYPE);
+		final OutputStream out = response.getOutputStream();
+		
+		return new SegmentSink()
+		{
+			public void accept(FactoredSegment segment) throws IOException
+			{
+				BinaryFormat.write(out, segment);
+				out.flush();
+			}
+		};
+	}
+	
+	private static SegmentSink textInto(final ServletResponse response) throws IOException
+	{
+		response.setContentType(TextFormat.CONTENT_TYPE);
+		final PrintWriter writer = response.getWriter();
+		
+		return new SegmentSink()
+		{
+			public void accept(FactoredSegment segment) throws IOException
+			{
+				for (int i = 0; i < segment.size(); i++)
+					TextFormat.writeLine(writer, segment, i);
+				writer.flush();
+				if (writer.checkError())
+					throw new IOException("Client went away"); // a PrintWriter swallows the IOException, stop sieving for nobody
+			}
+		};
+	}
+	
+	public long extractFromRequest(ServletRequest request, String parameter) throws ServletException
+	{
+		String value = request.getParameter(parameter);
+		if (value == null)
+			throw new ServletException("Missing parameter " + parameter);
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ServletException("Not a number below 2^63: " + value, e);
+		}
+	}
+	
+	public void destroy()
+	{
+		sieve.shutdown();
+	}
+	
+	// unimplemented methods from Servlet
+	public ServletConfig getServletConfig(){return null;}
+	public String getServletInfo(){return null;}
+	public void init(ServletConfig arg0) throws ServletException{}
+}
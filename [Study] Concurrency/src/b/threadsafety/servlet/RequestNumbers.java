@@ -0,0 +1,34 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/*
+ * The number of a request, for the factorizers outside this package (the examples of A_Introduction, B_Atomicity and C_Locking): read
+ * with a NumberParser as the servlets of this package read theirs, and refused the same way, with 400 Bad Request.
+ */
+public final class RequestNumbers
+{
+	private RequestNumbers() {}
+	
+	
+	/*
+	 * See TextFormat.extract: the parameter if there is one, otherwise the request body; positive, at most NumberParser.MAX_DIGITS
+	 * digits, or a ServletException.
+	 */
+	public static BigInteger extract(ServletRequest request, String parameter) throws ServletException, IOException
+	{
+		return TextFormat.extract(request, parameter);
+	}
+	
+	/*
+	 * See TextFormat.badRequestInto.
+	 */
+	public static void badRequestInto(ServletResponse response, ServletException e) throws ServletException
+	{
+		TextFormat.badRequestInto(response, e);
+	}
+}
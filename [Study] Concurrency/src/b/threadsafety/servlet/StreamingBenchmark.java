@@ -0,0 +1,108 @@
+package b.threadsafety.servlet;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import b.threadsafety.cache.StripedLruFactorCache;
+
+/*
+ * Time to first byte of StreamingFactorizer on hard inputs, against the time to the whole answer.
+ * 
+ * Every input is a few small primes times a 40-bit and a 60-bit prime: the small ones are found at once, the 40-bit one after a rho
+ * walk of some hundred milliseconds. Reports, per request, when the first chunk holding a factor was flushed and when the line was
+ * complete. A factorizer that encodes only the finished BigInteger[] sends its first byte at the second moment; the difference is what
+ * streaming saves the client.
+ * 
+ * Arguments: [inputs, default 20]
+ */
+public class StreamingBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		
+		Random random = new Random(17);
+		StreamingFactorizer servlet = new StreamingFactorizer(new StripedLruFactorCache(count));
+		long[] firstFactor = new long[count];
+		long[] complete = new long[count];
+		
+		for (int k = 0; k < count; k++)
+		{
+			BigInteger small = BigInteger.valueOf(2 * 3 * 3 * 7 * (101 + 2 * random.nextInt(400)));
+			BigInteger n = small.multiply(BigInteger.probablePrime(40, random)).multiply(BigInteger.probablePrime(60, random));
+			
+			FakeRequest request = new FakeRequest(n);
+			servlet.service(request.request, request.response);
+			firstFactor[k] = request.firstFactorFlush - request.arrival;
+			complete[k] = request.lastFlush - request.arrival;
+			
+			if (k == 0)
+				System.out.print("first answer: " + request.text);
+		}
+		
+		System.out.println(String.format("%-28s %10s %10s %10s", "", "p50 ms", "p90 ms", "max ms"));
+		report("first factor flushed", firstFactor);
+		report("whole line (= unstreamed)", complete);
+	}
+	
+	private static void report(String name, long[] latencies)
+	{
+		Arrays.sort(latencies);
+		System.out.println(String.format("%-28s %10.2f %10.2f %10.2f", name, latencies[latencies.length / 2] / 1e6,
+			latencies[(int) Math.ceil(0.9 * latencies.length) - 1] / 1e6, latencies[latencies.length - 1] / 1e6));
+	}
+	
+	
+	/*
+	 * Proxy request and response; the writer notes when it is flushed and what it has received.
+	 */
+	private static final class FakeRequest implements InvocationHandler
+	{
+		final BigInteger number;
+		final ServletRequest request;
+		final ServletResponse response;
+		final StringBuilder text = new StringBuilder();
+		final PrintWriter writer;
+		final long arrival = System.nanoTime();
+		long firstFactorFlush;
+		long lastFlush;
+		
+		FakeRequest(BigInteger number)
+		{
+			this.number = number;
+			ClassLoader loader = StreamingBenchmark.class.getClassLoader();
+			this.request = (ServletRequest) Proxy.newProxyInstance(loader, new Class<?>[] {ServletRequest.class}, this);
+			this.response = (ServletResponse) Proxy.newProxyInstance(loader, new Class<?>[] {ServletResponse.class}, this);
+			this.writer = new PrintWriter(new Writer()
+			{
+				public void write(char[] buffer, int offset, int length){text.append(buffer, offset, length);}
+				public void flush(){flushed();}
+				public void close(){}
+			});
+		}
+		
+		void flushed()
+		{
+			lastFlush = System.nanoTime();
+			if (firstFactorFlush == 0 && text.indexOf(" ") >= 0)
+				firstFactorFlush = lastFlush;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if (name.equals("getParameter"))
+				return number.toString();
+			if (name.equals("getWriter"))
+				return writer;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import $annotations.*;
+import b.threadsafety.cache.FactorCache;
+import b.threadsafety.cache.StripedLruFactorCache;
+import b.threadsafety.factoring.Deadline;
+import b.threadsafety.factoring.FactorEngine;
+import b.threadsafety.factoring.FactorSink;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+import b.threadsafety.metrics.FactorizerMetrics;
+
+/*
+ * STREAMING FACTORIZER: the prime factors go out while the number is still being factored.
+ * 
+ * The other factorizers call encodeIntoResponse once all the Factors are known, so for a hard input the client sees nothing for
+ * seconds, although the small factors were known within microseconds. Here a miss is factored with a FactorSink that WRITES EVERY
+ * PRIME AS SOON AS THE ENGINE HAS PROVEN IT, and FLUSHES IN CHUNKS: the factors found in one burst (trial division, the long path)
+ * are buffered, and the buffer is flushed whenever the engine announces a search that may take long, and at the end. Each flush is
+ * one chunk of a chunked HTTP response, so the client can start on the factors it has while the rest is searched for.
+ * 
+ * Format: the usual "n: p1 p2 ..." line, but on a miss the factors are in the order they were FOUND, not ascending. If the budget runs
+ * out, the line ends with " ?" and the parts left unfactored. Hits are answered in one piece, in ascending order, as everywhere else.
+ * Only the text format streams: when WireFormatFilter has chosen the binary format, a miss is answered in one piece once complete.
+ * BinaryFormat has no form for a partial factorization, so a binary request that runs out of budget gets 406 Not Acceptable, with no
+ * body: the answer exists, but only as text, and the client may ask again with format=text.
+ * 
+ * The cache still gets the FULL result, sorted, once the computation has finished and only if it is complete; it is not touched while
+ * the factors stream out. Misses are not coalesced: a request waiting for another one's result could not stream it, so each streaming
+ * miss runs its own factorization.
+ */
+@ThreadSafe
+public class StreamingFactorizer implements Servlet
+{
+	public static final String PARAMETER = "n";
+	
+	private static final int DEFAULT_CACHE_CAPACITY = 4096;
+	private static final long DEFAULT_FACTOR_BUDGET_NANOS = 10L * 1000 * 1000 * 1000;
+	
+	private final FactorCache cache;
+	private final FactorizerMetrics metrics = new FactorizerMetrics();
+	private volatile long factorBudgetNanos = DEFAULT_FACTOR_BUDGET_NANOS;
+	
+	public StreamingFactorizer()
+	{
+		this(new StripedLruFactorCache(DEFAULT_CACHE_CAPACITY));
+	}
+	
+	public StreamingFactorizer(FactorCache cache)
+	{
+		this.cache = cache;
+	}
+	
+	public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		long start = System.nanoTime();
+		BigInteger i;
+		try
+		{
+			i = extractFromRequest(request);
+		}
+		catch (ServletException e)
+		{
+			TextFormat.badRequestInto(response, e);
+			return;
+		}
+		Factors factors = cache.get(i);
+		
+		if (factors != null)
+		{
+			long encodeStart = System.nanoTime();
+			encodeIntoResponse(response, i, factors);
+			long end = System.nanoTime();
+			metrics.recordHit(end - start, end - encodeStart);
+			return;
+		}
+		
+		// only the text format streams; a binary record starts with the number of distinct primes, known only at the end
+		boolean streaming = WireFormat.of(response) == WireFormat.TEXT;
+		StreamingSink sink = null;
+		if (streaming)
+		{
+			response.setContentType(TextFormat.CONTENT_TYPE);
+			sink = new StreamingSink(response.getWriter(), i);
+		}
+		
+		long factorStart = System.nanoTime();
+		Factorization result = factor(i, Deadline.after(factorBudgetNanos, TimeUnit.NANOSECONDS), streaming ? sink : FactorSink.NONE);
+		long factorEnd = System.nanoTime();
+		
+		if (result.isComplete())
+			cache.put(i, result.getPrimeFactors());
+		
+		if (streaming)
+			sink.finish(result.getUnfactored());
+		else if (result.isComplete())
+			encodeIntoResponse(response, i, result.getPrimeFactors());
+		else
+			notAcceptableInto(response); // no binary form for a partial one
+		long end = System.nanoTime();
+		
+		metrics.recordMiss(end - start, factorEnd - factorStart, end - factorEnd);
+		if (!result.isComplete())
+			metrics.recordTimeout();
+	}
+	
+	public void setFactorBudget(long budget, TimeUnit unit)
+	{
+		factorBudgetNanos = unit.toNanos(budget);
+	}
+	
+	public FactorizerMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	
+	/*
+	 * Writes the line of one miss while it is being factored. The sink may be called from the workers of a parallel engine, so it
+	 * writes under its own lock.
+	 */
+	@ThreadSafe
+	private static final class StreamingSink implements FactorSink
+	{
+		@GuardedBy("this") private final PrintWriter writer;
+		@GuardedBy("this") private boolean pending;
+		
+		StreamingSink(PrintWriter writer, BigInteger number)
+		{
+			this.writer = writer;
+			writer.print(number);
+			writer.print(':');
+			pending = true;
+		}
+		
+		public synchronized void found(BigInteger prime)
+		{
+			writer.print(' ');
+			writer.print(prime);
+			pending = true;
+		}
+		
+		public synchronized void searching()
+		{
+			if (pending)
+			{
+				writer.flush();
+				pending = false;
+			}
+		}
+		
+		synchronized void finish(BigInteger[] unfactored)
+		{
+			if (unfactored.length > 0)
+			{
+				writer.print(" ?");
+				for (BigInteger part : unfactored)
+				{
+					writer.print(' ');
+					writer.print(part);
+				}
+			}
+			writer.print('\n');
+			writer.flush();
+		}
+	}
+	
+	
+	private static void notAcceptableInto(ServletResponse response)
+	{
+		if (response instanceof HttpServletResponse)
+			((HttpServletResponse) response).setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+	}
+	
+	public BigInteger extractFromRequest(ServletRequest request) throws ServletException, IOException
+	{
+		return TextFormat.extract(request, PARAMETER);
+	}
+	
+	public void encodeIntoResponse(ServletResponse response, BigInteger number, Factors factors) throws IOException
+	{
+		WireFormat.of(response).write(response, number, factors);
+	}
+	
+	// shared factorization engine, telling sink about each prime as it is found
+	public Factorization factor(BigInteger i, Deadline deadline, FactorSink sink){return FactorEngine.factor(i, deadline, sink);}
+	
+	// unimplemented methods from Servlet
+	public void destroy(){}
+	public ServletConfig getServletConfig(){return null;}
+	public String getServletInfo(){return null;}
+	public void init(ServletConfig arg0) throws ServletException{}
+}
@@ -0,0 +1,112 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import b.threadsafety.factoring.FactoredSegment;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * The plain-text format of the servlets of this package: numbers in decimal, answered one line per number as "n: p1 p2 ...".
+ * Numbers are read with a NumberParser, so positive, up to NumberParser.MAX_DIGITS digits and no sign.
+ */
+final class TextFormat
+{
+	static final String CONTENT_TYPE = "text/plain";
+	
+	private TextFormat() {}
+	
+	
+	static BigInteger parse(String value) throws ServletException
+	{
+		return NumberParser.get().parse(value).bigIntegerValue();
+	}
+	
+	/*
+	 * The number of a request: the given parameter if there is one, otherwise the request body, read as bytes (see NumberParser).
+	 */
+	static BigInteger extract(ServletRequest request, String parameter) throws ServletException, IOException
+	{
+		String value = request.getParameter(parameter);
+		NumberParser parser = NumberParser.get();
+		return (value != null ? parser.parse(value) : parser.parse(request.getInputStream())).bigIntegerValue();
+	}
+	
+	/*
+	 * The answer of every servlet of this package to a request it cannot read (the ServletException of extract or parse): 400 Bad
+	 * Request, not the 500 the container would make of the exception. A response that is not HTTP has no status, so it gets e back.
+	 */
+	static void badRequestInto(ServletResponse response, ServletException e) throws ServletException
+	{
+		if (!(response instanceof HttpServletResponse))
+			throw e;
+		((HttpServletResponse) response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+	}
+	
+	/*
+	 * The line of one number, each prime repeated according to its exponent; packed primes are printed as longs, with no BigInteger.
+	 */
+	static void writeLine(PrintWriter writer, BigInteger number, Factors factors)
+	{
+		writer.print(number);
+		writer.print(':');
+		writePrimes(writer, factors);
+		writer.print('\n');
+	}
+	
+	/*
+	 * The line of one number whose factorization may be incomplete: the primes found, then, if it ran out of time, " ?" and the
+	 * parts left unfactored, as StreamingFactorizer ends its lines.
+	 */
+	static void writeLine(PrintWriter writer, BigInteger number, Factorization result)
+	{
+		writer.print(number);
+		writer.print(':');
+		writePrimes(writer, result.getPrimeFactors());
+		if (!result.isComplete())
+		{
+			writer.print(" ?");
+			for (BigInteger part : result.getUnfactored())
+			{
+				writer.print(' ');
+				writer.print(part);
+			}
+		}
+		writer.print('\n');
+	}
+	
+	private static void writePrimes(PrintWriter writer, Factors factors)
+	{
+		for (int k = 0; k < factors.distinct(); k++)
+		{
+			for (int e = factors.exponent(k); e > 0; e--)
+			{
+				writer.print(' ');
+				if (factors.isLong(k))
+					writer.print(factors.longPrime(k));
+				else
+					writer.print(factors.prime(k));
+			}
+		}
+	}
+	
+	/*
+	 * The line of the i-th number of a segment, without any object per number or factor.
+	 */
+	static void writeLine(PrintWriter writer, FactoredSegment segment, int i)
+	{
+		writer.print(segment.getNumber(i));
+		writer.print(':');
+		for (int k = 0; k < segment.factorCount(i); k++)
+		{
+			writer.print(' ');
+			writer.print(segment.factor(i, k));
+		}
+		writer.print('\n');
+	}
+}
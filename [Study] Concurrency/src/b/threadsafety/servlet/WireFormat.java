@@ -0,0 +1,172 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.List;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import b.threadsafety.factoring.Factorization;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * The formats the servlets of this package answer in: TEXT ("n: p1 p2 ...", see TextFormat) or BINARY (see BinaryFormat).
+ * 
+ * The choice is made per request by WireFormatFilter, which sets the content type of the response before the servlet runs; of()
+ * reads it back, so the servlets' encodeIntoResponse only has the response to go by and needs no extra state. Without the filter
+ * the content type is not set yet and the answer is TEXT, as it always was.
+ */
+public enum WireFormat
+{
+	TEXT(TextFormat.CONTENT_TYPE)
+	{
+		public void write(ServletResponse response, BigInteger number, Factors factors) throws IOException
+		{
+			response.setContentType(TextFormat.CONTENT_TYPE);
+			PrintWriter writer = response.getWriter();
+			TextFormat.writeLine(writer, number, factors);
+			writer.flush();
+		}
+		
+		public void write(ServletResponse response, List<BigInteger> numbers, Factors[] factors) throws IOException
+		{
+			response.setContentType(TextFormat.CONTENT_TYPE);
+			PrintWriter writer = response.getWriter();
+			for (int index = 0; index < factors.length; index++)
+				TextFormat.writeLine(writer, numbers.get(index), factors[index]);
+			writer.flush();
+		}
+		
+		public void write(ServletResponse response, List<BigInteger> numbers, Factorization[] results) throws IOException
+		{
+			response.setContentType(TextFormat.CONTENT_TYPE);
+			PrintWriter writer = response.getWriter();
+			for (int index = 0; index < results.length; index++)
+				TextFormat.writeLine(writer, numbers.get(index), results[index]);
+			writer.flush();
+		}
+	},
+	
+	BINARY(BinaryFormat.CONTENT_TYPE)
+	{
+		public void write(ServletResponse response, BigInteger number, Factors factors) throws IOException
+		{
+			BinaryFormat.write(response, number, factors);
+		}
+		
+		public void write(ServletResponse response, List<BigInteger> numbers, Factors[] factors) throws IOException
+		{
+			BinaryFormat.write(response, numbers, factors);
+		}
+		
+		public void write(ServletResponse response, List<BigInteger> numbers, Factorization[] results) throws IOException
+		{
+			Factors[] factors = new Factors[results.length];
+			for (int index = 0; index < results.length; index++)
+			{
+				if (!results[index].isComplete())
+				{
+					// no binary form for a partial answer
+					if (response instanceof HttpServletResponse)
+						((HttpServletResponse) response).setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+					return;
+				}
+				factors[index] = results[index].getPrimeFactors();
+			}
+			BinaryFormat.write(response, numbers, factors);
+		}
+	};
+	
+	/*
+	 * Request parameter that overrides the Accept header: "text" or "binary".
+	 */
+	public static final String PARAMETER = "format";
+	
+	private final String contentType;
+	
+	private WireFormat(String contentType)
+	{
+		this.contentType = contentType;
+	}
+	
+	public String getContentType()
+	{
+		return contentType;
+	}
+	
+	/*
+	 * Writes the answer for one number.
+	 */
+	public abstract void write(ServletResponse response, BigInteger number, Factors factors) throws IOException;
+	
+	/*
+	 * Writes the answers for a batch, in order.
+	 */
+	public abstract void write(ServletResponse response, List<BigInteger> numbers, Factors[] factors) throws IOException;
+	
+	/*
+	 * Writes the answers for a batch, in order, where factorizations may have run out of time. TEXT ends an incomplete line with
+	 * " ?" and the parts left unfactored; BINARY has no form for them and answers 406 Not Acceptable, with no body, if any is.
+	 */
+	public abstract void write(ServletResponse response, List<BigInteger> numbers, Factorization[] results) throws IOException;
+	
+	/*
+	 * The format chosen for this response, TEXT unless its content type says BINARY.
+	 */
+	public static WireFormat of(ServletResponse response)
+	{
+		String type = response.getContentType();
+		return type != null && type.startsWith(BinaryFormat.CONTENT_TYPE) ? BINARY : TEXT;
+	}
+	
+	/*
+	 * The format for a request with the given format parameter and Accept header, either of which may be null. The parameter wins;
+	 * otherwise the supported media type with the highest quality in the header, the earlier one on a tie, and TEXT if none is listed.
+	 */
+	public static WireFormat negotiate(String parameter, String accept)
+	{
+		if (parameter != null)
+		{
+			for (WireFormat format : values())
+				if (format.name().equalsIgnoreCase(parameter.trim()))
+					return format;
+		}
+		
+		if (accept == null)
+			return TEXT;
+		
+		WireFormat best = TEXT;
+		double bestQuality = 0;
+		for (String range : accept.split(","))
+		{
+			String[] parts = range.split(";");
+			String type = parts[0].trim();
+			double quality = 1;
+			for (int k = 1; k < parts.length; k++)
+			{
+				String parameterPart = parts[k].trim();
+				if (parameterPart.startsWith("q="))
+				{
+					try
+					{
+						quality = Double.parseDouble(parameterPart.substring(2));
+					}
+					catch (NumberFormatException e)
+					{
+						quality = 0; // a broken range is ignored
+					}
+				}
+			}
+			
+			for (WireFormat format : values())
+			{
+				if (format.contentType.equalsIgnoreCase(type) && quality > bestQuality)
+				{
+					best = format;
+					bestQuality = quality;
+				}
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,112 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Random;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import b.threadsafety.factoring.Factors;
+import bench.Measurements;
+
+/*
+ * Cost of encodeIntoResponse in the TEXT and the BINARY WireFormat: time, bytes allocated by the encoding thread and bytes on the
+ * wire, per answer, for three kinds of answers -- many small factors, two 64-bit primes, and two primes wider than 64 bits.
+ * 
+ * The response discards what it is given, so only the encoding is measured, not the container.
+ * 
+ * Arguments: [answers per round, default 200000]
+ */
+public class WireFormatBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		int answers = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(18);
+		
+		BigInteger[] smooth = new BigInteger[24];
+		for (int k = 0; k < smooth.length; k++)
+			smooth[k] = BigInteger.valueOf(k < 12 ? 2 : k < 18 ? 3 : k < 21 ? 7 : 1009);
+		BigInteger[] twoLongs = sorted(BigInteger.probablePrime(62, random), BigInteger.probablePrime(62, random));
+		BigInteger[] twoWide = sorted(BigInteger.probablePrime(90, random), BigInteger.probablePrime(100, random));
+		
+		System.out.println(String.format("%-30s %10s %14s %12s", "answer", "ns/op", "alloc bytes/op", "wire bytes"));
+		for (int round = 0; round < 3; round++)
+		{
+			for (WireFormat format : WireFormat.values())
+			{
+				run(format, "24 small factors", smooth, answers);
+				run(format, "two 62-bit primes", twoLongs, answers);
+				run(format, "two 90/100-bit primes", twoWide, answers);
+			}
+			System.out.println();
+		}
+	}
+	
+	private static void run(WireFormat format, String name, BigInteger[] factors, int answers) throws IOException
+	{
+		BigInteger number = BigInteger.ONE;
+		for (BigInteger factor : factors)
+			number = number.multiply(factor);
+		Factors packed = Factors.of(factors);
+		
+		DiscardingResponse response = new DiscardingResponse();
+		long allocated = Measurements.allocatedBytes();
+		long start = System.nanoTime();
+		for (int k = 0; k < answers; k++)
+			format.write(response, number, packed);
+		long nanos = System.nanoTime() - start;
+		allocated = Measurements.allocatedBytes() - allocated;
+		
+		System.out.println(String.format("%-30s %10.1f %14.1f %12d", format + " " + name, (double) nanos / answers,
+			(double) allocated / answers, response.bytes / answers));
+	}
+	
+	private static BigInteger[] sorted(BigInteger a, BigInteger b)
+	{
+		return a.compareTo(b) <= 0 ? new BigInteger[] {a, b} : new BigInteger[] {b, a};
+	}
+	
+	
+	/*
+	 * Counts what is written and throws it away. One writer and one stream for the whole run, like a container reusing its buffers.
+	 */
+	private static final class DiscardingResponse implements ServletResponse
+	{
+		long bytes;
+		String contentType;
+		
+		final PrintWriter writer = new PrintWriter(new Writer()
+		{
+			public void write(char[] buffer, int offset, int length){bytes += length;}
+			public void flush(){}
+			public void close(){}
+		});
+		
+		final ServletOutputStream stream = new ServletOutputStream()
+		{
+			public void write(int b){bytes++;}
+			public void write(byte[] buffer, int offset, int length){bytes += length;}
+		};
+		
+		public PrintWriter getWriter(){return writer;}
+		public ServletOutputStream getOutputStream(){return stream;}
+		public void setContentType(String type){contentType = type;}
+		public String getContentType(){return contentType;}
+		
+		// unused
+		public String getCharacterEncoding(){return null;}
+		public void setCharacterEncoding(String charset){}
+		public void setContentLength(int length){}
+		public void setBufferSize(int size){}
+		public int getBufferSize(){return 0;}
+		public void flushBuffer(){}
+		public void resetBuffer(){}
+		public boolean isCommitted(){return false;}
+		public void reset(){}
+		public void setLocale(Locale locale){}
+		public Locale getLocale(){return null;}
+	}
+}
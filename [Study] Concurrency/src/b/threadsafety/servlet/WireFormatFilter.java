@@ -0,0 +1,30 @@
+package b.threadsafety.servlet;
+
+import java.io.IOException;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import $annotations.*;
+
+/*
+ * CONTENT NEGOTIATION for the factorizers of this package: picks the WireFormat from the "format" parameter or the Accept header (see
+ * WireFormat.negotiate) and sets it as the content type of the response before passing the request on. The servlets' encode methods
+ * read it back with WireFormat.of(response). Clients that ask for nothing in particular keep getting the text format.
+ * 
+ * Stateless, so one instance serves all requests.
+ */
+@ThreadSafe
+public class WireFormatFilter implements Filter
+{
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+	{
+		String accept = request instanceof HttpServletRequest ? ((HttpServletRequest) request).getHeader("Accept") : null;
+		WireFormat format = WireFormat.negotiate(request.getParameter(WireFormat.PARAMETER), accept);
+		
+		response.setContentType(format.getContentType());
+		chain.doFilter(request, response);
+	}
+	
+	// unimplemented methods from Filter
+	public void init(FilterConfig config) throws ServletException{}
+	public void destroy(){}
+}
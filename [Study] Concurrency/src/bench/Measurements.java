@@ -0,0 +1,51 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ * Small helpers shared by the main()-driven benchmarks of the project: allocation and GC counters read from the platform MXBeans.
+ * 
+ * Per-thread allocation counting is a HotSpot extension (com.sun.management.ThreadMXBean); on other VMs allocatedBytes() returns -1
+ * and the benchmarks just report timings.
+ */
+public final class Measurements
+{
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	private Measurements() {}
+	
+	
+	/*
+	 * Bytes allocated so far by the calling thread, or -1 if the VM cannot tell.
+	 */
+	public static long allocatedBytes()
+	{
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	/*
+	 * Total number of collections run so far, over all collectors.
+	 */
+	public static long gcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+	
+	/*
+	 * Total time spent in collections so far, over all collectors.
+	 */
+	public static long gcMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+}
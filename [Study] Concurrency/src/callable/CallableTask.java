@@ -1,68 +1,89 @@
 package callable;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Example of how to construct a callable task to be run by a thread, which you can poll to see if it has finished or even cancel it.
- * Done with the help of ExecutorService and Future.
+ * Example of how to construct a callable task to be run by a thread, be told when it has finished or even cancel it.
+ * Done with the help of a TaskPipeline (ExecutorService and FutureTask underneath).
+ * 
+ * The first version of this example submitted the task and then slept for 5 and 2 seconds, checking future.isDone() in between: the
+ * caller learned about the completion up to a whole polling period late, and kept a thread busy sleeping. Here the work is split into
+ * stages chained with then(), and a callback is told the outcome the moment the last stage completes. A third stage with a deadline
+ * shows real cancellation: it is interrupted in the middle of its sleep when the deadline passes.
+ * 
+ * The executor is chosen by the ExecutionMode named in the system property "executionMode" (-DexecutionMode=VIRTUAL runs the task on a
+ * virtual thread on Java 21+); PLATFORM, a single platform thread, is the default and the fallback.
  * 
  * @author Alexandru Manea
  *
  */
 public class CallableTask {
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 
-		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ExecutionMode mode = ExecutionMode.fromSystemProperty().orFallback();
+		TaskPipeline pipeline = new TaskPipeline(mode, 1);
+		final CountDownLatch finished = new CountDownLatch(2);
 
-		Future<?> future = executor.submit(new Callable<Object>() {
+		Stage<String> cleanedUp = pipeline.submit(new Callable<String>() {
 
-			public Object call() throws Exception {
+			public String call() throws Exception {
 
 				System.out.println("Starting things...");
+				Thread.sleep(5000);
+				return "5 seconds passed...";
+			}
+
+		}).then(new Continuation<String, String>() {
 
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			public String apply(String previous) throws Exception {
 
-				System.out.println("5 seconds passed...");
+				System.out.println(previous);
+				Thread.sleep(2000);
+				return "Another 2 seconds passed. Cleaning things up...";
+			}
+		});
 
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		cleanedUp.whenDone(new Callback<String>() {
 
-				System.out.println("Another 2 seconds passed. Cleaning things up...");
+			public void onSuccess(String result) {
+				System.out.println(result);
 				System.out.println("===============================================");
+				System.out.println("\n!!! FINALLY DONE !!!");
+				finished.countDown();
+			}
+
+			public void onFailure(Throwable cause) {
+				cause.printStackTrace();
+				finished.countDown();
+			}
+		});
+
+		cleanedUp.then(new Continuation<String, String>() {
+
+			public String apply(String previous) throws Exception {
+
+				System.out.println("\nSomething that would take 10 seconds, with a deadline of 1 second...");
+				Thread.sleep(10000);
+				return "Not cancelled ba boule!";
+			}
+
+		}, 1, TimeUnit.SECONDS).whenDone(new Callback<String>() {
+
+			public void onSuccess(String result) {
+				System.out.println(result);
+				finished.countDown();
+			}
 
-				return null;
-			}});
-
-		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-		if (!future.isDone()) {
-			System.out.println("Not done ba boule!");
-		}
-		
-		try {
-			Thread.sleep(2000);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-		if (future.isDone()) {
-			System.out.println("\n!!! FINALLY DONE !!!");
-		}
+			public void onFailure(Throwable cause) {
+				System.out.println("Cancelled: " + cause);
+				finished.countDown();
+			}
+		});
 
+		finished.await(); // no polling: the callbacks count down as soon as their stages complete
+		pipeline.shutdown();
 	}
 }
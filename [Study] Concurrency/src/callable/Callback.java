@@ -0,0 +1,16 @@
+package callable;
+
+/**
+ * Told about the outcome of a stage, on the thread that completed it (or on the thread that registers it, if the stage is already
+ * done). Should be quick: it delays whatever that thread does next.
+ */
+public interface Callback<T> {
+
+	void onSuccess(T result);
+
+	/**
+	 * The stage failed with the exception its task threw, was cancelled (CancellationException) or missed its deadline
+	 * (TimeoutException).
+	 */
+	void onFailure(Throwable cause);
+}
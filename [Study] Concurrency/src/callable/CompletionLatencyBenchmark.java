@@ -0,0 +1,123 @@
+package callable;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * How long after a task completes does the code waiting for it find out?
+ * 
+ * Runs the same short task many times, one at a time, and measures the time from the end of call() to the moment the waiting side
+ * notices, for four ways of waiting:
+ * 
+ * - sleep-polling, as the first CallableTask did: sleep for the polling period, check isDone(), repeat (CallableTask used 5 s);
+ * - blocking in future.get();
+ * - a Stage callback (whenDone), run by the worker right after the task;
+ * - a continuation: the time from the end of one stage to the start of the next one chained with then().
+ * 
+ * Arguments: [tasks per mode, default 500] [polling period in ms, default 5]
+ */
+public class CompletionLatencyBenchmark {
+
+	private static final long WORK_NANOS = 200000;
+
+	public static void main(String[] args) throws Exception {
+
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long pollMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		ExecutorService executor = ExecutionMode.PLATFORM.newExecutor(1);
+		TaskPipeline pipeline = new TaskPipeline(executor);
+
+		System.out.println(String.format("%-26s %12s %12s %12s", "waiting by", "mean (us)", "p50 (us)", "p99 (us)"));
+
+		report("sleep-polling " + pollMillis + " ms", polling(executor, tasks, pollMillis));
+		report("future.get()", blocking(executor, tasks));
+		report("callback", callbacks(pipeline, tasks));
+		report("continuation", continuations(pipeline, tasks));
+
+		pipeline.shutdown();
+	}
+
+	private static long[] polling(ExecutorService executor, int tasks, long pollMillis) throws Exception {
+		long[] latencies = new long[tasks];
+		for (int k = 0; k < tasks; k++) {
+			Task task = new Task();
+			Future<Long> future = executor.submit(task);
+			while (!future.isDone()) {
+				Thread.sleep(pollMillis);
+			}
+			latencies[k] = System.nanoTime() - future.get();
+		}
+		return latencies;
+	}
+
+	private static long[] blocking(ExecutorService executor, int tasks) throws Exception {
+		long[] latencies = new long[tasks];
+		for (int k = 0; k < tasks; k++) {
+			long completed = executor.submit(new Task()).get();
+			latencies[k] = System.nanoTime() - completed;
+		}
+		return latencies;
+	}
+
+	private static long[] callbacks(TaskPipeline pipeline, int tasks) throws Exception {
+		final long[] latencies = new long[tasks];
+		for (int k = 0; k < tasks; k++) {
+			final int index = k;
+			final CountDownLatch noticed = new CountDownLatch(1);
+			pipeline.submit(new Task()).whenDone(new Callback<Long>() {
+
+				public void onSuccess(Long completed) {
+					latencies[index] = System.nanoTime() - completed;
+					noticed.countDown();
+				}
+
+				public void onFailure(Throwable cause) {
+					noticed.countDown();
+				}
+			});
+			noticed.await(); // only paces the loop, the latency was taken in the callback
+		}
+		return latencies;
+	}
+
+	private static long[] continuations(TaskPipeline pipeline, int tasks) throws Exception {
+		long[] latencies = new long[tasks];
+		for (int k = 0; k < tasks; k++) {
+			latencies[k] = pipeline.submit(new Task()).then(new Continuation<Long, Long>() {
+
+				public Long apply(Long completed) {
+					return System.nanoTime() - completed;
+				}
+			}).get();
+		}
+		return latencies;
+	}
+
+	private static void report(String name, long[] latencies) {
+		Arrays.sort(latencies);
+		long sum = 0;
+		for (long latency : latencies) {
+			sum += latency;
+		}
+		System.out.println(String.format("%-26s %12.1f %12.1f %12.1f", name, sum / 1e3 / latencies.length,
+				latencies[latencies.length / 2] / 1e3, latencies[(int) Math.ceil(0.99 * latencies.length) - 1] / 1e3));
+	}
+
+	/**
+	 * Spins for WORK_NANOS and returns the moment it finished.
+	 */
+	private static final class Task implements Callable<Long> {
+
+		public Long call() {
+			long end = System.nanoTime() + WORK_NANOS;
+			while (System.nanoTime() < end) {
+				// busy, like real work
+			}
+			return System.nanoTime();
+		}
+	}
+}
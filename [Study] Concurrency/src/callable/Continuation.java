@@ -0,0 +1,9 @@
+package callable;
+
+/**
+ * The next step of a pipeline: turns the result of the previous stage into the result of this one.
+ */
+public interface Continuation<T, R> {
+
+	R apply(T previous) throws Exception;
+}
@@ -0,0 +1,90 @@
+package callable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Which kind of threads run the submitted tasks.
+ * 
+ * PLATFORM: a fixed pool of ordinary (OS) threads. Each one costs a native stack and a kernel thread, so a pool is kept small, and tasks
+ * that block -- on I/O, on a lock, on a Future -- hold their thread while they wait.
+ * 
+ * VIRTUAL: one new virtual thread per task (Java 21+). A virtual thread that blocks is unmounted from its carrier thread, so tens of
+ * thousands of tasks can wait on I/O at the same time; but there are only as many carriers as cores, so they do not make CPU-bound work
+ * any faster -- that still belongs on a pool of platform threads sized to the cores. This project is compiled for Java 7, so the
+ * executor is looked up by reflection; on older VMs the mode reports isSupported() == false and orFallback() falls back to PLATFORM.
+ */
+public enum ExecutionMode {
+
+	PLATFORM {
+		public boolean isSupported() {
+			return true;
+		}
+
+		public ExecutorService newExecutor(int threads, ThreadFactory factory) {
+			return threads == 1 ? Executors.newSingleThreadExecutor(factory) : Executors.newFixedThreadPool(threads, factory);
+		}
+	},
+
+	VIRTUAL {
+		public boolean isSupported() {
+			return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+		}
+
+		// threads and factory are ignored: every task gets its own virtual thread
+		public ExecutorService newExecutor(int threads, ThreadFactory factory) {
+			if (!isSupported()) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java "
+						+ System.getProperty("java.version"));
+			}
+
+			try {
+				return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	};
+
+	/**
+	 * System property that selects the mode of CallableTask and of the servlets that take their mode from the configuration.
+	 */
+	public static final String PROPERTY = "executionMode";
+
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookUpVirtualExecutor();
+
+	public abstract boolean isSupported();
+
+	public abstract ExecutorService newExecutor(int threads, ThreadFactory factory);
+
+	public ExecutorService newExecutor(int threads) {
+		return newExecutor(threads, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * This mode, or PLATFORM if this VM does not support it.
+	 */
+	public ExecutionMode orFallback() {
+		return isSupported() ? this : PLATFORM;
+	}
+
+	/**
+	 * The mode named by the system property, PLATFORM if it is not set.
+	 */
+	public static ExecutionMode fromSystemProperty() {
+		return valueOf(System.getProperty(PROPERTY, PLATFORM.name()).trim().toUpperCase());
+	}
+
+	private static Method lookUpVirtualExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package callable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of a TaskPipeline: a FutureTask that tells its callbacks when it completes, can be chained with then(), and may have a
+ * deadline.
+ * 
+ * Completion is PUSHED, not polled: FutureTask calls done() on the thread that completes the task (or cancels it), and done() runs the
+ * callbacks registered so far; a callback registered after that runs at once, on the registering thread. Whoever waits for the result
+ * is told within microseconds, without a thread sleeping and checking isDone().
+ * 
+ * A stage with a DEADLINE is cancelled with cancel(true) when the deadline passes before it completes, which interrupts the worker
+ * running it -- the task has to respond to interruption (sleep, wait, I/O on interruptible channels, or checking the flag) for that to
+ * stop the work. get() then throws CancellationException like for any cancelled task; callbacks and the stages chained after it get a
+ * TimeoutException instead, and isTimedOut() tells the two apart. The deadline counts from the moment the stage becomes runnable, so
+ * time spent queueing for a worker counts too.
+ */
+public class Stage<T> extends FutureTask<T> {
+
+	private static final int RUNNING = 0;
+	private static final int CANCELLED = 1;
+	private static final int TIMED_OUT = 2;
+
+	private final TaskPipeline pipeline;
+	private final long timeoutNanos;
+	private final AtomicInteger cancelReason = new AtomicInteger(RUNNING);
+	private volatile ScheduledFuture<?> deadline;
+
+	// guarded by this
+	private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+	private boolean notified = false;
+
+	Stage(TaskPipeline pipeline, Callable<T> task, long timeoutNanos) {
+		super(task);
+		this.pipeline = pipeline;
+		this.timeoutNanos = timeoutNanos;
+	}
+
+	/**
+	 * Registers a callback for the outcome of this stage. Callbacks run in the order they were registered.
+	 */
+	public Stage<T> whenDone(Callback<? super T> callback) {
+		synchronized (this) {
+			if (!notified) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+
+		tell(callback);
+		return this;
+	}
+
+	/**
+	 * The stage that applies next to the result of this one, once this one has succeeded. If this stage fails, is cancelled or times
+	 * out, the next one does not run and fails with the same cause.
+	 */
+	public <R> Stage<R> then(Continuation<? super T, ? extends R> next) {
+		return then(next, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * As then(next), with a deadline for the next stage that starts when this one has succeeded. A timeout of 0 means no deadline.
+	 */
+	public <R> Stage<R> then(final Continuation<? super T, ? extends R> next, long timeout, TimeUnit unit) {
+		final Stage<R> stage = new Stage<R>(pipeline, new Callable<R>() {
+
+			public R call() throws Exception {
+				return next.apply(get()); // this stage is done by now, get() does not block
+			}
+		}, unit.toNanos(timeout));
+
+		whenDone(new Callback<T>() {
+
+			public void onSuccess(T result) {
+				stage.start();
+			}
+
+			public void onFailure(Throwable cause) {
+				stage.fail(cause);
+			}
+		});
+		return stage;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		cancelReason.compareAndSet(RUNNING, CANCELLED);
+		return super.cancel(mayInterruptIfRunning);
+	}
+
+	/**
+	 * True if this stage was cancelled because it missed its deadline.
+	 */
+	public boolean isTimedOut() {
+		return isCancelled() && cancelReason.get() == TIMED_OUT;
+	}
+
+	/**
+	 * Arms the deadline, if any, and hands the stage to the pipeline's executor.
+	 */
+	void start() {
+		try {
+			if (timeoutNanos > 0) {
+				deadline = pipeline.schedule(new Runnable() {
+
+					public void run() {
+						timeOut();
+					}
+				}, timeoutNanos);
+
+				if (isDone()) {
+					deadline.cancel(false); // done() ran before the deadline was set
+				}
+			}
+
+			pipeline.execute(this);
+		} catch (RejectedExecutionException e) {
+			fail(e); // the pipeline was shut down
+		}
+	}
+
+	/**
+	 * Completes the stage without running it.
+	 */
+	void fail(Throwable cause) {
+		setException(cause);
+	}
+
+	private void timeOut() {
+		if (cancelReason.compareAndSet(RUNNING, TIMED_OUT)) {
+			super.cancel(true);
+		}
+	}
+
+	protected void done() {
+		ScheduledFuture<?> armed = deadline;
+		if (armed != null) {
+			armed.cancel(false);
+		}
+
+		List<Callback<? super T>> toTell;
+		synchronized (this) {
+			notified = true;
+			toTell = new ArrayList<Callback<? super T>>(callbacks);
+			callbacks.clear();
+		}
+
+		for (Callback<? super T> callback : toTell) {
+			tell(callback);
+		}
+	}
+
+	private void tell(Callback<? super T> callback) {
+		T result;
+		try {
+			result = get();
+		} catch (ExecutionException e) {
+			report(callback, e.getCause());
+			return;
+		} catch (CancellationException e) {
+			report(callback, isTimedOut() ? new TimeoutException("Deadline of " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms passed") : e);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // cannot block here, the stage is done
+			report(callback, e);
+			return;
+		}
+
+		try {
+			callback.onSuccess(result);
+		} catch (RuntimeException e) {
+			uncaught(e);
+		}
+	}
+
+	private static void report(Callback<?> callback, Throwable cause) {
+		try {
+			callback.onFailure(cause);
+		} catch (RuntimeException e) {
+			uncaught(e);
+		}
+	}
+
+	// a failing callback must not keep the next ones from running
+	private static void uncaught(RuntimeException e) {
+		Thread current = Thread.currentThread();
+		current.getUncaughtExceptionHandler().uncaughtException(current, e);
+	}
+}
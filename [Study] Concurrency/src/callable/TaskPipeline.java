@@ -0,0 +1,115 @@
+package callable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small task-pipeline API on top of an ExecutorService, for Java 7 (which has no CompletableFuture).
+ * 
+ * submit() runs a task as a Stage; stage.then() chains the next step, run as soon as the previous one succeeds; stage.whenDone() is
+ * told the outcome; collect() waits for a whole group of stages. Every stage may have a deadline, enforced by a single scheduler thread
+ * that cancels -- and interrupts -- the stages that miss it. Nobody polls: each completion triggers the next step directly.
+ */
+public class TaskPipeline {
+
+	private final ExecutorService executor;
+	private final ScheduledThreadPoolExecutor deadlines;
+
+	public TaskPipeline(ExecutionMode mode, int threads) {
+		this(mode.newExecutor(threads));
+	}
+
+	public TaskPipeline(ExecutorService executor) {
+		this.executor = executor;
+		this.deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "pipeline-deadlines");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.deadlines.setRemoveOnCancelPolicy(true); // most deadlines are cancelled, do not keep them queued until they expire
+	}
+
+	public <T> Stage<T> submit(Callable<T> task) {
+		return submit(task, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Runs task as a stage that is cancelled, interrupting it, if it has not completed within timeout. A timeout of 0 means no deadline.
+	 */
+	public <T> Stage<T> submit(Callable<T> task, long timeout, TimeUnit unit) {
+		Stage<T> stage = new Stage<T>(this, task, unit.toNanos(timeout));
+		stage.start();
+		return stage;
+	}
+
+	/**
+	 * A stage with the results of all the given stages, in their order, once every one of them has succeeded. It fails as soon as one
+	 * of them fails, with the same cause; the others keep running.
+	 */
+	public <T> Stage<List<T>> collect(final List<? extends Stage<? extends T>> stages) {
+		final Stage<List<T>> all = new Stage<List<T>>(this, new Callable<List<T>>() {
+
+			public List<T> call() throws Exception {
+				List<T> results = new ArrayList<T>(stages.size());
+				for (Stage<? extends T> stage : stages) {
+					results.add(stage.get()); // all done by now
+				}
+				return results;
+			}
+		}, 0);
+
+		if (stages.isEmpty()) {
+			all.start();
+			return all;
+		}
+
+		final AtomicInteger pending = new AtomicInteger(stages.size());
+		Callback<Object> countDown = new Callback<Object>() {
+
+			public void onSuccess(Object result) {
+				if (pending.decrementAndGet() == 0) {
+					all.start();
+				}
+			}
+
+			public void onFailure(Throwable cause) {
+				all.fail(cause); // only the first failure counts, a done stage ignores the rest
+			}
+		};
+
+		for (Stage<? extends T> stage : stages) {
+			stage.whenDone(countDown);
+		}
+		return all;
+	}
+
+	/**
+	 * Lets the submitted stages finish, but takes no new ones.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		deadlines.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	void execute(Stage<?> stage) {
+		executor.execute(stage);
+	}
+
+	ScheduledFuture<?> schedule(Runnable action, long delayNanos) {
+		return deadlines.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+	}
+}
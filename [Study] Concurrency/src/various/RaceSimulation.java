@@ -0,0 +1,229 @@
+package various;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The race of RunnerThreads for millions of runners: a simulation that advances ALL runners in TICKS instead of giving each of them a
+ * thread.
+ * 
+ * RunnerThreads starts one platform thread per runner, and every step of every runner takes the same global lock (and then sleeps),
+ * so a race of a few hundred runners is mostly context switches and lock handoffs. Here the state of the runners is two primitive
+ * arrays -- the distance of each runner and the state of its own random generator -- and a fixed pool of worker threads, one per core,
+ * each OWNING a contiguous slice of the arrays. In a tick every worker moves every runner of its slice forward by 0 to 3 metres, then
+ * all workers meet at a barrier; the race is over after the tick in which someone reached the final distance. No worker ever writes
+ * another worker's slice (the slices start on cache-line boundaries, so they do not even share a line), so a tick needs no lock at all;
+ * the only shared write is the WINNER: the first runner to reach the final distance claims the race with one compareAndSet, and only
+ * runners that reach it ever try.
+ * 
+ * Arguments: [mode: ticks or threads, default ticks] [runners, default 1000000] [final distance, default 1000] [workers, default
+ * all cores]. "threads" runs the original one-thread-per-runner race of RunnerThreads (final distance 100, without printing and
+ * sleeping) for comparison; keep it to a few thousand runners, each one is a platform thread.
+ */
+public class RaceSimulation {
+
+	private static final int NO_WINNER = -1;
+	private static final int MAX_STEP_BITS = 2; // a step is 0 to 3 metres
+	private static final int INTS_PER_LINE = 16; // 64-byte cache lines
+
+	private final int[] distances;
+	private final int[] generators;
+	private final int finalDistance;
+	private final int workers;
+	private final AtomicInteger winner = new AtomicInteger(NO_WINNER);
+
+	// written by the barrier action only, read by the workers after the barrier and by run() after join()
+	private volatile boolean over;
+	private long ticks;
+
+	public RaceSimulation(int runners, int finalDistance, int workers, long seed) {
+
+		if (runners < 1 || finalDistance < 1 || workers < 1)
+			throw new IllegalArgumentException("Need at least one runner, metre and worker: " + runners + ", " + finalDistance + ", "
+					+ workers);
+
+		this.distances = new int[runners];
+		this.generators = new int[runners];
+		this.finalDistance = finalDistance;
+		this.workers = Math.min(workers, (runners + INTS_PER_LINE - 1) / INTS_PER_LINE);
+
+		for (int i = 0; i < runners; i++) {
+
+			// splitmix64, so that neighbouring runners do not get related sequences
+			long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			int state = (int) (z ^ (z >>> 31));
+			generators[i] = state != 0 ? state : 1; // xorshift never leaves 0
+		}
+	}
+
+
+	public static void main(String[] args) throws InterruptedException {
+
+		String mode = args.length > 0 ? args[0] : "ticks";
+		int runners = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int finalDistance = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		if (mode.equals("threads")) {
+
+			raceThreads(runners);
+			return;
+		}
+
+		RaceSimulation race = new RaceSimulation(runners, finalDistance, workers, System.nanoTime());
+		long start = System.nanoTime();
+		long ticks = race.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%d runners, final distance %d, %d workers", runners, finalDistance, race.workers));
+		System.out.println(String.format("runner %d won after %d ticks (%.1f ms): %.0f ticks/s, %.0f runner steps/s", race.getWinner(),
+				ticks, seconds * 1e3, ticks / seconds, ticks * (double) runners / seconds));
+	}
+
+	/**
+	 * The race of RunnerThreads, timed: one thread per runner, every step under the one lock.
+	 */
+	private static void raceThreads(int runners) throws InterruptedException {
+
+		RunnerThreads.Runner.restartRace();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong steps = new AtomicLong(0);
+		Thread[] threads = new Thread[runners];
+
+		for (int i = 0; i < runners; i++) {
+
+			final RunnerThreads.Runner runner = new RunnerThreads.Runner(i);
+			threads[i] = new Thread(new Runnable() {
+
+				public void run() {
+
+					try {
+
+						start.await();
+					}
+					catch (InterruptedException e) {
+
+						return;
+					}
+
+					long mine = 1;
+					while (!runner.advance(false))
+						mine++;
+					steps.addAndGet(mine);
+				}
+			});
+			threads[i].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+
+		System.out.println(String.format("%d runner threads, final distance 100", runners));
+		System.out.println(String.format("race over in %.1f ms: %d runner steps, %.0f runner steps/s", seconds * 1e3, steps.get(),
+				steps.get() / seconds));
+	}
+
+
+	/**
+	 * Runs the race to its end on the workers and returns the number of ticks it took. A simulation runs one race only.
+	 */
+	public long run() throws InterruptedException {
+
+		final CyclicBarrier tick = new CyclicBarrier(workers, new Runnable() {
+
+			public void run() {
+
+				ticks++;
+				if (winner.get() != NO_WINNER)
+					over = true;
+			}
+		});
+
+		// slice boundaries rounded to whole cache lines
+		int lines = (distances.length + INTS_PER_LINE - 1) / INTS_PER_LINE;
+		Thread[] threads = new Thread[workers];
+		for (int w = 0; w < workers; w++) {
+
+			final int from = Math.min(distances.length, (int) ((long) lines * w / workers) * INTS_PER_LINE);
+			final int to = Math.min(distances.length, (int) ((long) lines * (w + 1) / workers) * INTS_PER_LINE);
+			threads[w] = new Thread(new Runnable() {
+
+				public void run() {
+
+					try {
+
+						while (!over) {
+
+							advance(from, to);
+							tick.await();
+						}
+					}
+					catch (InterruptedException e) {
+
+						Thread.currentThread().interrupt();
+					}
+					catch (BrokenBarrierException e) {
+
+						// another worker was interrupted, the race is abandoned
+					}
+				}
+			}, "race-worker-" + w);
+			threads[w].start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		return ticks;
+	}
+
+	/**
+	 * One tick of the runners from (inclusive) to to (exclusive), by the worker that owns them.
+	 */
+	private void advance(int from, int to) {
+
+		int[] distances = this.distances;
+		int[] generators = this.generators;
+		int finalDistance = this.finalDistance;
+
+		for (int i = from; i < to; i++) {
+
+			// xorshift32: the runner's own random step
+			int x = generators[i];
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			generators[i] = x;
+
+			int distance = distances[i] + (x >>> (32 - MAX_STEP_BITS));
+			distances[i] = distance;
+
+			// the only shared write of the race, tried only by runners that have just arrived
+			if (distance >= finalDistance && winner.get() == NO_WINNER)
+				winner.compareAndSet(NO_WINNER, i);
+		}
+	}
+
+	/**
+	 * The runner that reached the final distance first, or -1 while the race is on.
+	 */
+	public int getWinner() {
+
+		return winner.get();
+	}
+
+	/**
+	 * Distance of a runner; only meaningful once run() has returned.
+	 */
+	public int getDistance(int runner) {
+
+		return distances[runner];
+	}
+}
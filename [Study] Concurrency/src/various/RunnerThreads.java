@@ -4,6 +4,9 @@ package various;
  * TASK :: CREATE N THREADS AND SIMULATE RUNNERS ON A TRACK. ONCE ONE OF THE RUNNERS HITS THE FINAL DISTANCE, ALL OTHERS
  * SHOULD STOP.
  * 
+ * One thread per runner and one lock for every step: fine for ten runners, not for thousands. RaceSimulation runs the same race in
+ * ticks over primitive arrays, and times this version for comparison.
+ * 
  * @author Alexandru Manea
  *
  */
@@ -29,9 +32,11 @@ public class RunnerThreads {
 	 *    set the finished flag and stop.
 	 * 2. If someone finished in the meanwhile, stop.
 	 * 3. Make the thread sleep a bit to give other threads a chance to run
+	 * 
+	 * Steps 1 and 2 are advance(), so that a benchmark can drive the runner one step at a time, without printing and sleeping.
 	 *
 	 */
-	private static final class Runner implements Runnable {
+	static final class Runner implements Runnable {
 
 		// explicit hidden lock
 		private static final Object LOCK = new Object();
@@ -42,6 +47,9 @@ public class RunnerThreads {
 		// id of each thread -- for printing purposes
 		private int runnerId;
 
+		// confined to the runner's own thread
+		private int currentDistance = 0;
+
 		public Runner(int runnerId) {
 
 			this.runnerId = runnerId;
@@ -51,34 +59,9 @@ public class RunnerThreads {
 		@Override
 		public void run() {
 
-			int currentDistance = 0;
-
 			while (true) {
 
-				// atomic block start
-				synchronized(LOCK) {
-
-					if (!anyoneFinished) {
-
-						// increase distance
-						currentDistance++;
-						System.out.println("Runner " + runnerId + " is now at distance " + currentDistance);
-
-						// if destination reached
-						if (currentDistance == FINAL_DISTANCE) {
-							
-							// set the flag
-							anyoneFinished = true;
-							System.out.println("RUNNER " + runnerId + " FINISHED!");
-							
-							// stop
-							break;
-						}
-					}
-				} // atomic block end
-				
-				// if someone finished in the meantime, stop
-				if (anyoneFinished)
+				if (advance(true))
 					break;
 
 				// wait a little to give other threads a chance to run
@@ -92,5 +75,49 @@ public class RunnerThreads {
 				}
 			}
 		}
+
+		/**
+		 * One step of the race. Returns true once this runner has to stop, because it finished or because someone else did.
+		 */
+		boolean advance(boolean verbose) {
+
+			// atomic block start
+			synchronized(LOCK) {
+
+				if (!anyoneFinished) {
+
+					// increase distance
+					currentDistance++;
+					if (verbose)
+						System.out.println("Runner " + runnerId + " is now at distance " + currentDistance);
+
+					// if destination reached
+					if (currentDistance == FINAL_DISTANCE) {
+						
+						// set the flag
+						anyoneFinished = true;
+						if (verbose)
+							System.out.println("RUNNER " + runnerId + " FINISHED!");
+						
+						// stop
+						return true;
+					}
+				}
+			} // atomic block end
+			
+			// if someone finished in the meantime, stop
+			return anyoneFinished;
+		}
+
+		/**
+		 * Starts a new race: clears the finished flag. The runners of the previous race have to be replaced by new ones.
+		 */
+		static void restartRace() {
+
+			synchronized(LOCK) {
+
+				anyoneFinished = false;
+			}
+		}
 	}
 }
@@ -0,0 +1,56 @@
+package b.threadsafety.cache;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import org.junit.Test;
+import b.threadsafety.factoring.Factors;
+
+/*
+ * Small capacities, where the number of segments is capped by the capacity rather than by the concurrency level: every segment must
+ * keep at least one entry, so a number that was just put can always be read back.
+ */
+public class StripedLruFactorCacheTest
+{
+	@Test
+	public void everyPutCanBeReadBackWithCapacityOne()
+	{
+		assertEveryPutReadBack(1, 16);
+	}
+	
+	@Test
+	public void everyPutCanBeReadBackWithCapacityThree()
+	{
+		assertEveryPutReadBack(3, 16);
+	}
+	
+	@Test
+	public void everyPutCanBeReadBackWithCapacityBelowConcurrencyLevel()
+	{
+		for (int capacity = 1; capacity < 64; capacity++)
+			assertEveryPutReadBack(capacity, 64);
+	}
+	
+	@Test
+	public void sizeNeverExceedsCapacity()
+	{
+		StripedLruFactorCache cache = new StripedLruFactorCache(3, 16);
+		for (int n = 2; n < 1000; n++)
+		{
+			cache.put(BigInteger.valueOf(n), Factors.of(BigInteger.valueOf(n)));
+			assertTrue(cache.size() <= 3);
+		}
+	}
+	
+	private static void assertEveryPutReadBack(int capacity, int concurrencyLevel)
+	{
+		StripedLruFactorCache cache = new StripedLruFactorCache(capacity, concurrencyLevel);
+		for (int n = 2; n < 1000; n++)
+		{
+			BigInteger number = BigInteger.valueOf(n);
+			Factors factors = Factors.of(number);
+			cache.put(number, factors);
+			assertSame("capacity " + capacity + ", number " + n, factors, cache.get(number));
+		}
+	}
+}